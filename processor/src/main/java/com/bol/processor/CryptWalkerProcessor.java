@@ -0,0 +1,390 @@
+package com.bol.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Generates a CryptWalker for every @Document class (and the classes of its sub-documents), crypting exactly the
+ * fields CachedEncryptionEventListener would find by reflection, but with straight-line code.
+ * <p>
+ * Only the default @Encrypted annotation is supported; classes whose walker can't be derived at compile time
+ * (wildcard or type variable generics, private classes, recursion depending on initialization order) are skipped
+ * with a note, and keep on being crypted via reflection at runtime.
+ */
+@SupportedAnnotationTypes(CryptWalkerProcessor.DOCUMENT)
+public class CryptWalkerProcessor extends AbstractProcessor {
+    static final String DOCUMENT = "org.springframework.data.mongodb.core.mapping.Document";
+    static final String FIELD = "org.springframework.data.mongodb.core.mapping.Field";
+    static final String ENCRYPTED = "com.bol.secure.Encrypted";
+    static final String BLIND_INDEX = "com.bol.secure.BlindIndex";
+    static final String DETERMINISTIC = "com.bol.secure.Deterministic";
+    static final String LAZY_ENCRYPTED = "com.bol.secure.LazyEncrypted";
+    static final String CRYPT_WALKER = "com.bol.secure.CryptWalker";
+    static final String SUFFIX = "_CryptWalker";
+
+    // walkers generated so far, by qualified name
+    private final Set<String> generated = new TreeSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            if (!generated.isEmpty()) writeServiceFile();
+            return false;
+        }
+
+        for (TypeElement annotation : annotations) {
+            for (TypeElement root : ElementFilter.typesIn(roundEnv.getElementsAnnotatedWith(annotation))) {
+                try {
+                    process(root);
+                } catch (Unsupported e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                            "Not generating a crypt walker for " + root.getQualifiedName() + ", it will be crypted via reflection: " + e.getMessage(), root);
+                }
+            }
+        }
+
+        // don't claim @Document, other processors may want it too
+        return false;
+    }
+
+    private void process(TypeElement root) throws Unsupported {
+        Map<TypeElement, List<Shape>> built = new LinkedHashMap<>();
+        build(root, built, new HashMap<>());
+
+        // ReflectionCache builds recursive classes in the order they are first used; make sure that order can't matter
+        for (TypeElement type : built.keySet()) {
+            build(type, new HashMap<>(), new HashMap<>());
+        }
+
+        // sub-documents without encrypted fields are never descended into
+        Map<TypeElement, List<Shape>> walkers = new LinkedHashMap<>();
+        for (Map.Entry<TypeElement, List<Shape>> entry : built.entrySet()) {
+            if (entry.getValue().isEmpty() && entry.getKey() != root) continue;
+            checkAccessible(entry.getKey());
+            walkers.put(entry.getKey(), entry.getValue());
+        }
+
+        for (Map.Entry<TypeElement, List<Shape>> entry : walkers.entrySet()) {
+            String walker = walkerName(entry.getKey());
+            if (generated.add(walker)) writeWalker(entry.getKey(), walker, entry.getValue());
+        }
+    }
+
+    // mirrors ReflectionCache.buildRecursive(); `built` doubles as the cache of completed classes
+    private List<Shape> build(TypeElement type, Map<TypeElement, List<Shape>> built, Map<TypeElement, List<Shape>> building) throws Unsupported {
+        if (isJdk(type)) return Collections.emptyList();
+
+        List<Shape> processed = built.get(type);
+        if (processed != null) return processed;
+
+        List<Shape> processing = building.get(type);
+        if (processing != null) {
+            // at runtime, whether this field is crypted depends on which class got reflected first
+            if (processing.isEmpty()) throw new Unsupported("recursive reference to " + type.getQualifiedName() + " before its first encrypted field");
+            return processing;
+        }
+
+        if (type.getNestingKind() == NestingKind.LOCAL || type.getNestingKind() == NestingKind.ANONYMOUS) {
+            throw new Unsupported(type + " is a local class");
+        }
+        if (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC) && type.getKind() == ElementKind.CLASS) {
+            throw new Unsupported(type.getQualifiedName() + " is an inner class");
+        }
+
+        List<Shape> shapes = new ArrayList<>();
+        building.put(type, shapes);
+
+        // same order as ReflectionUtils.doWithFields(): own fields first, then the superclasses'
+        for (TypeElement current = type; current != null && !isJdk(current); current = superclass(current)) {
+            for (VariableElement field : ElementFilter.fieldsIn(current.getEnclosedElements())) {
+                if (field.getModifiers().contains(Modifier.STATIC) || field.getModifiers().contains(Modifier.TRANSIENT)) continue;
+
+                String fieldName = field.getSimpleName().toString();
+                String documentName = documentName(field, fieldName);
+                TypeMirror fieldType = field.asType();
+
+                if (isAnnotationPresent(field, ENCRYPTED)) {
+                    // the walker context has no say in what's put next to the field
+                    if (isAnnotationPresent(field, BLIND_INDEX)) throw new Unsupported("@BlindIndex on " + fieldName);
+                    // nor in how the field is crypted
+                    if (isAnnotationPresent(field, DETERMINISTIC)) throw new Unsupported("@Deterministic on " + fieldName);
+                    Kind kind = isType(processingEnv.getTypeUtils().erasure(fieldType), LAZY_ENCRYPTED) ? Kind.LAZY : Kind.DIRECT;
+                    shapes.add(new Shape(kind, documentName, fieldName, null, null));
+
+                } else if (isSubtype(fieldType, "java.util.Collection")) {
+                    Shape element = elementOf(fieldType, 0, built, building);
+                    if (element != null) shapes.add(new Shape(Kind.LIST, documentName, fieldName, null, element));
+
+                } else if (isSubtype(fieldType, "java.util.Map")) {
+                    Shape element = elementOf(fieldType, 1, built, building);
+                    if (element != null) shapes.add(new Shape(Kind.MAP, documentName, fieldName, null, element));
+
+                } else {
+                    // descending into sub-documents, by erasure like Field.getType()
+                    TypeMirror erasure = processingEnv.getTypeUtils().erasure(fieldType);
+                    if (erasure.getKind() == TypeKind.ERROR) throw new Unsupported("unresolved type of " + fieldName);
+                    if (erasure.getKind() != TypeKind.DECLARED) continue;
+
+                    TypeElement fieldClass = (TypeElement) ((DeclaredType) erasure).asElement();
+                    if (!build(fieldClass, built, building).isEmpty()) shapes.add(new Shape(Kind.DOCUMENT, documentName, fieldName, fieldClass, null));
+                }
+            }
+        }
+
+        building.remove(type);
+        built.put(type, shapes);
+        return shapes;
+    }
+
+    // mirrors processParameterizedTypes() + unwrap() on the generic type of a collection or map field
+    private Shape elementOf(TypeMirror fieldType, int argument, Map<TypeElement, List<Shape>> built, Map<TypeElement, List<Shape>> building) throws Unsupported {
+        if (fieldType.getKind() != TypeKind.DECLARED) throw new Unsupported("unsupported collection type " + fieldType);
+
+        List<? extends TypeMirror> arguments = ((DeclaredType) fieldType).getTypeArguments();
+        if (arguments.isEmpty()) {
+            // raw collections are reflected as classes, which yields nothing sensible
+            TypeElement rawClass = (TypeElement) ((DeclaredType) fieldType).asElement();
+            if (!build(rawClass, built, building).isEmpty()) throw new Unsupported("raw collection type " + fieldType);
+            return null;
+        }
+        if (arguments.size() <= argument) throw new Unsupported("unsupported collection type " + fieldType);
+
+        return valueOf(arguments.get(argument), built, building);
+    }
+
+    private Shape valueOf(TypeMirror type, Map<TypeElement, List<Shape>> built, Map<TypeElement, List<Shape>> building) throws Unsupported {
+        switch (type.getKind()) {
+            case DECLARED:
+                DeclaredType declared = (DeclaredType) type;
+                TypeElement element = (TypeElement) declared.asElement();
+
+                if (declared.getTypeArguments().isEmpty()) {
+                    return build(element, built, building).isEmpty() ? null : new Shape(Kind.DOCUMENT, null, null, element, null);
+                }
+
+                if (isSubtype(type, "java.util.Collection")) {
+                    Shape inner = valueOf(declared.getTypeArguments().get(0), built, building);
+                    return inner == null ? null : new Shape(Kind.LIST, null, null, null, inner);
+                }
+
+                if (isSubtype(type, "java.util.Map")) {
+                    if (declared.getTypeArguments().size() < 2) throw new Unsupported("unsupported map type " + type);
+                    Shape inner = valueOf(declared.getTypeArguments().get(1), built, building);
+                    return inner == null ? null : new Shape(Kind.MAP, null, null, null, inner);
+                }
+
+                throw new Unsupported("unsupported generic type " + type);
+
+            case ARRAY:
+                TypeMirror component = ((ArrayType) type).getComponentType();
+                if (component.getKind() == TypeKind.TYPEVAR || component.getKind() == TypeKind.WILDCARD
+                        || (component.getKind() == TypeKind.DECLARED && !((DeclaredType) component).getTypeArguments().isEmpty())) {
+                    throw new Unsupported("unsupported generic array type " + type);
+                }
+                return null;
+
+            default:
+                throw new Unsupported("unsupported type argument " + type);
+        }
+    }
+
+    private void checkAccessible(TypeElement type) throws Unsupported {
+        for (Element e = type; e.getKind().isClass() || e.getKind().isInterface(); e = e.getEnclosingElement()) {
+            if (e.getModifiers().contains(Modifier.PRIVATE)) throw new Unsupported(((TypeElement) e).getQualifiedName() + " is private");
+        }
+    }
+
+    private void writeWalker(TypeElement type, String walker, List<Shape> shapes) {
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String simpleName = walker.substring(walker.lastIndexOf('.') + 1);
+
+        StringBuilder code = new StringBuilder();
+        if (!packageName.isEmpty()) code.append("package ").append(packageName).append(";\n\n");
+
+        code.append("@javax.annotation.processing.Generated(\"").append(getClass().getName()).append("\")\n");
+        code.append("public final class ").append(simpleName).append(" implements ").append(CRYPT_WALKER).append(" {\n");
+        code.append("    public static final ").append(simpleName).append(" INSTANCE = new ").append(simpleName).append("();\n\n");
+
+        code.append("    @Override\n");
+        code.append("    public Class<?> type() {\n");
+        code.append("        return ").append(processingEnv.getTypeUtils().erasure(type.asType())).append(".class;\n");
+        code.append("    }\n\n");
+
+        code.append("    @Override\n");
+        code.append("    public void walk(org.bson.Document document, ").append(CRYPT_WALKER).append(".Context context) {\n");
+        for (Shape shape : shapes) {
+            code.append("        ");
+            switch (shape.kind) {
+                case DIRECT:
+                    code.append("context.direct(document, ").append(literal(shape.documentName)).append(", ").append(literal(shape.fieldName)).append(");\n");
+                    break;
+                case LAZY:
+                    code.append("context.lazy(document, ").append(literal(shape.documentName)).append(", ").append(literal(shape.fieldName)).append(");\n");
+                    break;
+                default:
+                    code.append("context.field(document, ").append(literal(shape.documentName)).append(", ").append(literal(shape.fieldName)).append(", ");
+                    valueWalker(code, shape, 0);
+                    code.append(");\n");
+            }
+        }
+        code.append("    }\n");
+
+        if (shapes.isEmpty()) {
+            code.append("\n    @Override\n");
+            code.append("    public boolean isEmpty() {\n");
+            code.append("        return true;\n");
+            code.append("    }\n");
+        }
+        code.append("}\n");
+
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(walker, type);
+            try (Writer writer = file.openWriter()) {
+                writer.write(code.toString());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // non-capturing lambdas, so each is a constant
+    private void valueWalker(StringBuilder code, Shape shape, int depth) {
+        String value = "v" + depth, context = "c" + depth;
+        code.append("(").append(value).append(", ").append(context).append(") -> ");
+
+        switch (shape.kind) {
+            case DOCUMENT:
+                code.append(context).append(".document(").append(value).append(", ").append(walkerName(shape.document)).append(".INSTANCE)");
+                break;
+            case LIST:
+                code.append(context).append(".list(").append(value).append(", ");
+                valueWalker(code, shape.element, depth + 1);
+                code.append(")");
+                break;
+            case MAP:
+                code.append(context).append(".map(").append(value).append(", ");
+                valueWalker(code, shape.element, depth + 1);
+                code.append(")");
+                break;
+            default:
+                throw new IllegalStateException("Unexpected value shape " + shape.kind);
+        }
+    }
+
+    private void writeServiceFile() {
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", "META-INF/services/" + CRYPT_WALKER);
+            try (Writer writer = file.openWriter()) {
+                for (String walker : generated) writer.write(walker + "\n");
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to write service file for crypt walkers: " + e);
+        }
+    }
+
+    /** qualified name of the walker; nested classes are flattened, e.g. a.b.Outer.Inner -> a.b.Outer_Inner_CryptWalker */
+    String walkerName(TypeElement type) {
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String flatName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)).replace('$', '_');
+        return (packageName.isEmpty() ? "" : packageName + ".") + flatName + SUFFIX;
+    }
+
+    /** process custom name in @Field annotation, same as ReflectionCache.parseFieldAnnotation() */
+    private static String documentName(VariableElement field, String fieldName) {
+        for (AnnotationMirror annotation : field.getAnnotationMirrors()) {
+            if (!isType(annotation.getAnnotationType(), FIELD)) continue;
+
+            String name = null, value = null;
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : annotation.getElementValues().entrySet()) {
+                String key = entry.getKey().getSimpleName().toString();
+                if (key.equals("name")) name = (String) entry.getValue().getValue();
+                else if (key.equals("value")) value = (String) entry.getValue().getValue();
+            }
+
+            if (name != null && !name.isEmpty()) return name;
+            if (value != null && !value.isEmpty()) return value;
+        }
+        return fieldName;
+    }
+
+    // like Field.isAnnotationPresent(): meta-annotations don't count
+    private static boolean isAnnotationPresent(Element element, String annotationName) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            if (isType(annotation.getAnnotationType(), annotationName)) return true;
+        }
+        return false;
+    }
+
+    private static boolean isType(TypeMirror type, String name) {
+        return type.getKind() == TypeKind.DECLARED && ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().contentEquals(name);
+    }
+
+    private boolean isSubtype(TypeMirror type, String name) {
+        TypeElement element = processingEnv.getElementUtils().getTypeElement(name);
+        return processingEnv.getTypeUtils().isAssignable(processingEnv.getTypeUtils().erasure(type), processingEnv.getTypeUtils().erasure(element.asType()));
+    }
+
+    private static TypeElement superclass(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        return superclass.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+    }
+
+    // JDK classes carry no @Encrypted fields
+    private static boolean isJdk(TypeElement type) {
+        String name = type.getQualifiedName().toString();
+        return name.startsWith("java.") || name.startsWith("javax.");
+    }
+
+    private String literal(String s) {
+        return processingEnv.getElementUtils().getConstantExpression(s);
+    }
+
+    enum Kind {DIRECT, LAZY, LIST, MAP, DOCUMENT}
+
+    /** a field of a class, or with null names, a list element or map value; counterpart of Node */
+    static final class Shape {
+        final Kind kind;
+        final String documentName;
+        final String fieldName;
+        /** the sub-document class, for DOCUMENT */
+        final TypeElement document;
+        /** the elements/values, for LIST and MAP */
+        final Shape element;
+
+        Shape(Kind kind, String documentName, String fieldName, TypeElement document, Shape element) {
+            this.kind = kind;
+            this.documentName = documentName;
+            this.fieldName = fieldName;
+            this.document = document;
+            this.element = element;
+        }
+    }
+
+    static final class Unsupported extends Exception {
+        Unsupported(String message) {
+            super(message, null, false, false);
+        }
+    }
+}
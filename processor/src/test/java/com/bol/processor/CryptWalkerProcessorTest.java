@@ -0,0 +1,303 @@
+package com.bol.processor;
+
+import com.bol.crypt.CryptVault;
+import com.bol.secure.CachedEncryptionEventListener;
+import com.bol.secure.CryptWalker;
+import com.bol.secure.LazyEncrypted;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+
+import javax.tools.*;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CryptWalkerProcessorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void generatesWalkersForDocumentAndSubDocuments() throws IOException {
+        compile(
+                "package model;\n" +
+                        "@org.springframework.data.mongodb.core.mapping.Document\n" +
+                        "public class Bean {\n" +
+                        "    @com.bol.secure.Encrypted public String secret;\n" +
+                        "    @com.bol.secure.Encrypted @org.springframework.data.mongodb.core.mapping.Field(\"lz\") public com.bol.secure.LazyEncrypted<String> lazy;\n" +
+                        "    public String plain;\n" +
+                        "    public static String constant;\n" +
+                        "    public transient String ignored;\n" +
+                        "    public Sub sub;\n" +
+                        "    public java.util.List<java.util.Map<String, Sub>> subs;\n" +
+                        "    public java.util.List<String> strings;\n" +
+                        "}\n",
+                "package model;\n" +
+                        "public class Sub {\n" +
+                        "    @com.bol.secure.Encrypted public String secret;\n" +
+                        "    public Bean parent;\n" +
+                        "}\n");
+
+        assertThat(generated("model/Bean_CryptWalker.java"))
+                .contains("return model.Bean.class;")
+                .contains("context.direct(document, \"secret\", \"secret\");")
+                .contains("context.lazy(document, \"lz\", \"lazy\");")
+                .contains("context.field(document, \"sub\", \"sub\", (v0, c0) -> c0.document(v0, model.Sub_CryptWalker.INSTANCE));")
+                .contains("context.field(document, \"subs\", \"subs\", (v0, c0) -> c0.list(v0, (v1, c1) -> c1.map(v1, (v2, c2) -> c2.document(v2, model.Sub_CryptWalker.INSTANCE))));")
+                .doesNotContain("plain")
+                .doesNotContain("constant")
+                .doesNotContain("ignored")
+                .doesNotContain("strings");
+
+        assertThat(generated("model/Sub_CryptWalker.java"))
+                .contains("context.direct(document, \"secret\", \"secret\");")
+                .contains("context.field(document, \"parent\", \"parent\", (v0, c0) -> c0.document(v0, model.Bean_CryptWalker.INSTANCE));");
+
+        assertThat(service()).containsExactlyInAnyOrder("model.Bean_CryptWalker", "model.Sub_CryptWalker");
+    }
+
+    @Test
+    public void emptyDocumentIsMarkedEmpty() throws IOException {
+        compile("package model;\n" +
+                "@org.springframework.data.mongodb.core.mapping.Document\n" +
+                "public class Plain {\n" +
+                "    public String plain;\n" +
+                "}\n");
+
+        assertThat(generated("model/Plain_CryptWalker.java")).contains("public boolean isEmpty()");
+    }
+
+    @Test
+    public void unsupportedDocumentsAreLeftToReflection() throws IOException {
+        compile(
+                "package model;\n" +
+                        "@org.springframework.data.mongodb.core.mapping.Document\n" +
+                        "public class Wildcard {\n" +
+                        "    @com.bol.secure.Encrypted public String secret;\n" +
+                        "    public java.util.List<? extends Sub> subs;\n" +
+                        "}\n",
+                // whether Recursive.sub is crypted depends on whether Recursive or Sub is reflected first
+                "package model;\n" +
+                        "@org.springframework.data.mongodb.core.mapping.Document\n" +
+                        "public class Recursive {\n" +
+                        "    public Sub sub;\n" +
+                        "    @com.bol.secure.Encrypted public String secret;\n" +
+                        "}\n",
+                "package model;\n" +
+                        "public class Sub {\n" +
+                        "    public Recursive parent;\n" +
+                        "}\n",
+                "package model;\n" +
+                        "@org.springframework.data.mongodb.core.mapping.Document\n" +
+                        "public class Indexed {\n" +
+                        "    @com.bol.secure.Encrypted @com.bol.secure.BlindIndex public String secret;\n" +
+                        "}\n",
+                "package model;\n" +
+                        "@org.springframework.data.mongodb.core.mapping.Document\n" +
+                        "public class Unique {\n" +
+                        "    @com.bol.secure.Encrypted @com.bol.secure.Deterministic public String secret;\n" +
+                        "}\n");
+
+        assertThat(new File(folder.getRoot(), "generated/model/Wildcard_CryptWalker.java")).doesNotExist();
+        assertThat(new File(folder.getRoot(), "generated/model/Indexed_CryptWalker.java")).doesNotExist();
+        assertThat(new File(folder.getRoot(), "generated/model/Unique_CryptWalker.java")).doesNotExist();
+        assertThat(new File(folder.getRoot(), "generated/model/Recursive_CryptWalker.java")).doesNotExist();
+    }
+
+    @Test
+    public void generatedWalkersCryptLikeFieldPlans() throws Exception {
+        compile(
+                "package model;\n" +
+                        "@org.springframework.data.mongodb.core.mapping.Document\n" +
+                        "public class Bean {\n" +
+                        "    @com.bol.secure.Encrypted public String secret;\n" +
+                        "    @com.bol.secure.Encrypted @org.springframework.data.mongodb.core.mapping.Field(\"lz\") public com.bol.secure.LazyEncrypted<String> lazy;\n" +
+                        "    @com.bol.secure.Encrypted public java.util.List<String> secrets;\n" +
+                        "    public String plain;\n" +
+                        "    public Sub sub;\n" +
+                        "    public java.util.List<Sub> subs;\n" +
+                        "    public java.util.Map<String, Sub> subMap;\n" +
+                        "    public java.util.List<java.util.Map<String, Sub>> nested;\n" +
+                        "    public static Bean sample() {\n" +
+                        "        Bean bean = new Bean();\n" +
+                        "        bean.secret = \"earth is flat\";\n" +
+                        "        bean.lazy = com.bol.secure.LazyEncrypted.of(\"sky is green\");\n" +
+                        "        bean.secrets = java.util.List.of(\"a\", \"b\");\n" +
+                        "        bean.plain = \"grass is green\";\n" +
+                        "        bean.sub = Sub.sample(1);\n" +
+                        "        bean.subs = java.util.List.of(Sub.sample(2), Sub.sample(3));\n" +
+                        "        bean.subMap = java.util.Map.of(\"x\", Sub.sample(4));\n" +
+                        "        bean.nested = java.util.List.of(java.util.Map.of(\"y\", Sub.sample(5)));\n" +
+                        "        return bean;\n" +
+                        "    }\n" +
+                        "}\n",
+                "package model;\n" +
+                        "public class Sub {\n" +
+                        "    @com.bol.secure.Encrypted public String secret;\n" +
+                        "    @com.bol.secure.Encrypted public Long number;\n" +
+                        "    public Leaf leaf;\n" +
+                        "    static Sub sample(long i) {\n" +
+                        "        Sub sub = new Sub();\n" +
+                        "        sub.secret = \"secret \" + i;\n" +
+                        "        sub.number = i;\n" +
+                        "        sub.leaf = new Leaf();\n" +
+                        "        sub.leaf.secret = \"leaf \" + i;\n" +
+                        "        return sub;\n" +
+                        "    }\n" +
+                        "}\n",
+                "package model;\n" +
+                        "public class Leaf {\n" +
+                        "    @com.bol.secure.Encrypted public String secret;\n" +
+                        "}\n");
+
+        File classes = new File(folder.getRoot(), "classes");
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[]{classes.toURI().toURL()}, getClass().getClassLoader())) {
+            Class<?> beanClass = classLoader.loadClass("model.Bean");
+            assertThat(ServiceLoader.load(CryptWalker.class, classLoader)).extracting(CryptWalker::type).contains(beanClass);
+
+            CryptVault cryptVault = new CryptVault()
+                    .with256BitAesCbcPkcs5PaddingAnd128BitSaltKey(0, Base64.getDecoder().decode("hqHKBLV83LpCqzKpf8OvutbCs+O5wX5BPu3btWpEvXA="))
+                    .withDefaultKeyVersion(0);
+            CachedEncryptionEventListener reflected = new CachedEncryptionEventListener(cryptVault).withGeneratedWalkers(false);
+            CachedEncryptionEventListener generated;
+            ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+            Thread.currentThread().setContextClassLoader(classLoader);
+            try {
+                generated = new CachedEncryptionEventListener(cryptVault);
+            } finally {
+                Thread.currentThread().setContextClassLoader(contextClassLoader);
+            }
+
+            MappingMongoConverter converter = converter();
+            Object bean = beanClass.getMethod("sample").invoke(null);
+            Document plain = new Document();
+            converter.write(bean, plain);
+
+            // the very same fields are encrypted
+            Document byWalker = copy(plain);
+            generated.onBeforeSave(new BeforeSaveEvent<>(bean, byWalker, "bean"));
+            Document byPlan = copy(plain);
+            reflected.onBeforeSave(new BeforeSaveEvent<>(bean, byPlan, "bean"));
+            assertThat(shape(byWalker)).isEqualTo(shape(byPlan)).isNotEqualTo(shape(plain));
+
+            // and decrypted, by either
+            assertThat(load(generated, beanClass, byPlan, null)).isEqualTo(plain);
+            assertThat(load(reflected, beanClass, byWalker, null)).isEqualTo(plain);
+
+            // only the selected paths, lazy fields are wrapped anyway
+            List<String> paths = Arrays.asList("secret", "sub.leaf.secret", "subs.number", "subMap.x.secret", "nested.y.leaf");
+            Document selectedByWalker = load(generated, beanClass, byWalker, paths);
+            Document selectedByPlan = load(reflected, beanClass, byWalker, paths);
+            assertThat(selectedByWalker).isEqualTo(selectedByPlan);
+            assertThat(shape(selectedByWalker)).isNotEqualTo(shape(plain)).isNotEqualTo(shape(byWalker));
+        }
+    }
+
+    private static Document load(CachedEncryptionEventListener listener, Class<?> type, Document encrypted, List<String> paths) {
+        Document document = copy(encrypted);
+        Runnable load = () -> listener.onAfterLoad(new AfterLoadEvent<>(document, type, "bean"));
+        if (paths == null) {
+            load.run();
+        } else {
+            listener.decryptOnly(paths, () -> {
+                load.run();
+                return null;
+            });
+        }
+        return document;
+    }
+
+    // sub-documents and lists are crypted in place
+    private static Document copy(Document document) {
+        Document result = new Document();
+        document.forEach((key, value) -> result.put(key, copyValue(value)));
+        return result;
+    }
+
+    private static Object copyValue(Object value) {
+        if (value instanceof Document) return copy((Document) value);
+        if (value instanceof List) return ((List<?>) value).stream().map(CryptWalkerProcessorTest::copyValue).collect(Collectors.toList());
+        return value;
+    }
+
+    /** `document`, with the ciphertexts replaced by a marker */
+    private static Object shape(Object value) {
+        if (value instanceof Binary) return "<encrypted>";
+        if (value instanceof Document) {
+            Document result = new Document();
+            ((Document) value).forEach((key, v) -> result.put(key, shape(v)));
+            return result;
+        }
+        if (value instanceof List) return ((List<?>) value).stream().map(CryptWalkerProcessorTest::shape).collect(Collectors.toList());
+        return value;
+    }
+
+    private static MappingMongoConverter converter() {
+        MongoCustomConversions conversions = new MongoCustomConversions(Collections.singletonList(LazyEncrypted.Writer.INSTANCE));
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        mappingContext.afterPropertiesSet();
+
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+        return converter;
+    }
+
+    private void compile(String... sources) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+
+        Path src = folder.newFolder("src").toPath();
+        List<File> files = new ArrayList<>();
+        for (String source : sources) {
+            String className = source.substring(source.indexOf("class ") + 6, source.indexOf(" {"));
+            Path file = src.resolve("model").resolve(className + ".java");
+            Files.createDirectories(file.getParent());
+            Files.write(file, source.getBytes(StandardCharsets.UTF_8));
+            files.add(file.toFile());
+        }
+
+        File classes = folder.newFolder("classes");
+        File generated = folder.newFolder("generated");
+
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8)) {
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+                    Arrays.asList("-classpath", System.getProperty("java.class.path"), "-d", classes.getPath(), "-s", generated.getPath()),
+                    null, fileManager.getJavaFileObjectsFromFiles(files));
+            task.setProcessors(List.of(new CryptWalkerProcessor()));
+
+            assertThat(task.call()).as(diagnostics.getDiagnostics().toString()).isTrue();
+        }
+    }
+
+    private String generated(String path) throws IOException {
+        return new String(Files.readAllBytes(folder.getRoot().toPath().resolve("generated").resolve(path)), StandardCharsets.UTF_8);
+    }
+
+    private List<String> service() throws IOException {
+        return Files.readAllLines(folder.getRoot().toPath().resolve("classes/META-INF/services/com.bol.secure.CryptWalker"));
+    }
+}
@@ -0,0 +1,167 @@
+package com.bol.benchmark;
+
+import com.bol.crypt.CryptVault;
+import com.bol.reflection.ReflectionCache;
+import com.bol.secure.AbstractEncryptionEventListener;
+import com.bol.secure.CachedEncryptionEventListener;
+import com.bol.secure.FieldEncryptedPredicate;
+import com.bol.secure.ReflectionEncryptionEventListener;
+import com.bol.system.model.MyBean;
+import com.bol.system.model.MySubBean;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the event listeners directly with synthetic events, so neither mongodb nor a spring context is needed.
+ * Each invocation works on a fresh deep copy of the prepared document, as the listeners crypt in-place;
+ * {@link #copy()} measures that overhead alone.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncryptionBenchmark {
+
+    private static final byte[] secretKey = Base64.getDecoder().decode("hqHKBLV83LpCqzKpf8OvutbCs+O5wX5BPu3btWpEvXA=");
+    private static final String COLLECTION = MyBean.MONGO_MYBEAN;
+
+    @Param({"flat", "nested", "largeMap", "largeList"})
+    public String shape;
+
+    @Param({"cached", "reflection"})
+    public String listenerType;
+
+    /** number of entries in largeMap and largeList shapes */
+    @Param({"1000"})
+    public int size;
+
+    private AbstractEncryptionEventListener<?> listener;
+    private MyBean bean;
+    private Document plain;
+    private Document encrypted;
+
+    @Setup
+    public void setup() {
+        CryptVault cryptVault = new CryptVault()
+                .with256BitAesCbcPkcs5PaddingAnd128BitSaltKey(0, secretKey)
+                .withDefaultKeyVersion(0);
+
+        if ("reflection".equals(listenerType)) listener = new ReflectionEncryptionEventListener(cryptVault);
+        else listener = new CachedEncryptionEventListener(cryptVault);
+
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.afterPropertiesSet();
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.afterPropertiesSet();
+
+        bean = bean(shape, size);
+        plain = new Document();
+        converter.write(bean, plain);
+
+        encrypted = deepCopy(plain);
+        listener.onBeforeSave(new BeforeSaveEvent<>(bean, encrypted, COLLECTION));
+    }
+
+    @Benchmark
+    public Document encrypt() {
+        Document document = deepCopy(plain);
+        listener.onBeforeSave(new BeforeSaveEvent<>(bean, document, COLLECTION));
+        return document;
+    }
+
+    @Benchmark
+    public Document decrypt() {
+        Document document = deepCopy(encrypted);
+        listener.onAfterLoad(new AfterLoadEvent<>(document, MyBean.class, COLLECTION));
+        return document;
+    }
+
+    @Benchmark
+    public Document copy() {
+        return deepCopy(encrypted);
+    }
+
+    /** cost of building class metadata from scratch, as on the first save/load of a type after startup */
+    @Benchmark
+    public List<?> reflectionCacheCold() {
+        return new ReflectionCache(FieldEncryptedPredicate.ANNOTATION_PRESENT).reflectRecursive(MyBean.class);
+    }
+
+    static MyBean bean(String shape, int size) {
+        MyBean bean = new MyBean();
+        bean.id = "5a0b7d4c3e2f1a0b9c8d7e6f";
+        bean.nonSensitiveData = "grass is green";
+
+        switch (shape) {
+            case "flat":
+                bean.secretString = "earth is flat";
+                bean.secretLong = 95459L;
+                bean.secretBoolean = true;
+                bean.secretStringList = Arrays.asList("ear", "all", "I truly am a very very long string.");
+                bean.publicStringList = Arrays.asList("ear", "all");
+                break;
+
+            case "nested":
+                bean.secretSubBean = new MySubBean("sky is blue", "earth is round");
+                bean.nonSensitiveSubBean = new MySubBean("sky is blue", "earth is round");
+                bean.nonSensitiveSubBean.recursiveBean = new MyBean();
+                bean.nonSensitiveSubBean.recursiveBean.nonSensitiveSubBean = new MySubBean("one", "two");
+
+                bean.nestedListMap = new HashMap<>();
+                bean.nestedListMap.put("one", Arrays.asList(new MySubBean("one1", "one2"), new MySubBean("one3", "one4")));
+                bean.nestedListMap.put("two", Arrays.asList(new MySubBean("two1", "two2"), new MySubBean("two3", "two4")));
+
+                bean.nestedMapMap = new HashMap<>();
+                bean.nestedMapMap.put("inner", Collections.singletonMap("one", new MySubBean("one1", "one2")));
+
+                bean.nestedListList = new ArrayList<>();
+                bean.nestedListList.add(Arrays.asList(new MySubBean("one1", "one2"), new MySubBean("one3", "one4")));
+                bean.nestedListList.add(Arrays.asList(new MySubBean("two1", "two2"), new MySubBean("two3", "two4")));
+                break;
+
+            case "largeMap":
+                bean.nonSensitiveMap = new HashMap<>();
+                for (int i = 0; i < size; i++) bean.nonSensitiveMap.put("key" + i, new MySubBean("data " + i, "secret " + i));
+                break;
+
+            case "largeList":
+                bean.nonSensitiveSubBeanList = new ArrayList<>();
+                for (int i = 0; i < size; i++) bean.nonSensitiveSubBeanList.add(new MySubBean("data " + i, "secret " + i));
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown shape: " + shape);
+        }
+
+        return bean;
+    }
+
+    static Document deepCopy(Document document) {
+        Document result = new Document();
+        for (Map.Entry<String, Object> entry : document.entrySet()) {
+            result.put(entry.getKey(), deepCopyValue(entry.getValue()));
+        }
+        return result;
+    }
+
+    static Object deepCopyValue(Object value) {
+        if (value instanceof Document) return deepCopy((Document) value);
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            List<Object> result = new ArrayList<>(list.size());
+            for (Object o : list) result.add(deepCopyValue(o));
+            return result;
+        }
+        return value;
+    }
+}
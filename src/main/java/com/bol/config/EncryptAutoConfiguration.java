@@ -3,16 +3,26 @@ package com.bol.config;
 import com.bol.config.CryptVaultAutoConfiguration.CryptVaultConfigurationProperties;
 import com.bol.crypt.CryptVault;
 import com.bol.secure.AbstractEncryptionEventListener;
+import com.bol.secure.BlindIndexer;
 import com.bol.secure.CachedEncryptionEventListener;
+import com.bol.secure.CryptMetrics;
+import com.bol.secure.DeterministicEncryption;
+import com.bol.secure.EncryptionWarmUp;
 import com.bol.secure.ReflectionEncryptionEventListener;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
 import org.springframework.stereotype.Component;
 
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
 @Configuration
 public class EncryptAutoConfiguration {
 
@@ -28,24 +38,79 @@ public class EncryptAutoConfiguration {
     @Bean
     @ConditionalOnMissingBean({AbstractEncryptionEventListener.class})
     @ConditionalOnBean(CryptVault.class)
-    AbstractEncryptionEventListener encryptionEventListener(CryptVault cryptVault, EncryptConfigurationProperties properties) {
+    @ConditionalOnProperty(prefix = "mongodb.encrypt", name = "reactive", havingValue = "false", matchIfMissing = true)
+    AbstractEncryptionEventListener encryptionEventListener(CryptVault cryptVault, EncryptConfigurationProperties properties, ObjectProvider<MongoConverter> mongoConverter, ObjectProvider<CryptMetrics> cryptMetrics, ObjectProvider<BlindIndexer> blindIndexer, ObjectProvider<DeterministicEncryption> deterministicEncryption) {
+        return createEventListener(cryptVault, properties, mongoConverter, cryptMetrics, blindIndexer, deterministicEncryption);
+    }
+
+    static AbstractEncryptionEventListener createEventListener(CryptVault cryptVault, EncryptConfigurationProperties properties, ObjectProvider<MongoConverter> mongoConverter, ObjectProvider<CryptMetrics> cryptMetrics, ObjectProvider<BlindIndexer> blindIndexer, ObjectProvider<DeterministicEncryption> deterministicEncryption) {
         AbstractEncryptionEventListener eventListener;
         if ("reflection".equalsIgnoreCase(properties.type)) {
-            eventListener = new ReflectionEncryptionEventListener(cryptVault);
+            ReflectionEncryptionEventListener reflectionListener = new ReflectionEncryptionEventListener(cryptVault);
+            // resolve _class of polymorphic sub-documents the same way the converter does, type aliases included
+            mongoConverter.ifUnique(converter -> reflectionListener.withTypeMapper(converter.getTypeMapper()));
+            eventListener = reflectionListener;
         } else {
-            eventListener = new CachedEncryptionEventListener(cryptVault);
+            CachedEncryptionEventListener cachedListener = new CachedEncryptionEventListener(cryptVault);
+            if (properties.polymorphism == Boolean.TRUE) mongoConverter.ifUnique(cachedListener::withPolymorphism);
+            eventListener = cachedListener;
         }
 
         if (properties.silentDecryptionFailures == Boolean.TRUE) eventListener.withSilentDecryptionFailure(true);
+        if (properties.parallelCryptThreshold != null) eventListener.withParallelCrypt(properties.parallelCryptThreshold);
+        if (properties.dirtyTrackingMaxDocuments != null) eventListener.withDirtyTracking(properties.dirtyTrackingMaxDocuments);
+        cryptMetrics.ifUnique(eventListener::withMetrics);
+        blindIndexer.ifUnique(eventListener::withBlindIndexer);
+        deterministicEncryption.ifUnique(eventListener::withDeterministicEncryption);
 
         return eventListener;
     }
 
+    @Bean
+    @ConditionalOnMissingBean(BlindIndexer.class)
+    @ConditionalOnProperty(prefix = "mongodb.encrypt", name = "blind-index-key")
+    BlindIndexer blindIndexer(EncryptConfigurationProperties properties) {
+        return new BlindIndexer(Base64.getDecoder().decode(properties.blindIndexKey));
+    }
+
+    @Bean
+    @ConditionalOnMissingBean(DeterministicEncryption.class)
+    @ConditionalOnProperty(prefix = "mongodb.encrypt", name = "deterministic-keys[0].key")
+    DeterministicEncryption deterministicEncryption(EncryptConfigurationProperties properties) {
+        DeterministicEncryption deterministicEncryption = new DeterministicEncryption();
+        int defaultKey = -1;
+        for (DeterministicKey key : properties.deterministicKeys) {
+            deterministicEncryption.withKey(key.version, Base64.getDecoder().decode(key.key));
+            defaultKey = Math.max(defaultKey, key.version);
+        }
+        return deterministicEncryption.withDefaultKeyVersion(properties.deterministicDefaultKey != null ? properties.deterministicDefaultKey : defaultKey);
+    }
+
+    @Bean
+    @ConditionalOnBean(AbstractEncryptionEventListener.class)
+    @ConditionalOnProperty(prefix = "mongodb.encrypt", name = "warm-up", havingValue = "true")
+    EncryptionWarmUp encryptionWarmUp(AbstractEncryptionEventListener<?> eventListener, EncryptConfigurationProperties properties) {
+        return createWarmUp(eventListener, properties);
+    }
+
+    static EncryptionWarmUp createWarmUp(AbstractEncryptionEventListener<?> eventListener, EncryptConfigurationProperties properties) {
+        List<String> basePackages = properties.warmUpPackages != null ? properties.warmUpPackages : Collections.emptyList();
+        return new EncryptionWarmUp(eventListener, basePackages.toArray(new String[0]));
+    }
+
     @Component
     @ConfigurationProperties("mongodb.encrypt")
     public static class EncryptConfigurationProperties extends CryptVaultConfigurationProperties {
         String type;
         Boolean silentDecryptionFailures;
+        Integer parallelCryptThreshold;
+        Integer dirtyTrackingMaxDocuments;
+        List<String> warmUpPackages;
+        Boolean polymorphism;
+        Integer reactiveBatchSize;
+        String blindIndexKey;
+        List<DeterministicKey> deterministicKeys;
+        Integer deterministicDefaultKey;
 
         public void setType(String type) {
             this.type = type;
@@ -54,5 +119,51 @@ public class EncryptAutoConfiguration {
         public void setSilentDecryptionFailures(Boolean silentDecryptionFailures) {
             this.silentDecryptionFailures = silentDecryptionFailures;
         }
+
+        public void setParallelCryptThreshold(Integer parallelCryptThreshold) {
+            this.parallelCryptThreshold = parallelCryptThreshold;
+        }
+
+        public void setDirtyTrackingMaxDocuments(Integer dirtyTrackingMaxDocuments) {
+            this.dirtyTrackingMaxDocuments = dirtyTrackingMaxDocuments;
+        }
+
+        public void setWarmUpPackages(List<String> warmUpPackages) {
+            this.warmUpPackages = warmUpPackages;
+        }
+
+        public void setPolymorphism(Boolean polymorphism) {
+            this.polymorphism = polymorphism;
+        }
+
+        public void setReactiveBatchSize(Integer reactiveBatchSize) {
+            this.reactiveBatchSize = reactiveBatchSize;
+        }
+
+        public void setBlindIndexKey(String blindIndexKey) {
+            this.blindIndexKey = blindIndexKey;
+        }
+
+        public void setDeterministicKeys(List<DeterministicKey> deterministicKeys) {
+            this.deterministicKeys = deterministicKeys;
+        }
+
+        public void setDeterministicDefaultKey(Integer deterministicDefaultKey) {
+            this.deterministicDefaultKey = deterministicDefaultKey;
+        }
+    }
+
+    /** key of DeterministicEncryption; the highest version is the default, unless deterministic-default-key is set */
+    public static class DeterministicKey {
+        int version;
+        String key;
+
+        public void setVersion(int version) {
+            this.version = version;
+        }
+
+        public void setKey(String key) {
+            this.key = key;
+        }
     }
 }
@@ -0,0 +1,27 @@
+package com.bol.config;
+
+import com.bol.secure.CryptMetrics;
+import com.bol.secure.MicrometerCryptMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/** in a separate class, so that nothing of micrometer is loaded without micrometer on the classpath */
+@Configuration
+@AutoConfigureAfter(name = "org.springframework.boot.actuate.autoconfigure.metrics.CompositeMeterRegistryAutoConfiguration")
+@ConditionalOnClass(name = "io.micrometer.core.instrument.MeterRegistry")
+@ConditionalOnProperty(prefix = "mongodb.encrypt", name = "metrics", havingValue = "true", matchIfMissing = true)
+public class MetricsEncryptAutoConfiguration {
+
+    @Bean
+    @ConditionalOnMissingBean(CryptMetrics.class)
+    @ConditionalOnBean(MeterRegistry.class)
+    CryptMetrics cryptMetrics(MeterRegistry meterRegistry) {
+        return new MicrometerCryptMetrics(meterRegistry);
+    }
+}
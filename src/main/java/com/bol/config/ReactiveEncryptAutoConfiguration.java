@@ -0,0 +1,52 @@
+package com.bol.config;
+
+import com.bol.config.EncryptAutoConfiguration.EncryptConfigurationProperties;
+import com.bol.crypt.CryptVault;
+import com.bol.secure.AbstractEncryptionEventListener;
+import com.bol.secure.BlindIndexer;
+import com.bol.secure.CryptMetrics;
+import com.bol.secure.DeterministicEncryption;
+import com.bol.secure.EncryptionWarmUp;
+import com.bol.secure.ReactiveEncryption;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+
+/** in a separate class, so that nothing reactive is loaded without reactor on the classpath */
+@Configuration
+@AutoConfigureAfter(EncryptAutoConfiguration.class)
+@ConditionalOnClass(name = "reactor.core.publisher.Flux")
+@ConditionalOnProperty(prefix = "mongodb.encrypt", name = "reactive", havingValue = "true")
+public class ReactiveEncryptAutoConfiguration {
+
+    @Bean
+    @ConditionalOnMissingBean({ReactiveEncryption.class, AbstractEncryptionEventListener.class})
+    @ConditionalOnBean(CryptVault.class)
+    ReactiveEncryption reactiveEncryption(CryptVault cryptVault, EncryptConfigurationProperties properties, ObjectProvider<MongoConverter> mongoConverter, ObjectProvider<CryptMetrics> cryptMetrics, ObjectProvider<BlindIndexer> blindIndexer, ObjectProvider<DeterministicEncryption> deterministicEncryption) {
+        // the event listener must not be a bean on its own, or it would encrypt on the event loop (and twice)
+        ReactiveEncryption reactiveEncryption = new ReactiveEncryption(EncryptAutoConfiguration.createEventListener(cryptVault, properties, mongoConverter, cryptMetrics, blindIndexer, deterministicEncryption));
+        if (properties.reactiveBatchSize != null) reactiveEncryption.withBatchSize(properties.reactiveBatchSize);
+        return reactiveEncryption;
+    }
+
+    /** saves of a blocking MongoTemplate, if any, must be encrypted too */
+    @Bean
+    @ConditionalOnBean(ReactiveEncryption.class)
+    ReactiveEncryption.BlockingSaveCallback reactiveEncryptionBlockingSaveCallback(ReactiveEncryption reactiveEncryption) {
+        return reactiveEncryption.blockingSaveCallback();
+    }
+
+    /** warms up the wrapped event listener, as it is not a bean on its own */
+    @Bean
+    @ConditionalOnBean(ReactiveEncryption.class)
+    @ConditionalOnProperty(prefix = "mongodb.encrypt", name = "warm-up", havingValue = "true")
+    EncryptionWarmUp reactiveEncryptionWarmUp(ReactiveEncryption reactiveEncryption, EncryptConfigurationProperties properties) {
+        return EncryptAutoConfiguration.createWarmUp(reactiveEncryption.getEventListener(), properties);
+    }
+}
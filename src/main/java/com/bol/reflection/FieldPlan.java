@@ -0,0 +1,90 @@
+package com.bol.reflection;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Immutable, array-based form of the Node tree of a class, as interpreted by CachedEncryptionEventListener on every event.
+ * <p>
+ * A plan describes one level of a document: its i-th entry is the field `documentNames[i]` of kind `tags[i]`. For
+ * DOCUMENT entries, `next[i]` is the plan of the sub-document. For LIST and MAP entries, `next[i]` is a single-entry
+ * plan describing their elements (with a null name), so that nested collections need no special casing.
+ * Recursive classes compile to cyclic plans, just like their Node trees.
+ */
+public final class FieldPlan {
+    public static final int DIRECT = 0;
+    public static final int LAZY = 1;
+    public static final int LIST = 2;
+    public static final int MAP = 3;
+    public static final int DOCUMENT = 4;
+    /** a sub-document to be crypted according to the plan of its _class, `next[i]` without one */
+    public static final int POLYMORPHIC = 5;
+
+    public static final FieldPlan EMPTY = new FieldPlan(0);
+
+    public final int[] tags;
+    public final String[] documentNames;
+    public final String[] fieldNames;
+    public final FieldPlan[] next;
+    /** for DIRECT and LAZY entries of @BlindIndex fields, the document name of their index; null otherwise */
+    public final String[] blindIndexNames;
+    public final int[] blindIndexLengths;
+    /** for DIRECT entries of @Deterministic fields, true */
+    public final boolean[] deterministic;
+
+    private FieldPlan(int size) {
+        tags = new int[size];
+        documentNames = new String[size];
+        fieldNames = new String[size];
+        next = new FieldPlan[size];
+        blindIndexNames = new String[size];
+        blindIndexLengths = new int[size];
+        deterministic = new boolean[size];
+    }
+
+    public static FieldPlan compile(List<Node> nodes) {
+        if (nodes.isEmpty()) return EMPTY;
+        return compile(nodes, new IdentityHashMap<>());
+    }
+
+    // keyed by identity of the children list, as that's what ReflectionCache shares between recursive occurrences
+    private static FieldPlan compile(List<Node> nodes, IdentityHashMap<List<Node>, FieldPlan> compiled) {
+        FieldPlan plan = compiled.get(nodes);
+        if (plan != null) return plan;
+
+        plan = new FieldPlan(nodes.size());
+        compiled.put(nodes, plan);
+
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            plan.tags[i] = tag(node.type);
+            plan.documentNames[i] = node.documentName != null ? node.documentName.intern() : null;
+            plan.fieldNames[i] = node.fieldName;
+            plan.blindIndexNames[i] = node.blindIndexName;
+            plan.blindIndexLengths[i] = node.blindIndexLength;
+            plan.deterministic[i] = node.deterministic;
+            if (node.type != Node.Type.DIRECT && node.type != Node.Type.LAZY) plan.next[i] = compile(node.children, compiled);
+        }
+
+        return plan;
+    }
+
+    static int tag(Node.Type type) {
+        switch (type) {
+            case DIRECT:
+                return DIRECT;
+            case LAZY:
+                return LAZY;
+            case LIST:
+                return LIST;
+            case MAP:
+                return MAP;
+            case DOCUMENT:
+                return DOCUMENT;
+            case POLYMORPHIC:
+                return POLYMORPHIC;
+            default:
+                throw new IllegalArgumentException("Unknown node type " + type);
+        }
+    }
+}
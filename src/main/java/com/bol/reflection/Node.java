@@ -1,5 +1,9 @@
 package com.bol.reflection;
 
+import com.bol.secure.BlindIndex;
+import com.bol.secure.BlindIndexer;
+import com.bol.secure.Deterministic;
+
 import java.lang.reflect.Field;
 import java.util.List;
 
@@ -9,6 +13,11 @@ public class Node {
     public final List<Node> children;
     public final Type type;
     public final Field field;
+    /** for @BlindIndex fields, the document name of their index; null otherwise */
+    public final String blindIndexName;
+    public final int blindIndexLength;
+    /** for DIRECT fields with @Deterministic: crypt with DeterministicEncryption instead of CryptVault */
+    public final boolean deterministic;
 
     public Node(String fieldName, List<Node> children, Type type) {
         this.fieldName = fieldName;
@@ -16,6 +25,9 @@ public class Node {
         this.children = children;
         this.type = type;
         this.field = null;
+        this.blindIndexName = null;
+        this.blindIndexLength = 0;
+        this.deterministic = false;
     }
 
     public Node(String fieldName, String documentName, List<Node> children, Type type) {
@@ -24,6 +36,9 @@ public class Node {
         this.children = children;
         this.type = type;
         this.field = null;
+        this.blindIndexName = null;
+        this.blindIndexLength = 0;
+        this.deterministic = false;
     }
 
     public Node(String fieldName, String documentName, List<Node> children, Type type, Field field) {
@@ -32,17 +47,26 @@ public class Node {
         this.children = children;
         this.type = type;
         this.field = field;
+        BlindIndex blindIndex = (type == Type.DIRECT || type == Type.LAZY) ? field.getAnnotation(BlindIndex.class) : null;
+        this.blindIndexName = blindIndex != null ? BlindIndexer.indexName(field) : null;
+        this.blindIndexLength = blindIndex != null ? blindIndex.length() : 0;
+        this.deterministic = type == Type.DIRECT && field.isAnnotationPresent(Deterministic.class);
+        if (type == Type.LAZY && field.isAnnotationPresent(Deterministic.class)) throw new IllegalArgumentException("@Deterministic is not supported on LazyEncrypted fields");
     }
 
     public enum Type {
         /** field with @Encrypted annotation present - to be crypted directly */
         DIRECT,
+        /** field with @Encrypted annotation present, of type LazyEncrypted - to be decrypted on first access */
+        LAZY,
         /** field is a BasicDBList, descend */
         LIST,
         /** field is a Map, need to descend on its values */
         MAP,
         /** field is a sub-document, descend */
-        DOCUMENT
+        DOCUMENT,
+        /** field is a sub-document that may be a subclass; descend according to its _class */
+        POLYMORPHIC
     }
 
     @Override
@@ -53,6 +77,8 @@ public class Node {
                 ", children=" + children +
                 ", type=" + type +
                 ", field=" + field +
+                (blindIndexName != null ? ", blindIndexName='" + blindIndexName + '\'' : "") +
+                (deterministic ? ", deterministic" : "") +
                 '}';
     }
 
@@ -1,6 +1,7 @@
 package com.bol.reflection;
 
 import com.bol.secure.FieldEncryptedPredicate;
+import com.bol.secure.LazyEncrypted;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.data.mongodb.core.mapping.Field;
@@ -11,29 +12,75 @@ import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 public class ReflectionCache {
 
     private static final Logger LOG = LoggerFactory.getLogger(ReflectionCache.class);
 
     private final ConcurrentHashMap<Class<?>, List<Node>> reflectionCache = new ConcurrentHashMap<>();
+    // builds of reflectRecursive() in progress, by the class they were requested for
+    private final ConcurrentHashMap<Class<?>, FutureTask<List<Node>>> builds = new ConcurrentHashMap<>();
     private final FieldEncryptedPredicate fieldEncryptedPredicate;
+    private final boolean polymorphic;
 
     public ReflectionCache(FieldEncryptedPredicate fieldEncryptedPredicate) {
+        this(fieldEncryptedPredicate, false);
+    }
+
+    /** @param polymorphic whether reflectRecursive() should emit POLYMORPHIC nodes for sub-documents that may hold subclasses */
+    public ReflectionCache(FieldEncryptedPredicate fieldEncryptedPredicate, boolean polymorphic) {
         this.fieldEncryptedPredicate = fieldEncryptedPredicate;
+        this.polymorphic = polymorphic;
     }
 
     // used by CachedEncryptionEventListener to gather metadata of a class and all it fields, recursively.
+    // Distinct classes are built concurrently; threads asking for the same class wait for a single build.
     public List<Node> reflectRecursive(Class<?> objectClass) {
         List<Node> nodes = reflectionCache.get(objectClass);
         if (nodes != null) return nodes;
 
-        synchronized (this) {
-            return buildRecursive(objectClass, new HashMap<>());
+        FutureTask<List<Node>> task = new FutureTask<>(() -> buildAndPublish(objectClass));
+        FutureTask<List<Node>> running = builds.putIfAbsent(objectClass, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                builds.remove(objectClass, task);
+            }
+        }
+
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reflecting " + objectClass.getName(), e);
         }
     }
 
-    // building is necessary to avoid putting half-processed data in `reflectionCache` (where it would be returned to other threads)
+    // A builder never waits for other builds, so classes referencing each other can't deadlock; instead, it builds
+    // what's not published yet itself. Nodes are published only once all of them are complete, so other threads
+    // never see half-processed data.
+    private List<Node> buildAndPublish(Class<?> objectClass) {
+        HashMap<Class<?>, List<Node>> built = new HashMap<>();
+        buildRecursive(objectClass, built);
+
+        for (Map.Entry<Class<?>, List<Node>> entry : built.entrySet()) {
+            reflectionCache.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+
+        List<Node> nodes = reflectionCache.get(objectClass);
+        return nodes != null ? nodes : Collections.emptyList();
+    }
+
+    // `building` holds both the classes being processed and the ones processed during this build
     private List<Node> buildRecursive(Class<?> objectClass, HashMap<Class<?>, List<Node>> building) {
         if (isPrimitive(objectClass)) return Collections.emptyList();
 
@@ -55,7 +102,7 @@ public class ReflectionCache {
 
                 if (fieldEncryptedPredicate.test(field)) {
                     // direct @Encrypted annotation - crypt the corresponding field of BasicDbObject
-                    nodes.add(new Node(fieldName, documentName, Collections.emptyList(), Node.Type.DIRECT, field));
+                    nodes.add(new Node(fieldName, documentName, Collections.emptyList(), directType(field), field));
 
                 } else {
                     Class<?> fieldType = field.getType();
@@ -72,7 +119,8 @@ public class ReflectionCache {
                     } else {
                         // descending into sub-documents
                         List<Node> children = buildRecursive(fieldType, building);
-                        if (!children.isEmpty()) nodes.add(new Node(fieldName, documentName, children, Node.Type.DOCUMENT, field));
+                        if (isPolymorphic(fieldType)) nodes.add(new Node(fieldName, documentName, children, Node.Type.POLYMORPHIC, field));
+                        else if (!children.isEmpty()) nodes.add(new Node(fieldName, documentName, children, Node.Type.DOCUMENT, field));
                     }
                 }
 
@@ -81,14 +129,18 @@ public class ReflectionCache {
             }
         });
 
-        reflectionCache.put(objectClass, nodes);
-
         return nodes;
     }
 
     // used by ReflectionEncryptionEventListener to map a single Document
     public List<Node> reflectSingle(Class<?> objectClass) {
-        return reflectionCache.computeIfAbsent(objectClass, this::buildSingle);
+        List<Node> nodes = reflectionCache.get(objectClass);
+        if (nodes != null) return nodes;
+
+        // not computeIfAbsent(), so reflection doesn't run while holding a lock of the map
+        nodes = buildSingle(objectClass);
+        List<Node> previous = reflectionCache.putIfAbsent(objectClass, nodes);
+        return previous != null ? previous : nodes;
     }
 
     // FIXME: this is a slimmed down copy-paste of buildRecursive(); find a way to bring Cached and Reflective listener closer together!
@@ -103,14 +155,19 @@ public class ReflectionCache {
                 if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())) return;
 
                 String documentName = parseFieldAnnotation(field, fieldName);
+                // type discriminator, never crypted
+                if (documentName.equals("_class")) return;
 
                 if (fieldEncryptedPredicate.test(field)) {
                     // direct @Encrypted annotation - crypt the corresponding field of BasicDbObject
-                    nodes.add(new Node(fieldName, documentName, Collections.emptyList(), Node.Type.DIRECT, field));
+                    nodes.add(new Node(fieldName, documentName, Collections.emptyList(), directType(field), field));
 
                 } else {
                     Class<?> fieldType = field.getType();
 
+                    // nothing to descend into
+                    if (isPrimitive(fieldType)) return;
+
                     if (Collection.class.isAssignableFrom(fieldType)) {
                         nodes.add(new Node(fieldName, documentName, Collections.emptyList(), Node.Type.LIST, field));
 
@@ -130,9 +187,14 @@ public class ReflectionCache {
         return nodes;
     }
 
+    static Node.Type directType(java.lang.reflect.Field field) {
+        return LazyEncrypted.class.isAssignableFrom(field.getType()) ? Node.Type.LAZY : Node.Type.DIRECT;
+    }
+
     List<Node> processParameterizedTypes(Type type, HashMap<Class<?>, List<Node>> building) {
         if (type instanceof Class) {
             List<Node> children = buildRecursive((Class<?>) type, building);
+            if (isPolymorphic((Class<?>) type)) return Collections.singletonList(new Node(null, children, Node.Type.POLYMORPHIC));
             if (!children.isEmpty()) return Collections.singletonList(new Node(null, children, Node.Type.DOCUMENT));
 
         } else if (type instanceof ParameterizedType) {
@@ -168,7 +230,7 @@ public class ReflectionCache {
     /**
      * process custom name in @Field annotation
      */
-    static String parseFieldAnnotation(java.lang.reflect.Field field, String fieldName) {
+    public static String parseFieldAnnotation(java.lang.reflect.Field field, String fieldName) {
         Field fieldAnnotation = field.getAnnotation(Field.class);
         if (fieldAnnotation != null) {
             String name = fieldAnnotation.name();
@@ -182,6 +244,14 @@ public class ReflectionCache {
         return fieldName;
     }
 
+    // whether values of a field of this type may be subclasses, carrying their own encrypted fields
+    private boolean isPolymorphic(Class<?> clazz) {
+        if (!polymorphic) return false;
+        if (isPrimitive(clazz) || clazz.isArray() || clazz.isEnum() || Modifier.isFinal(clazz.getModifiers())) return false;
+        // JDK types are not mapped as sub-documents, except for the catch-all Object
+        return clazz == Object.class || !clazz.getName().startsWith("java.");
+    }
+
     // same as ClassUtils.isPrimitiveOrWrapper(), but also includes String
     public static boolean isPrimitive(Class<?> clazz) {
         return clazz.isPrimitive() || primitiveClasses.contains(clazz);
@@ -2,17 +2,43 @@ package com.bol.secure;
 
 import com.bol.crypt.CryptOperationException;
 import com.bol.crypt.CryptVault;
-import com.mongodb.BasicDBList;
-import com.mongodb.BasicDBObject;
-import org.bson.*;
+import org.bson.Document;
 import org.bson.types.Binary;
+import org.springframework.data.mongodb.core.convert.MongoTypeMapper;
 import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.TypeInformation;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class AbstractEncryptionEventListener<T> extends AbstractMongoEventListener {
     protected CryptVault cryptVault;
     private boolean silentDecryptionFailure = false;
+    private int parallelCryptThreshold = 0;
+    private Executor parallelCryptExecutor = ForkJoinPool.commonPool();
+    private final ThreadLocal<FieldSelection> decryptSelection = new ThreadLocal<>();
+    private DirtyTracker dirtyTracker;
+    private MongoTypeMapper typeMapper;
+    private CryptMetrics metrics = CryptMetrics.NOOP;
+    private BlindIndexer blindIndexer;
+    private DeterministicEncryption deterministicEncryption;
+    // _class discriminator -> class
+    private final ConcurrentHashMap<String, Class<?>> discriminators = new ConcurrentHashMap<>();
+
+    // no more distinct _class values are cached than this; they come from the documents, after all
+    static final int MAX_CACHED_DISCRIMINATORS = 1024;
+
+    final CodecPool<Encoder> encoders = new CodecPool<>(Encoder::new, encoder -> encoder.codec.isReusable());
+    final CodecPool<Decoder> decoders = new CodecPool<>(Decoder::new, decoder -> decoder.codec.isReusable());
 
     public AbstractEncryptionEventListener(CryptVault cryptVault) {
         this.cryptVault = cryptVault;
@@ -23,54 +49,414 @@ public class AbstractEncryptionEventListener<T> extends AbstractMongoEventListen
         return (T) this;
     }
 
-    class Decoder extends BasicBSONDecoder implements Function<Object, Object> {
+    /**
+     * Crypt the fields of documents with at least `leafThreshold` encrypted fields in parallel, on the common ForkJoinPool:
+     * the fields up to the threshold on the calling thread, the rest in chunks on the pool. The event still returns only
+     * after all fields are crypted. 0 disables parallel crypting (default).
+     */
+    public T withParallelCrypt(int leafThreshold) {
+        return withParallelCrypt(leafThreshold, ForkJoinPool.commonPool());
+    }
+
+    public T withParallelCrypt(int leafThreshold, Executor executor) {
+        this.parallelCryptThreshold = leafThreshold;
+        this.parallelCryptExecutor = executor;
+        return (T) this;
+    }
+
+    /**
+     * Remember the ciphertexts of the encrypted fields of the last `maxDocuments` loaded or saved documents, so that
+     * saving a document again reuses the ciphertext of fields that did not change, instead of encrypting them again.
+     * Documents are identified by collection and _id. 0 disables dirty tracking (default).
+     */
+    public T withDirtyTracking(int maxDocuments) {
+        this.dirtyTracker = maxDocuments > 0 ? new DirtyTracker(maxDocuments) : null;
+        return (T) this;
+    }
+
+    /**
+     * Resolve the _class field of polymorphic documents with `typeMapper` (e.g. that of the MappingMongoConverter), so
+     * that type aliases are supported too. By default, _class is taken as a class name.
+     */
+    public T withTypeMapper(MongoTypeMapper typeMapper) {
+        this.typeMapper = typeMapper;
+        discriminators.clear();
+        return (T) this;
+    }
+
+    /** report timings, sizes and failures to `metrics`, e.g. a {@link MicrometerCryptMetrics} */
+    public T withMetrics(CryptMetrics metrics) {
+        this.metrics = metrics != null ? metrics : CryptMetrics.NOOP;
+        return (T) this;
+    }
+
+    /** compute the blind indexes of @BlindIndex fields on save with `blindIndexer` */
+    public T withBlindIndexer(BlindIndexer blindIndexer) {
+        this.blindIndexer = blindIndexer;
+        return (T) this;
+    }
+
+    /** crypt @Deterministic fields with `deterministicEncryption` */
+    public T withDeterministicEncryption(DeterministicEncryption deterministicEncryption) {
+        this.deterministicEncryption = deterministicEncryption;
+        return (T) this;
+    }
+
+    /**
+     * Runs `action`, decrypting only the given dot-separated document paths (e.g. "address.street") of the documents
+     * loaded by it on the current thread. Encrypted fields outside these paths are left untouched, as Binary, so
+     * either leave them out of the projection or map them to a type that can hold Binary. LazyEncrypted fields are
+     * always wrapped, so they can be decrypted later.
+     */
+    public <R> R decryptOnly(Collection<String> paths, Supplier<R> action) {
+        FieldSelection previous = decryptSelection.get();
+        decryptSelection.set(FieldSelection.of(paths));
+        try {
+            return action.get();
+        } finally {
+            if (previous == null) decryptSelection.remove();
+            else decryptSelection.set(previous);
+        }
+    }
+
+    /** same as {@link #decryptOnly(Collection, Supplier)}, with the paths included by the projection of `query`, if any */
+    public <R> R decryptOnly(Query query, Supplier<R> action) {
+        List<String> paths = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : query.getFieldsObject().entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Number && ((Number) value).intValue() != 0 || Boolean.TRUE.equals(value)) paths.add(entry.getKey());
+        }
+
+        // no projection or exclusions only: all fields are returned, decrypt all
+        if (paths.isEmpty()) return action.get();
+        return decryptOnly(paths, action);
+    }
+
+    /**
+     * Builds the metadata of `clazz` ahead of its first load or save, see {@link EncryptionWarmUp}.
+     * @return the number of encrypted fields found
+     */
+    public int prepare(Class<?> clazz) {
+        return 0;
+    }
+
+    /** the class referenced by `className`, the _class field of `document` */
+    Class<?> discriminatedClass(String className, Document document) {
+        Class<?> clazz = discriminators.get(className);
+        if (clazz != null) return clazz;
+
+        clazz = resolveClass(className, document);
+        if (discriminators.size() < MAX_CACHED_DISCRIMINATORS) discriminators.putIfAbsent(className, clazz);
+        return clazz;
+    }
+
+    private Class<?> resolveClass(String className, Document document) {
+        MongoTypeMapper typeMapper = this.typeMapper;
+        if (typeMapper != null) {
+            TypeInformation<?> type = typeMapper.readType(document);
+            if (type != null) return type.getType();
+        }
+
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException ignored) {
+            throw new IllegalArgumentException("Unknown _class field reference: " + className);
+        }
+    }
+
+    FieldSelection decryptSelection() {
+        FieldSelection selection = decryptSelection.get();
+        return selection != null ? selection : FieldSelection.ALL;
+    }
+
+    /** the dirty tracking state of a document being loaded, or null */
+    DirtyTracker.TrackedDocument trackLoad(String collection, Document document) {
+        DirtyTracker tracker = dirtyTracker;
+        return tracker != null ? tracker.loading(collection, document.get("_id")) : null;
+    }
+
+    /** the dirty tracking state of a document being saved, or null */
+    DirtyTracker.TrackedDocument trackSave(String collection, Document document) {
+        DirtyTracker tracker = dirtyTracker;
+        return tracker != null ? tracker.saving(collection, document.get("_id")) : null;
+    }
+
+    /**
+     * runs `walker` on a document of `collection` with a codec from `codecs`, or in parallel mode, crypts the leaves
+     * it finds in parallel
+     */
+    <C extends Crypter> void crypt(CodecPool<C> codecs, String collection, Class<?> entityClass, DirtyTracker.TrackedDocument tracked, Consumer<Crypter> walker) {
+        CryptMetrics metrics = this.metrics;
+        long start = metrics != CryptMetrics.NOOP ? System.nanoTime() : 0;
+        CryptEvent event = CryptEvent.start();
+
+        int fields;
+        long bytes;
+        int keyVersion;
+        try {
+            if (parallelCryptThreshold > 0) {
+                ParallelCrypt<C> parallelCrypt = new ParallelCrypt<>(codecs, (Object) codecs == encoders, parallelCryptThreshold, collection, tracked);
+                parallelCrypt.run(walker, parallelCryptExecutor);
+                fields = parallelCrypt.fields;
+                bytes = parallelCrypt.bytes;
+                keyVersion = parallelCrypt.keyVersion;
+            } else {
+                C codec = codecs.borrow();
+                codec.borrowed(collection, tracked);
+                try {
+                    walker.accept(codec);
+                    fields = codec.fields;
+                    bytes = codec.bytes;
+                    keyVersion = codec.keyVersion;
+                } finally {
+                    codec.released();
+                    codecs.release(codec);
+                }
+            }
+        } finally {
+            if (tracked != null) tracked.done();
+        }
+
+        boolean encrypt = (Object) codecs == encoders;
+        if (metrics != CryptMetrics.NOOP) metrics.documentCrypted(collection, encrypt, fields, System.nanoTime() - start);
+
+        if (event != null && event.shouldCommit()) {
+            event.collection = collection;
+            event.entityClass = entityClass;
+            event.operation = encrypt ? "encrypt" : "decrypt";
+            event.fields = fields;
+            event.bytes = bytes;
+            event.keyVersion = keyVersion;
+            event.commit();
+        }
+    }
+
+    /** on save, puts the blind index of `value`, the plaintext of a @BlindIndex field, into `document` */
+    void blindIndex(Document document, String indexName, int length, Object value, Function<Object, Object> crypt) {
+        if (!(crypt instanceof Crypter) || !((Crypter) crypt).encrypting()) return;
+
+        BlindIndexer indexer = blindIndexer;
+        if (indexer == null) throw new IllegalStateException("@BlindIndex field, but no BlindIndexer configured");
+
+        // loaded and not replaced: the index still has to be written, as the whole document is, but needs no decryption
+        if (value instanceof LazyEncrypted) {
+            LazyEncrypted<?> lazy = (LazyEncrypted<?>) value;
+            if (lazy.index != null) {
+                document.put(indexName, lazy.index);
+                return;
+            }
+            value = lazy.get();
+        }
+        if (value != null) document.put(indexName, indexer.index(value, length));
+    }
+
+    DeterministicEncryption deterministicEncryption() {
+        DeterministicEncryption encryption = deterministicEncryption;
+        if (encryption == null) throw new IllegalStateException("@Deterministic field, but no DeterministicEncryption configured");
+        return encryption;
+    }
+
+    /**
+     * LAZY fields: on load, wrap the ciphertext in a LazyEncrypted so that decryption happens on first access.
+     * The result is still passed through the Decoder/Encoder, which leave LazyEncrypted alone/unwrap it, respectively.
+     * As wrapping decrypts nothing, the walkers wrap LAZY fields even outside the paths selected by decryptOnly().
+     */
+    Object lazy(Object value) {
+        return lazy(value, null);
+    }
+
+    /** same as lazy(value), keeping `index`, the loaded blind index of the field, for the next save */
+    Object lazy(Object value, Object index) {
+        Binary loadedIndex = index instanceof Binary ? (Binary) index : null;
+        if (value instanceof Binary) return new LazyEncrypted<>((Binary) value, loadedIndex, this::decryptLazily);
+        if (value instanceof byte[]) return new LazyEncrypted<>(new Binary((byte[]) value), loadedIndex, this::decryptLazily);
+        if (value instanceof Document) throw new IllegalStateException("LazyEncrypted mapped as sub-document; register LazyEncrypted.Writer in MongoCustomConversions");
+        return value;
+    }
+
+    Object decryptLazily(Binary encrypted) {
+        Decoder decoder = decoders.borrow();
+        try {
+            return decoder.apply(encrypted);
+        } finally {
+            decoders.release(decoder);
+        }
+    }
+
+    /** number of events served by a reused Encoder/Decoder */
+    public long getCodecReuseHits() {
+        return encoders.hits.sum() + decoders.hits.sum();
+    }
+
+    /** number of events that needed a newly created Encoder/Decoder */
+    public long getCodecReuseMisses() {
+        return encoders.misses.sum() + decoders.misses.sum();
+    }
+
+    public double getCodecReuseHitRate() {
+        long hits = getCodecReuseHits();
+        long total = hits + getCodecReuseMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /** number of fields saved with their previous ciphertext, thanks to dirty tracking */
+    public long getDirtyTrackingReuses() {
+        DirtyTracker tracker = dirtyTracker;
+        return tracker != null ? tracker.reused.sum() : 0;
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+
+    static int keyVersion(Binary encrypted) {
+        return CryptVault.fromSignedByte(encrypted.getData()[0]);
+    }
+
+    /**
+     * The key version is the first byte of the ciphertext, and the default key version can change at runtime, so it
+     * is probed by encrypting nothing. That's a whole encryption, so callers cache it per document, not per value.
+     */
+    static int defaultKeyVersion(CryptVault cryptVault) {
+        return CryptVault.fromSignedByte(cryptVault.encrypt(EMPTY)[0]);
+    }
+
+    int defaultKeyVersion() {
+        return defaultKeyVersion(cryptVault);
+    }
+
+    /**
+     * Crypts a single value, and carries the state the walkers collect per document (fields, bytes, key versions).
+     * Implemented by Encoder and Decoder, by ParallelCrypt if enabled, and by KeyRotation.
+     */
+    abstract static class Crypter implements Function<Object, Object> {
+        /** collection of the document being crypted, or null; set while borrowed */
+        String collection;
+        /** dirty tracking state of the document being crypted, or null; set while borrowed */
+        DirtyTracker.TrackedDocument tracked;
+        /** number of encrypted fields walked since borrowed */
+        int fields;
+        /** serialized size of the plaintexts crypted since borrowed */
+        long bytes;
+        /** key version of the last value crypted since borrowed, -1 if none */
+        int keyVersion = -1;
+        /** default key version of the CryptVault, probed at most once since borrowed; -1 if not yet */
+        int defaultKeyVersion = -1;
+
+        /** true on save */
+        boolean encrypting() {
+            return false;
+        }
+
+        /** same as apply(), for @Deterministic fields */
+        abstract Object deterministic(Object o);
+
+        void borrowed(String collection, DirtyTracker.TrackedDocument tracked) {
+            this.collection = collection;
+            this.tracked = tracked;
+            this.fields = 0;
+            this.bytes = 0;
+            this.keyVersion = -1;
+            this.defaultKeyVersion = -1;
+        }
+
+        void released() {
+            this.collection = null;
+            this.tracked = null;
+        }
+    }
+
+    class Decoder extends Crypter {
+        final BsonValueCodec codec = new BsonValueCodec();
+
         public Object apply(Object o) {
+            return decrypt(o, false);
+        }
+
+        @Override
+        Object deterministic(Object o) {
+            return decrypt(o, true);
+        }
+
+        private Object decrypt(Object o, boolean deterministic) {
+            fields++;
+            if (o instanceof LazyEncrypted) return o;
+
             byte[] data;
 
             if (o instanceof Binary) data = ((Binary) o).getData();
             else if (o instanceof byte[]) data = (byte[]) o;
-            else if (!silentDecryptionFailure) throw new IllegalStateException("Got " + o.getClass() + ", expected: Binary or byte[]");
-            else return o;    // e.g. crypted field not encrypted, other issues - we do our best
+            else {
+                metrics.decryptionFailed(collection, silentDecryptionFailure);
+                if (!silentDecryptionFailure) throw new IllegalStateException("Got " + o.getClass() + ", expected: Binary or byte[]");
+                return o;    // e.g. crypted field not encrypted, other issues - we do our best
+            }
 
             try {
-                byte[] serialized = cryptVault.decrypt((data));
-                BSONCallback bsonCallback = new BasicDBObjectCallback();
-                decode(serialized, bsonCallback);
-                BSONObject deserialized = (BSONObject) bsonCallback.get();
-                return deserialized.get("");
+                byte[] serialized = deterministic ? deterministicEncryption().decrypt(data) : cryptVault.decrypt(data);
+                keyVersion = CryptVault.fromSignedByte(data[0]);
+                bytes += serialized.length;
+                metrics.fieldDecrypted(keyVersion, data.length, serialized.length);
+                if (tracked != null && !deterministic) tracked.record(serialized, o instanceof Binary ? (Binary) o : new Binary(data));
+                return codec.deserialize(serialized);
             } catch (CryptOperationException e) {
+                metrics.decryptionFailed(collection, silentDecryptionFailure);
                 if (silentDecryptionFailure) return null;
                 throw e;
             }
         }
     }
 
-    /**
-     * BasicBSONEncoder returns BasicBSONObject which makes mongotemplate converter choke :(
-     */
-    class BasicDBObjectCallback extends BasicBSONCallback {
+    class Encoder extends Crypter {
+        final BsonValueCodec codec = new BsonValueCodec();
+
         @Override
-        public BSONObject create() {
-            return new BasicDBObject();
+        boolean encrypting() {
+            return true;
         }
 
-        @Override
-        protected BSONObject createList() {
-            return new BasicDBList();
+        public Object apply(Object o) {
+            fields++;
+            if (o instanceof LazyEncrypted) {
+                LazyEncrypted<?> lazy = (LazyEncrypted<?>) o;
+                // loaded and never replaced: no need to decrypt and encrypt it again, unless the key is rotated
+                if (lazy.encrypted != null && keyVersion(lazy.encrypted) == defaultKeyVersion()) return lazy.encrypted;
+                o = lazy.get();
+                if (o == null) return null;
+            }
+
+            byte[] serialized = codec.serialize(o);
+            if (tracked == null) return encrypt(serialized);
+
+            Binary encrypted = tracked.reuse(serialized, this::defaultKeyVersion);
+            if (encrypted == null) {
+                encrypted = encrypt(serialized);
+                tracked.record(serialized, encrypted);
+            }
+            return encrypted;
         }
 
+        int defaultKeyVersion() {
+            if (defaultKeyVersion < 0) defaultKeyVersion = AbstractEncryptionEventListener.defaultKeyVersion(cryptVault);
+            return defaultKeyVersion;
+        }
+
+        // equal plaintexts yield equal ciphertexts anyway, there's nothing for dirty tracking to reuse
         @Override
-        public BSONCallback createBSONCallback() {
-            return new BasicDBObjectCallback();
+        Object deterministic(Object o) {
+            fields++;
+            byte[] serialized = codec.serialize(o);
+            byte[] encrypted = deterministicEncryption().encrypt(serialized);
+            keyVersion = CryptVault.fromSignedByte(encrypted[0]);
+            bytes += serialized.length;
+            metrics.fieldEncrypted(keyVersion, serialized.length, encrypted.length);
+            return new Binary(encrypted);
         }
-    }
 
-    class Encoder extends BasicBSONEncoder implements Function<Object, Object> {
-        public Object apply(Object o) {
-            // we need to put even BSONObject and BSONList in a wrapping object before serialization, otherwise the type information is not encoded.
-            // this is not particularly effective, however, it is the same that mongo driver itself uses on the wire, so it has 100% compatibility w.r.t de/serialization
-            byte[] serialized = encode(new BasicBSONObject("", o));
-            return new Binary(cryptVault.encrypt(serialized));
+        private Binary encrypt(byte[] serialized) {
+            byte[] encrypted = cryptVault.encrypt(serialized);
+            keyVersion = CryptVault.fromSignedByte(encrypted[0]);
+            bytes += serialized.length;
+            metrics.fieldEncrypted(keyVersion, serialized.length, encrypted.length);
+            return new Binary(encrypted);
         }
     }
 }
@@ -0,0 +1,24 @@
+package com.bol.secure;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * On an @Encrypted field: on save, also put a keyed hash (HMAC-SHA256, truncated to `length` bytes) of its plaintext
+ * into a sibling field, so that it can be indexed and looked up by equality, see {@link BlindIndexer#criteria}.
+ * <p>
+ * The hash is truncated on purpose: a lookup may then also match other values, which have to be filtered out after
+ * loading (and decrypting) the matches. The shorter it is, the less it tells about equal values across documents.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface BlindIndex {
+
+    /** name of the sibling field in the document; by default, that of the encrypted field + "_bidx" */
+    String value() default "";
+
+    /** number of bytes of the hash kept, 1 to 32 */
+    int length() default 16;
+}
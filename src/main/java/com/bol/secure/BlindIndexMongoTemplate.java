@@ -0,0 +1,230 @@
+package com.bol.secure;
+
+import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.data.domain.ScrollPosition;
+import org.springframework.data.domain.Window;
+import org.springframework.data.mongodb.MongoDatabaseFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.NearQuery;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * MongoTemplate that rewrites equality and $in criteria on @BlindIndex properties to criteria on their blind indexes,
+ * and drops the entities found by hash collisions only, after they are decrypted. Queries may thus use the plain
+ * values of encrypted properties, e.g. `query(where("ssn").is(ssn))`, as may derived repository queries, e.g.
+ * `findBySsn(ssn)`.
+ * <p>
+ * Rewritten are find(), findOne(), exists(), count() and stream() with an entity class, and the fluent query() API
+ * that repositories use. Updates and removes are not rewritten, as they can't skip collisions: find the entities to
+ * change first. As collisions are dropped after loading, a limited query may return fewer entities than its limit,
+ * and count() and exists() load the candidates.
+ * <p>
+ * With a DeterministicEncryption, equality and $in criteria on @Deterministic properties are rewritten as well, to
+ * match their ciphertexts under every key version, e.g. `findByTaxId(taxId)`.
+ */
+public class BlindIndexMongoTemplate extends MongoTemplate {
+    private final BlindIndexer blindIndexer;
+    private final DeterministicEncryption deterministicEncryption;
+
+    public BlindIndexMongoTemplate(MongoDatabaseFactory mongoDbFactory, MongoConverter mongoConverter, BlindIndexer blindIndexer) {
+        this(mongoDbFactory, mongoConverter, blindIndexer, null);
+    }
+
+    public BlindIndexMongoTemplate(MongoDatabaseFactory mongoDbFactory, MongoConverter mongoConverter, BlindIndexer blindIndexer, DeterministicEncryption deterministicEncryption) {
+        super(mongoDbFactory, mongoConverter);
+        this.blindIndexer = blindIndexer;
+        this.deterministicEncryption = deterministicEncryption;
+    }
+
+    /** null if `query` has no criteria on @BlindIndex (or @Deterministic) properties of `entityClass` */
+    BlindIndexQuery rewrite(Query query, Class<?> entityClass) {
+        return BlindIndexQuery.rewrite(blindIndexer, deterministicEncryption, entityClass, query, getConverter()::convertToMongoType);
+    }
+
+    @Override
+    public <T> List<T> find(Query query, Class<T> entityClass, String collectionName) {
+        BlindIndexQuery blindIndexQuery = rewrite(query, entityClass);
+        if (blindIndexQuery == null) return super.find(query, entityClass, collectionName);
+
+        return blindIndexQuery.filter(super.find(blindIndexQuery.getQuery(), entityClass, collectionName));
+    }
+
+    @Override
+    public <T> T findOne(Query query, Class<T> entityClass, String collectionName) {
+        BlindIndexQuery blindIndexQuery = rewrite(query, entityClass);
+        if (blindIndexQuery == null) return super.findOne(query, entityClass, collectionName);
+
+        try (Stream<T> candidates = super.stream(blindIndexQuery.getQuery(), entityClass, collectionName)) {
+            return candidates.filter(blindIndexQuery::matches).findFirst().orElse(null);
+        }
+    }
+
+    @Override
+    public boolean exists(Query query, Class<?> entityClass, String collectionName) {
+        BlindIndexQuery blindIndexQuery = entityClass != null ? rewrite(query, entityClass) : null;
+        if (blindIndexQuery == null) return super.exists(query, entityClass, collectionName);
+        if (blindIndexQuery.isExact()) return super.exists(blindIndexQuery.getQuery(), entityClass, collectionName);
+        return findOne(query, entityClass, collectionName) != null;
+    }
+
+    @Override
+    public long count(Query query, Class<?> entityClass, String collectionName) {
+        BlindIndexQuery blindIndexQuery = entityClass != null ? rewrite(query, entityClass) : null;
+        if (blindIndexQuery == null) return super.count(query, entityClass, collectionName);
+        if (blindIndexQuery.isExact()) return super.count(blindIndexQuery.getQuery(), entityClass, collectionName);
+        return find(query, entityClass, collectionName).size();
+    }
+
+    @Override
+    public <T> Stream<T> stream(Query query, Class<T> entityType, String collectionName) {
+        BlindIndexQuery blindIndexQuery = rewrite(query, entityType);
+        if (blindIndexQuery == null) return super.stream(query, entityType, collectionName);
+
+        return super.stream(blindIndexQuery.getQuery(), entityType, collectionName).filter(blindIndexQuery::matches);
+    }
+
+    @Override
+    public <T> ExecutableFind<T> query(Class<T> domainType) {
+        return new BlindIndexFind<>(domainType, super.query(domainType));
+    }
+
+    /** the fluent find API, with its query rewritten by matching() */
+    private class BlindIndexFind<T> implements ExecutableFind<T> {
+        private final Class<?> domainType;
+        // at most as capable as the type returned to the caller, see the casts below
+        private final FindWithQuery<T> delegate;
+
+        BlindIndexFind(Class<?> domainType, FindWithQuery<T> delegate) {
+            this.domainType = domainType;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public FindWithProjection<T> inCollection(String collection) {
+            return new BlindIndexFind<>(domainType, ((FindWithCollection<T>) delegate).inCollection(collection));
+        }
+
+        @Override
+        public <R> FindWithQuery<R> as(Class<R> resultType) {
+            return new BlindIndexFind<>(domainType, ((FindWithProjection<T>) delegate).as(resultType));
+        }
+
+        @Override
+        public TerminatingDistinct<Object> distinct(String field) {
+            return ((FindDistinct) delegate).distinct(field);
+        }
+
+        @Override
+        public TerminatingFind<T> matching(Query query) {
+            BlindIndexQuery blindIndexQuery = rewrite(query, domainType);
+            if (blindIndexQuery == null) return delegate.matching(query);
+
+            return new BlindIndexTerminatingFind<>(delegate.matching(blindIndexQuery.getQuery()), blindIndexQuery);
+        }
+
+        @Override
+        public TerminatingFindNear<T> near(NearQuery nearQuery) {
+            return delegate.near(nearQuery);
+        }
+
+        @Override
+        public T oneValue() {
+            return delegate.oneValue();
+        }
+
+        @Override
+        public T firstValue() {
+            return delegate.firstValue();
+        }
+
+        @Override
+        public List<T> all() {
+            return delegate.all();
+        }
+
+        @Override
+        public Stream<T> stream() {
+            return delegate.stream();
+        }
+
+        @Override
+        public Window<T> scroll(ScrollPosition scrollPosition) {
+            return delegate.scroll(scrollPosition);
+        }
+
+        @Override
+        public long count() {
+            return delegate.count();
+        }
+
+        @Override
+        public boolean exists() {
+            return delegate.exists();
+        }
+    }
+
+    private static class BlindIndexTerminatingFind<T> implements TerminatingFind<T> {
+        private final TerminatingFind<T> delegate;
+        private final BlindIndexQuery blindIndexQuery;
+
+        BlindIndexTerminatingFind(TerminatingFind<T> delegate, BlindIndexQuery blindIndexQuery) {
+            this.delegate = delegate;
+            this.blindIndexQuery = blindIndexQuery;
+        }
+
+        @Override
+        public T oneValue() {
+            List<T> result = all();
+            if (result.size() > 1) throw new IncorrectResultSizeDataAccessException("Query " + blindIndexQuery.getQuery() + " returned non unique result", 1);
+            return result.isEmpty() ? null : result.get(0);
+        }
+
+        @Override
+        public T firstValue() {
+            try (Stream<T> candidates = stream()) {
+                return candidates.findFirst().orElse(null);
+            }
+        }
+
+        @Override
+        public List<T> all() {
+            return blindIndexQuery.filter(delegate.all());
+        }
+
+        @Override
+        public Stream<T> stream() {
+            return delegate.stream().filter(blindIndexQuery::matches);
+        }
+
+        @Override
+        public Window<T> scroll(ScrollPosition scrollPosition) {
+            Window<T> window = delegate.scroll(scrollPosition);
+
+            // positions still point into the unfiltered window
+            List<T> content = new ArrayList<>(window.size());
+            List<Integer> positions = new ArrayList<>(window.size());
+            for (int i = 0; i < window.size(); i++) {
+                T entity = window.getContent().get(i);
+                if (!blindIndexQuery.matches(entity)) continue;
+                content.add(entity);
+                positions.add(i);
+            }
+            return Window.from(content, i -> window.positionAt(positions.get(i)), window.hasNext());
+        }
+
+        @Override
+        public long count() {
+            return all().size();
+        }
+
+        @Override
+        public boolean exists() {
+            return firstValue() != null;
+        }
+    }
+}
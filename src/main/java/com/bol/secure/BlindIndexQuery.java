@@ -0,0 +1,222 @@
+package com.bol.secure;
+
+import org.bson.BsonRegularExpression;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.springframework.data.mongodb.core.query.BasicQuery;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * A query with its equality criteria on @BlindIndex properties replaced by criteria on their blind indexes. As hashes
+ * collide, the entities loaded by the rewritten query have to be checked by {@link #matches(Object)}.
+ * <p>
+ * Only criteria at the top level of the query, or within $and, can be rewritten: a blind indexed property within
+ * $or or $nor, or compared by anything but equality or $in, is rejected, as it would never match anyway.
+ * <p>
+ * With a DeterministicEncryption, equality and $in criteria on @Deterministic properties are rewritten too, to $in
+ * their ciphertexts under every key version, so that documents not yet rotated to the default key are found as well.
+ * These can't collide, so they are rewritten within $or and $nor too.
+ */
+final class BlindIndexQuery {
+    private final BlindIndexer blindIndexer;
+    private final DeterministicEncryption deterministicEncryption;
+    private final Class<?> entityClass;
+    private final Function<Object, Object> toMongoType;
+    // all have to match
+    private final List<Match> matches = new ArrayList<>();
+    private boolean deterministic;
+    private Query query;
+
+    private BlindIndexQuery(BlindIndexer blindIndexer, DeterministicEncryption deterministicEncryption, Class<?> entityClass, Function<Object, Object> toMongoType) {
+        this.blindIndexer = blindIndexer;
+        this.deterministicEncryption = deterministicEncryption;
+        this.entityClass = entityClass;
+        this.toMongoType = toMongoType;
+    }
+
+    /**
+     * @param deterministicEncryption to rewrite criteria on @Deterministic properties with, or null to leave them alone
+     * @param toMongoType maps query values the same way the mapping converter maps property values, before hashing
+     * @return null if `query` has no criteria on @BlindIndex (or @Deterministic) properties of `entityClass`
+     */
+    static BlindIndexQuery rewrite(BlindIndexer blindIndexer, DeterministicEncryption deterministicEncryption, Class<?> entityClass, Query query, Function<Object, Object> toMongoType) {
+        BlindIndexQuery result = new BlindIndexQuery(blindIndexer, deterministicEncryption, entityClass, toMongoType);
+        Document criteria = result.rewrite(query.getQueryObject(), true);
+        if (result.matches.isEmpty() && !result.deterministic) return null;
+
+        result.query = copy(query, criteria);
+        return result;
+    }
+
+    Query getQuery() {
+        return query;
+    }
+
+    /** true if no entity can be found by a hash collision, as only @Deterministic criteria were rewritten */
+    boolean isExact() {
+        return matches.isEmpty();
+    }
+
+    /** false if `entity` was only found by a hash collision; results of projections to other types always match */
+    boolean matches(Object entity) {
+        if (!entityClass.isInstance(entity)) return true;
+
+        for (Match match : matches) {
+            List<Object> values = match.property.values(entity);
+            // null matches missing values, as in mongodb
+            if (values.isEmpty() ? !match.values.contains(null) : values.stream().noneMatch(match.values::contains)) return false;
+        }
+        return true;
+    }
+
+    <T> List<T> filter(List<T> entities) {
+        List<T> result = new ArrayList<>(entities.size());
+        for (T entity : entities) {
+            if (matches(entity)) result.add(entity);
+        }
+        return result;
+    }
+
+    private Document rewrite(Document criteria, boolean conjunction) {
+        Document result = new Document();
+
+        for (Map.Entry<String, Object> entry : criteria.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+
+            if (key.equals("$and") || key.equals("$or") || key.equals("$nor")) {
+                result.put(key, rewrite((Collection<?>) value, conjunction && key.equals("$and")));
+                continue;
+            }
+
+            BlindIndexer.IndexedProperty property = key.startsWith("$") ? null : blindIndexer.property(entityClass, key);
+            // null: no index was written, as there was no value to hash; the encrypted field itself is missing too
+            if (property == null || value == null) {
+                result.put(key, value);
+                continue;
+            }
+
+            if (property.deterministic) {
+                result.put(key, deterministicEncryption != null ? ciphertexts(property, value) : value);
+                continue;
+            }
+
+            if (!conjunction) throw unsupported(property, "within $or or $nor");
+
+            if (value instanceof Document && isOperator((Document) value)) {
+                Document operator = (Document) value;
+                if (operator.size() != 1) throw unsupported(property, operator.keySet().toString());
+
+                if (operator.containsKey("$eq")) {
+                    result.put(property.indexPath, equalTo(property, operator.get("$eq")));
+                } else if (operator.containsKey("$in")) {
+                    result.put(property.indexPath, new Document("$in", in(property, (Collection<?>) operator.get("$in"))));
+                } else {
+                    throw unsupported(property, operator.keySet().iterator().next());
+                }
+
+            } else if (value instanceof Pattern || value instanceof BsonRegularExpression) {
+                throw unsupported(property, "regular expressions");
+
+            } else {
+                result.put(property.indexPath, equalTo(property, value));
+            }
+        }
+
+        return result;
+    }
+
+    private List<Object> rewrite(Collection<?> criteria, boolean conjunction) {
+        List<Object> result = new ArrayList<>(criteria.size());
+        for (Object o : criteria) {
+            result.add(o instanceof Document ? rewrite((Document) o, conjunction) : o);
+        }
+        return result;
+    }
+
+    private Object equalTo(BlindIndexer.IndexedProperty property, Object value) {
+        Set<Object> values = new HashSet<>();
+        values.add(value);
+        matches.add(new Match(property, values));
+        return blindIndexer.index(toMongoType.apply(value), property.length);
+    }
+
+    private List<Object> in(BlindIndexer.IndexedProperty property, Collection<?> values) {
+        List<Object> indexes = new ArrayList<>(values.size());
+        for (Object value : values) {
+            indexes.add(value == null ? null : blindIndexer.index(toMongoType.apply(value), property.length));
+        }
+        matches.add(new Match(property, new HashSet<>(values)));
+        return indexes;
+    }
+
+    private Document ciphertexts(BlindIndexer.IndexedProperty property, Object value) {
+        if (value instanceof Document && isOperator((Document) value)) {
+            Document operator = (Document) value;
+            if (operator.size() != 1) throw unsupported(property, operator.keySet().toString());
+
+            if (operator.containsKey("$eq")) return new Document("$in", encrypt(Collections.singletonList(operator.get("$eq"))));
+            if (operator.containsKey("$in")) return new Document("$in", encrypt((Collection<?>) operator.get("$in")));
+            throw unsupported(property, operator.keySet().iterator().next());
+        }
+
+        if (value instanceof Pattern || value instanceof BsonRegularExpression) throw unsupported(property, "regular expressions");
+        return new Document("$in", encrypt(Collections.singletonList(value)));
+    }
+
+    private List<Object> encrypt(Collection<?> values) {
+        deterministic = true;
+        List<Object> ciphertexts = new ArrayList<>();
+        for (Object value : values) {
+            // null matches missing values; a Binary was encrypted by the caller already, e.g. by encryptValue()
+            if (value == null || value instanceof Binary) ciphertexts.add(value);
+            else ciphertexts.addAll(deterministicEncryption.encryptValueWithEveryKey(toMongoType.apply(value)));
+        }
+        return ciphertexts;
+    }
+
+    private static boolean isOperator(Document document) {
+        return !document.isEmpty() && document.keySet().iterator().next().startsWith("$");
+    }
+
+    private IllegalArgumentException unsupported(BlindIndexer.IndexedProperty property, String what) {
+        return new IllegalArgumentException(entityClass.getName() + "." + property.propertyPath
+                + " is encrypted, and can only be queried by equality or $in, not by " + what);
+    }
+
+    // everything but the criteria
+    static BasicQuery copy(Query query, Document criteria) {
+        BasicQuery result = new BasicQuery(criteria, query.getFieldsObject());
+        result.setSortObject(query.getSortObject());
+        result.skip(query.getSkip());
+        if (query.isLimited()) result.limit(query.getLimit());
+        if (query.getHint() != null) result.withHint(query.getHint());
+        query.getCollation().ifPresent(result::collation);
+        result.setMeta(query.getMeta());
+        if (query.hasReadConcern()) result.withReadConcern(query.getReadConcern());
+        if (query.hasReadPreference()) result.withReadPreference(query.getReadPreference());
+        if (query.hasKeyset()) result.with(query.getKeyset());
+        for (Class<?> type : query.getRestrictedTypes()) result.restrict(type);
+        return result;
+    }
+
+    private static class Match {
+        final BlindIndexer.IndexedProperty property;
+        final Set<Object> values;
+
+        Match(BlindIndexer.IndexedProperty property, Set<Object> values) {
+            this.property = property;
+            this.values = values;
+        }
+    }
+}
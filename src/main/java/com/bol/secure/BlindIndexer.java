@@ -0,0 +1,192 @@
+package com.bol.secure;
+
+import com.bol.reflection.ReflectionCache;
+import org.bson.types.Binary;
+import org.springframework.core.ResolvableType;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.util.ReflectionUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.reflect.Field;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Computes the blind indexes of @BlindIndex fields, for the encryption event listeners on save, and for queries.
+ * The key must not be one of the encryption keys; unlike those, it can't be rotated without re-saving all documents.
+ */
+public class BlindIndexer {
+    public static final String DEFAULT_SUFFIX = "_bidx";
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final SecretKeySpec key;
+    private final CodecPool<Hasher> hashers = new CodecPool<>(Hasher::new, hasher -> hasher.codec.isReusable());
+    // entity class -> property path -> property, if it has a blind index or is deterministic
+    private final ConcurrentHashMap<Class<?>, Map<String, Optional<IndexedProperty>>> properties = new ConcurrentHashMap<>();
+
+    public BlindIndexer(byte[] key) {
+        if (key.length < 16) throw new IllegalArgumentException("blind index key must be at least 16 bytes, got " + key.length);
+        this.key = new SecretKeySpec(key, ALGORITHM);
+        // fail early on a JDK without HmacSHA256
+        hashers.release(new Hasher());
+    }
+
+    /**
+     * The blind index of `value`, as mapped by the mapping converter: for Strings, numbers, booleans and dates, that's
+     * the value itself.
+     */
+    public Binary index(Object value, int length) {
+        if (length < 1 || length > 32) throw new IllegalArgumentException("blind index length must be 1 to 32, got " + length);
+
+        Hasher hasher = hashers.borrow();
+        try {
+            byte[] hash = hasher.mac.doFinal(hasher.codec.serialize(value));
+            return new Binary(length == hash.length ? hash : Arrays.copyOf(hash, length));
+        } finally {
+            hashers.release(hasher);
+        }
+    }
+
+    /**
+     * Criteria matching the documents of `entityClass` whose @BlindIndex property at `propertyPath` (e.g. "ssn" or
+     * "address.zipCode") may be equal to `value`. As hashes collide, compare the property of the loaded entities too.
+     */
+    public Criteria criteria(Class<?> entityClass, String propertyPath, Object value) {
+        IndexedProperty property = property(entityClass, propertyPath);
+        if (property == null || property.deterministic) throw new IllegalArgumentException(entityClass.getName() + "." + propertyPath + " has no @BlindIndex");
+        return Criteria.where(property.indexPath).is(index(value, property.length));
+    }
+
+    /** the @BlindIndex or @Deterministic property at `propertyPath` of `entityClass`, or null if there's no such property */
+    IndexedProperty property(Class<?> entityClass, String propertyPath) {
+        Map<String, Optional<IndexedProperty>> byPath = properties.get(entityClass);
+        if (byPath == null) byPath = properties.computeIfAbsent(entityClass, c -> new ConcurrentHashMap<>());
+
+        Optional<IndexedProperty> property = byPath.get(propertyPath);
+        if (property == null) {
+            property = Optional.ofNullable(resolve(entityClass, propertyPath));
+            byPath.put(propertyPath, property);
+        }
+        return property.orElse(null);
+    }
+
+    private static IndexedProperty resolve(Class<?> entityClass, String propertyPath) {
+        String[] properties = propertyPath.split("\\.");
+        Field[] fields = new Field[properties.length];
+        StringBuilder documentPath = new StringBuilder();
+        Class<?> type = entityClass;
+
+        for (int i = 0; i < properties.length; i++) {
+            if (i > 0) type = elementType(fields[i - 1]);
+            if (type == null) return null;
+
+            fields[i] = ReflectionUtils.findField(type, properties[i]);
+            if (fields[i] == null) return null;
+
+            if (i > 0) documentPath.append('.');
+            documentPath.append(ReflectionCache.parseFieldAnnotation(fields[i], properties[i]));
+        }
+
+        Field field = fields[fields.length - 1];
+        // queried by its ciphertexts, right at the encrypted field
+        if (field.isAnnotationPresent(Deterministic.class)) {
+            for (Field f : fields) ReflectionUtils.makeAccessible(f);
+            return new IndexedProperty(propertyPath, fields, documentPath.toString(), 0, true);
+        }
+
+        BlindIndex blindIndex = field.getAnnotation(BlindIndex.class);
+        if (blindIndex == null) return null;
+
+        // replace the name of the encrypted field by that of its index
+        int parent = documentPath.lastIndexOf(".");
+        String indexPath = (parent < 0 ? "" : documentPath.substring(0, parent + 1)) + indexName(field);
+        for (Field f : fields) ReflectionUtils.makeAccessible(f);
+        return new IndexedProperty(propertyPath, fields, indexPath, blindIndex.length(), false);
+    }
+
+    /** the document name of the blind index of `field`, or null if it has none */
+    public static String indexName(Field field) {
+        BlindIndex blindIndex = field.getAnnotation(BlindIndex.class);
+        if (blindIndex == null) return null;
+        if (!blindIndex.value().isEmpty()) return blindIndex.value();
+        return ReflectionCache.parseFieldAnnotation(field, field.getName()) + DEFAULT_SUFFIX;
+    }
+
+    // sub-documents within lists are matched by the same path in mongodb
+    private static Class<?> elementType(Field field) {
+        ResolvableType type = ResolvableType.forField(field);
+        if (Collection.class.isAssignableFrom(field.getType())) return type.asCollection().resolveGeneric(0);
+        if (field.getType().isArray()) return field.getType().getComponentType();
+        return field.getType();
+    }
+
+    /**
+     * a @BlindIndex property, reached from an entity class by following `fields`; or a @Deterministic one, whose
+     * `indexPath` is that of the encrypted field itself
+     */
+    static final class IndexedProperty {
+        final String propertyPath;
+        final Field[] fields;
+        final String indexPath;
+        final int length;
+        final boolean deterministic;
+
+        IndexedProperty(String propertyPath, Field[] fields, String indexPath, int length, boolean deterministic) {
+            this.propertyPath = propertyPath;
+            this.fields = fields;
+            this.indexPath = indexPath;
+            this.length = length;
+            this.deterministic = deterministic;
+        }
+
+        /** the values of this property in `entity`; more than one if the path leads through lists */
+        List<Object> values(Object entity) {
+            List<Object> values = new ArrayList<>();
+            collect(entity, 0, values);
+            return values;
+        }
+
+        private void collect(Object o, int depth, List<Object> values) {
+            if (o == null) return;
+            if (depth == fields.length) {
+                values.add(o instanceof LazyEncrypted ? ((LazyEncrypted<?>) o).get() : o);
+                return;
+            }
+
+            // sub-documents within lists and arrays, as matched by mongodb
+            if (depth > 0 && o instanceof Collection) {
+                for (Object element : (Collection<?>) o) collect(element, depth, values);
+            } else if (depth > 0 && o instanceof Object[]) {
+                for (Object element : (Object[]) o) collect(element, depth, values);
+            } else {
+                collect(ReflectionUtils.getField(fields[depth], o), depth + 1, values);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return propertyPath + " -> " + indexPath;
+        }
+    }
+
+    private class Hasher {
+        final BsonValueCodec codec = new BsonValueCodec();
+        final Mac mac;
+
+        Hasher() {
+            try {
+                mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.bol.secure;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import org.bson.*;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Serializes a single value to BSON and back, in the very same format as
+ * {@code new BasicBSONEncoder().encode(new BasicBSONObject("", value))}, i.e. wrapped in a document with a single,
+ * empty-named element. The wrapper is written directly into a reused buffer, and the most common value types are
+ * read straight from the bytes, without building a BSONObject first.
+ * <p>
+ * Not thread-safe; use one instance per thread.
+ */
+public class BsonValueCodec extends BasicBSONEncoder {
+    // offset of the value within the serialized wrapper: 4 bytes document length, 1 byte type, 1 byte empty name
+    private static final int VALUE_OFFSET = 6;
+
+    private static final byte DOUBLE = 0x01;
+    private static final byte STRING = 0x02;
+    private static final byte BINARY = 0x05;
+    private static final byte OBJECT_ID = 0x07;
+    private static final byte BOOLEAN = 0x08;
+    private static final byte DATE_TIME = 0x09;
+    private static final byte NULL = 0x0a;
+    private static final byte INT32 = 0x10;
+    private static final byte INT64 = 0x12;
+    private static final byte DECIMAL128 = 0x13;
+
+    // don't keep huge buffers around after serializing an occasional large value
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    private final BasicOutputBuffer buffer = new BasicOutputBuffer(256);
+    private final BasicBSONDecoder decoder = new BasicBSONDecoder();
+
+    public byte[] serialize(Object value) {
+        buffer.truncateToPosition(0);
+        set(buffer);
+        try {
+            BsonBinaryWriter writer = getBsonWriter();
+            writer.writeStartDocument();
+            // we need to put even BSONObject and BSONList in a wrapping object before serialization, otherwise the type information is not encoded.
+            // this is the same that mongo driver itself uses on the wire, so it has 100% compatibility w.r.t de/serialization
+            _putObjectField("", value);
+            writer.writeEndDocument();
+        } finally {
+            done();
+        }
+        return buffer.toByteArray();
+    }
+
+    public Object deserialize(byte[] serialized) {
+        if (serialized.length > VALUE_OFFSET && serialized[VALUE_OFFSET - 1] == 0) {
+            switch (serialized[VALUE_OFFSET - 2]) {
+                case STRING:
+                    return new String(serialized, VALUE_OFFSET + 4, readInt(serialized, VALUE_OFFSET) - 1, UTF_8);
+                case INT32:
+                    return readInt(serialized, VALUE_OFFSET);
+                case INT64:
+                    return readLong(serialized, VALUE_OFFSET);
+                case DOUBLE:
+                    return Double.longBitsToDouble(readLong(serialized, VALUE_OFFSET));
+                case BOOLEAN:
+                    return serialized[VALUE_OFFSET] == 1;
+                case DATE_TIME:
+                    return new Date(readLong(serialized, VALUE_OFFSET));
+                case NULL:
+                    return null;
+                case OBJECT_ID:
+                    return new ObjectId(ByteBuffer.wrap(serialized, VALUE_OFFSET, 12));
+                case DECIMAL128:
+                    return Decimal128.fromIEEE754BIDEncoding(readLong(serialized, VALUE_OFFSET + 8), readLong(serialized, VALUE_OFFSET));
+                case BINARY:
+                    // generic subtype only; uuid and old binary subtypes need special handling
+                    if (serialized[VALUE_OFFSET + 4] == BsonBinarySubType.BINARY.getValue()) {
+                        int from = VALUE_OFFSET + 5;
+                        return Arrays.copyOfRange(serialized, from, from + readInt(serialized, VALUE_OFFSET));
+                    }
+                    break;
+            }
+        }
+
+        // sub-documents, lists and rare types go the long way, so they are decoded exactly as before
+        BSONCallback bsonCallback = new BasicDBObjectCallback();
+        decoder.decode(serialized, bsonCallback);
+        BSONObject deserialized = (BSONObject) bsonCallback.get();
+        return deserialized.get("");
+    }
+
+    /** whether this codec is worth keeping for reuse */
+    public boolean isReusable() {
+        return buffer.getInternalBuffer().length <= MAX_RETAINED_BUFFER;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff)
+                | (bytes[offset + 1] & 0xff) << 8
+                | (bytes[offset + 2] & 0xff) << 16
+                | (bytes[offset + 3] & 0xff) << 24;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        return (readInt(bytes, offset) & 0xffffffffL) | ((long) readInt(bytes, offset + 4)) << 32;
+    }
+
+    /**
+     * BasicBSONEncoder returns BasicBSONObject which makes mongotemplate converter choke :(
+     */
+    static class BasicDBObjectCallback extends BasicBSONCallback {
+        @Override
+        public BSONObject create() {
+            return new BasicDBObject();
+        }
+
+        @Override
+        protected BSONObject createList() {
+            return new BasicDBList();
+        }
+
+        @Override
+        public BSONCallback createBSONCallback() {
+            return new BasicDBObjectCallback();
+        }
+    }
+}
@@ -3,22 +3,34 @@ package com.bol.secure;
 import com.bol.crypt.CryptVault;
 import com.bol.crypt.DocumentCryptException;
 import com.bol.crypt.FieldCryptException;
-import com.bol.reflection.Node;
+import com.bol.reflection.FieldPlan;
 import com.bol.reflection.ReflectionCache;
 import org.bson.Document;
+import org.springframework.data.mapping.Alias;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
 import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
 import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Does all reflection at startup. There is no reflection used at runtime.
- * Does not support polymorphism and does not need '_class' fields either.
+ * Does not support polymorphism and does not need '_class' fields either, unless enabled by withPolymorphism().
  */
 public class CachedEncryptionEventListener extends AbstractEncryptionEventListener<CachedEncryptionEventListener> {
-    final ReflectionCache reflectionCache;
+    ReflectionCache reflectionCache;
+    private final FieldEncryptedPredicate fieldEncryptedPredicate;
+    private final boolean defaultPredicate;
+    private Map<Class<?>, CryptWalker> walkers;
+    private boolean polymorphism;
 
     public CachedEncryptionEventListener(CryptVault cryptVault) {
         this(cryptVault, FieldEncryptedPredicate.ANNOTATION_PRESENT);
@@ -26,24 +38,151 @@ public class CachedEncryptionEventListener extends AbstractEncryptionEventListen
 
     public CachedEncryptionEventListener(CryptVault cryptVault, FieldEncryptedPredicate fieldEncryptedPredicate) {
         super(cryptVault);
+        this.fieldEncryptedPredicate = fieldEncryptedPredicate;
         reflectionCache = new ReflectionCache(fieldEncryptedPredicate);
+        // generated walkers only know about @Encrypted
+        defaultPredicate = fieldEncryptedPredicate == FieldEncryptedPredicate.ANNOTATION_PRESENT;
+        walkers = defaultPredicate ? loadWalkers(Thread.currentThread().getContextClassLoader()) : Collections.emptyMap();
     }
 
-    Node node(Class<?> clazz) {
-        List<Node> children = reflectionCache.reflectRecursive(clazz);
-        if (!children.isEmpty()) return new Node("", children, Node.Type.DOCUMENT);
-        return Node.EMPTY;
+    /** use the walkers generated by spring-data-mongodb-encrypt-processor, if any are on the classpath (default: true) */
+    public CachedEncryptionEventListener withGeneratedWalkers(boolean enabled) {
+        walkers = enabled && defaultPredicate && !polymorphism ? loadWalkers(Thread.currentThread().getContextClassLoader()) : Collections.emptyMap();
+        return this;
+    }
+
+    static Map<Class<?>, CryptWalker> loadWalkers(ClassLoader classLoader) {
+        Map<Class<?>, CryptWalker> result = new HashMap<>();
+        for (CryptWalker walker : ServiceLoader.load(CryptWalker.class, classLoader)) {
+            result.put(walker.type(), walker);
+        }
+        return result;
+    }
+
+    /**
+     * Support polymorphism: sub-documents of non-final types are crypted according to the class in their _class field,
+     * resolved by the type mapper of `converter`. Plans of all entities known to its mapping context are built
+     * right away; plans of other classes on their first occurrence. Generated walkers are not used in this mode.
+     */
+    public CachedEncryptionEventListener withPolymorphism(MongoConverter converter) {
+        polymorphism = true;
+        walkers = Collections.emptyMap();
+        reflectionCache = new ReflectionCache(fieldEncryptedPredicate, true);
+        plans.clear();
+        subtypePlans.clear();
+        withTypeMapper(converter.getTypeMapper());
+
+        for (MongoPersistentEntity<?> entity : converter.getMappingContext().getPersistentEntities()) {
+            FieldPlan plan = plan(entity.getType());
+            subtypePlans.put(entity.getType().getName(), plan);
+            Alias alias = entity.getTypeAlias();
+            if (alias.isPresent()) subtypePlans.put(alias.getValue().toString(), plan);
+        }
+        return this;
+    }
+
+    // the compiled form of reflectionCache, as walked on every event
+    private final ConcurrentHashMap<Class<?>, FieldPlan> plans = new ConcurrentHashMap<>();
+    // plans by _class value, in polymorphism mode
+    private final ConcurrentHashMap<String, FieldPlan> subtypePlans = new ConcurrentHashMap<>();
+
+    FieldPlan plan(Class<?> clazz) {
+        FieldPlan plan = plans.get(clazz);
+        if (plan != null) return plan;
+        plan = FieldPlan.compile(reflectionCache.reflectRecursive(clazz));
+        FieldPlan previous = plans.putIfAbsent(clazz, plan);
+        return previous != null ? previous : plan;
+    }
+
+    /** the plan to crypt `document` with, when mapped to `type` */
+    FieldPlan plan(Class<?> type, Document document) {
+        FieldPlan declared = plan(type);
+        if (!polymorphism) return declared;
+
+        // loading by a superclass yields the subclass documents too, while projections (e.g. to a DTO) stay as they are
+        Object className = document.get("_class");
+        if (!(className instanceof String)) return declared;
+        Class<?> clazz = resolvedClass((String) className, document);
+        if (clazz == null || !type.isAssignableFrom(clazz)) return declared;
+        return subtypePlan(document, declared);
+    }
+
+    boolean isPolymorphic() {
+        return polymorphism;
+    }
+
+    /** the plan of the class named by the _class field of `document`; `declared` without one */
+    FieldPlan subtypePlan(Document document, FieldPlan declared) {
+        Object className = document.get("_class");
+        if (!(className instanceof String)) return declared;
+
+        FieldPlan plan = subtypePlans.get(className);
+        if (plan != null) return plan;
+
+        Class<?> clazz = resolvedClass((String) className, document);
+        if (clazz == null) return declared;
+
+        plan = plan(clazz);
+        if (subtypePlans.size() < MAX_CACHED_DISCRIMINATORS) subtypePlans.putIfAbsent((String) className, plan);
+        return plan;
+    }
+
+    // like the mapping converter, treat a _class that can't be resolved (e.g. of a removed class) as absent
+    private Class<?> resolvedClass(String className, Document document) {
+        try {
+            return discriminatedClass(className, document);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int prepare(Class<?> clazz) {
+        return countEncrypted(plan(clazz), Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    // plans of recursive classes are cyclic, count each plan once
+    private static int countEncrypted(FieldPlan plan, Set<FieldPlan> seen) {
+        if (!seen.add(plan)) return 0;
+
+        int encrypted = 0;
+        for (int i = 0; i < plan.tags.length; i++) {
+            if (plan.tags[i] == FieldPlan.DIRECT || plan.tags[i] == FieldPlan.LAZY) encrypted++;
+            else encrypted += countEncrypted(plan.next[i], seen);
+        }
+        return encrypted;
     }
 
     @Override
     public void onAfterLoad(AfterLoadEvent event) {
+        // raw documents, e.g. aggregation results to be decrypted by PipelineDecryption; they have no plan of their own
+        if (Document.class.equals(event.getType())) return;
         Document document = event.getDocument();
 
-        Node node = node(event.getType());
-        if (node == Node.EMPTY) return;
+        CryptWalker walker = walkers.get(event.getType());
+        if (walker != null) {
+            if (walker.isEmpty()) return;
+
+            FieldSelection selection = decryptSelection();
+            if (selection.isEmpty()) return;
+
+            try {
+                crypt(decoders, event.getCollectionName(), event.getType(), trackLoad(event.getCollectionName(), document), crypt -> walker.walk(document, new WalkerContext(crypt, selection)));
+            } catch (Exception e) {
+                Object id = document.get("_id");
+                throw new DocumentCryptException(event.getCollectionName(), id, e);
+            }
+            return;
+        }
 
         try {
-            cryptFields(document, node, new Decoder());
+            FieldPlan plan = plan(event.getType(), document);
+            if (plan == FieldPlan.EMPTY) return;
+
+            FieldSelection selection = decryptSelection();
+            if (selection.isEmpty()) return;
+
+            crypt(decoders, event.getCollectionName(), event.getType(), trackLoad(event.getCollectionName(), document), crypt -> cryptDocument(document, plan, crypt, selection));
         } catch (Exception e) {
             Object id = document.get("_id");
             throw new DocumentCryptException(event.getCollectionName(), id, e);
@@ -54,81 +193,219 @@ public class CachedEncryptionEventListener extends AbstractEncryptionEventListen
     public void onBeforeSave(BeforeSaveEvent event) {
         Document document = event.getDocument();
 
-        Node node = node(event.getSource().getClass());
-        if (node == Node.EMPTY) return;
+        CryptWalker walker = walkers.get(event.getSource().getClass());
+        if (walker != null) {
+            if (walker.isEmpty()) return;
+
+            try {
+                crypt(encoders, event.getCollectionName(), event.getSource().getClass(), trackSave(event.getCollectionName(), document), crypt -> walker.walk(document, new WalkerContext(crypt, FieldSelection.ALL)));
+            } catch (Exception e) {
+                Object id = document.get("_id");
+                throw new DocumentCryptException(event.getCollectionName(), id, e);
+            }
+            return;
+        }
+
+        FieldPlan plan = plan(event.getSource().getClass());
+        if (plan == FieldPlan.EMPTY) return;
 
         try {
-            cryptFields(document, node, new Encoder());
+            crypt(encoders, event.getCollectionName(), event.getSource().getClass(), trackSave(event.getCollectionName(), document), crypt -> cryptDocument(document, plan, crypt, FieldSelection.ALL));
         } catch (Exception e) {
             Object id = document.get("_id");
             throw new DocumentCryptException(event.getCollectionName(), id, e);
         }
     }
 
-    void cryptFields(Object o, Node node, Function<Object, Object> crypt) {
+    void cryptFields(Object o, int tag, FieldPlan plan, String fieldName, Crypter crypt, FieldSelection selection) {
         try {
-            switch (node.type) {
-                case MAP:
-                    cryptMap((Document) o, node, crypt);
+            switch (tag) {
+                case FieldPlan.MAP:
+                    cryptMap((Document) o, plan, crypt, selection);
+                    break;
+
+                case FieldPlan.DOCUMENT:
+                    cryptDocument((Document) o, plan, crypt, selection);
                     break;
 
-                case DOCUMENT:
-                    cryptDocument((Document) o, node, crypt);
+                case FieldPlan.POLYMORPHIC:
+                    // e.g. a field of type Object holding a String
+                    if (o instanceof Document) cryptDocument((Document) o, subtypePlan((Document) o, plan), crypt, selection);
                     break;
 
-                case LIST:
-                    cryptList((List<?>) o, node, crypt);
+                case FieldPlan.LIST:
+                    cryptList((List<?>) o, plan, crypt, selection);
                     break;
 
                 default:
-                    throw new IllegalArgumentException("Unknown class field to crypt for field " + node.fieldName + ": " + o.getClass());
+                    throw new IllegalArgumentException("Unknown class field to crypt for field " + fieldName + ": " + o.getClass());
             }
         } catch (ClassCastException e) {
-            throw new FieldCryptException(node.fieldName, e);
+            throw new FieldCryptException(fieldName, e);
         }
     }
 
-    void cryptList(List<?> list, Node node, Function<Object, Object> crypt) {
-        if (node.type != Node.Type.LIST) throw new IllegalArgumentException("Expected list for " + node.fieldName + ", got " + node.type);
-
-        Node mapChildren = node.children.get(0);
-        for (int i = 0; i < list.size(); i++) {
+    /** `elements` is the single-entry plan of the list elements */
+    void cryptList(List<?> list, FieldPlan elements, Crypter crypt, FieldSelection selection) {
+        int tag = elements.tags[0];
+        FieldPlan plan = elements.next[0];
+        for (int i = 0, size = list.size(); i < size; i++) {
             try {
-                cryptFields(list.get(i), mapChildren, crypt);
+                cryptFields(list.get(i), tag, plan, null, crypt, selection);
             } catch (FieldCryptException e) {
                 throw e.chain(Integer.toString(i));
             }
         }
     }
 
-    void cryptMap(Document document, Node node, Function<Object, Object> crypt) {
-        Node mapChildren = node.children.get(0);
+    /** `values` is the single-entry plan of the map values */
+    void cryptMap(Document document, FieldPlan values, Crypter crypt, FieldSelection selection) {
+        int tag = values.tags[0];
+        FieldPlan plan = values.next[0];
         for (Map.Entry<String, Object> entry : document.entrySet()) {
+            FieldSelection entrySelection = selection.child(entry.getKey());
+            if (entrySelection == null) continue;
+
             try {
-                cryptFields(entry.getValue(), mapChildren, crypt);
+                cryptFields(entry.getValue(), tag, plan, null, crypt, entrySelection);
             } catch (FieldCryptException e) {
                 throw e.chain(entry.getKey());
             }
         }
     }
 
-    void cryptDocument(Document document, Node node, Function<Object, Object> crypt) {
-        for (Node childNode : node.children) {
-            Object value = document.get(childNode.documentName);
+    void cryptDocument(Document document, FieldPlan plan, Crypter crypt, FieldSelection selection) {
+        int[] tags = plan.tags;
+        String[] documentNames = plan.documentNames;
+
+        for (int i = 0; i < tags.length; i++) {
+            int tag = tags[i];
+            FieldSelection childSelection = selection.child(documentNames[i]);
+            if (childSelection == null && tag != FieldPlan.LAZY) continue;
+
+            Object value = document.get(documentNames[i]);
             if (value == null) continue;
 
-            if (childNode.type == Node.Type.DIRECT) {
+            if (tag == FieldPlan.DIRECT) {
                 try {
-                    document.put(childNode.documentName, crypt.apply(value));
+                    if (plan.blindIndexNames[i] != null) blindIndex(document, plan.blindIndexNames[i], plan.blindIndexLengths[i], value, crypt);
+                    document.put(documentNames[i], plan.deterministic[i] ? crypt.deterministic(value) : crypt.apply(value));
                 } catch (Exception e) {
-                    throw new FieldCryptException(childNode.fieldName, e);
+                    throw new FieldCryptException(plan.fieldNames[i], e);
+                }
+            } else if (tag == FieldPlan.LAZY) {
+                try {
+                    String indexName = plan.blindIndexNames[i];
+                    if (indexName != null) blindIndex(document, indexName, plan.blindIndexLengths[i], value, crypt);
+                    document.put(documentNames[i], crypt.apply(indexName != null ? lazy(value, document.get(indexName)) : lazy(value)));
+                } catch (Exception e) {
+                    throw new FieldCryptException(plan.fieldNames[i], e);
                 }
             } else {
                 try {
-                    cryptFields(value, childNode, crypt);
+                    cryptFields(value, tag, plan.next[i], plan.fieldNames[i], crypt, childSelection);
+                } catch (FieldCryptException e) {
+                    throw e.chain(plan.fieldNames[i]);
+                }
+            }
+        }
+    }
+
+    /** the callbacks of generated walkers; same semantics as the FieldPlan walk above */
+    final class WalkerContext extends CryptWalker.Context {
+        private final Crypter crypt;
+        private FieldSelection selection;
+
+        WalkerContext(Crypter crypt, FieldSelection selection) {
+            this.crypt = crypt;
+            this.selection = selection;
+        }
+
+        @Override
+        public void direct(Document document, String documentName, String fieldName) {
+            if (selection.child(documentName) == null) return;
+
+            Object value = document.get(documentName);
+            if (value == null) return;
+
+            try {
+                document.put(documentName, crypt.apply(value));
+            } catch (Exception e) {
+                throw new FieldCryptException(fieldName, e);
+            }
+        }
+
+        @Override
+        public void lazy(Document document, String documentName, String fieldName) {
+            Object value = document.get(documentName);
+            if (value == null) return;
+
+            try {
+                document.put(documentName, crypt.apply(CachedEncryptionEventListener.this.lazy(value)));
+            } catch (Exception e) {
+                throw new FieldCryptException(fieldName, e);
+            }
+        }
+
+        @Override
+        public void field(Document document, String documentName, String fieldName, CryptWalker.ValueWalker walker) {
+            FieldSelection fieldSelection = selection.child(documentName);
+            if (fieldSelection == null) return;
+
+            Object value = document.get(documentName);
+            if (value == null) return;
+
+            FieldSelection parent = selection;
+            selection = fieldSelection;
+            try {
+                walker.walk(value, this);
+            } catch (ClassCastException e) {
+                throw new FieldCryptException(fieldName, e);
+            } catch (FieldCryptException e) {
+                throw e.chain(fieldName);
+            } finally {
+                selection = parent;
+            }
+        }
+
+        @Override
+        public void document(Object value, CryptWalker walker) {
+            walker.walk((Document) value, this);
+        }
+
+        @Override
+        public void list(Object value, CryptWalker.ValueWalker elements) {
+            List<?> list = (List<?>) value;
+            for (int i = 0, size = list.size(); i < size; i++) {
+                try {
+                    elements.walk(list.get(i), this);
+                } catch (ClassCastException e) {
+                    throw new FieldCryptException(null, e).chain(Integer.toString(i));
                 } catch (FieldCryptException e) {
-                    throw e.chain(childNode.fieldName);
+                    throw e.chain(Integer.toString(i));
+                }
+            }
+        }
+
+        @Override
+        public void map(Object value, CryptWalker.ValueWalker values) {
+            FieldSelection parent = selection;
+            try {
+                for (Map.Entry<String, Object> entry : ((Document) value).entrySet()) {
+                    FieldSelection entrySelection = parent.child(entry.getKey());
+                    if (entrySelection == null) continue;
+
+                    selection = entrySelection;
+                    try {
+                        values.walk(entry.getValue(), this);
+                    } catch (ClassCastException e) {
+                        throw new FieldCryptException(null, e).chain(entry.getKey());
+                    } catch (FieldCryptException e) {
+                        throw e.chain(entry.getKey());
+                    }
                 }
+            } finally {
+                selection = parent;
             }
         }
     }
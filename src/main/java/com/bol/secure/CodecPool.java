@@ -0,0 +1,65 @@
+package com.bol.secure;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Bounded, lock-free pool of codec instances, so their buffers are reused across events instead of allocated per document.
+ * Borrow and release never block and never allocate; with more concurrent users than pooled instances, new
+ * instances are created and surplus ones are left to the GC.
+ * <p>
+ * No thread-locals or monitors are used, so it is safe to use from virtual threads as well.
+ */
+class CodecPool<C> {
+    private final AtomicReferenceArray<C> slots;
+    private final int mask;
+    private final Supplier<C> factory;
+    private final Predicate<C> reusable;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+
+    CodecPool(Supplier<C> factory, Predicate<C> reusable) {
+        this(Runtime.getRuntime().availableProcessors() * 2, factory, reusable);
+    }
+
+    CodecPool(int size, Supplier<C> factory, Predicate<C> reusable) {
+        int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.factory = factory;
+        this.reusable = reusable;
+    }
+
+    C borrow() {
+        int start = probe();
+        for (int i = 0; i <= mask; i++) {
+            int index = (start + i) & mask;
+            C codec = slots.get(index);
+            if (codec != null && slots.compareAndSet(index, codec, null)) {
+                hits.increment();
+                return codec;
+            }
+        }
+        misses.increment();
+        return factory.get();
+    }
+
+    void release(C codec) {
+        if (!reusable.test(codec)) return;
+
+        int start = probe();
+        for (int i = 0; i <= mask; i++) {
+            int index = (start + i) & mask;
+            if (slots.get(index) == null && slots.compareAndSet(index, null, codec)) return;
+        }
+    }
+
+    // spread threads over the slots, so they don't all contend for the first one
+    private static int probe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) * 0x9e3779b9;
+    }
+}
@@ -0,0 +1,58 @@
+package com.bol.secure;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event of encrypting (on save) or decrypting (on load) the encrypted fields of a single document. Enabled by
+ * default, with no threshold; like any event, it's only recorded while a recording is running, and can be switched
+ * off or given a threshold in the JFR settings:
+ * <pre>
+ *     jfr configure com.bol.secure.Crypt#threshold=1ms
+ * </pre>
+ */
+@Name(CryptEvent.NAME)
+@Label("Document Crypt")
+@Category({"MongoDB", "Encryption"})
+@Description("Encryption or decryption of the encrypted fields of a document")
+@StackTrace(false)
+class CryptEvent extends jdk.jfr.Event {
+    static final String NAME = "com.bol.secure.Crypt";
+    private static final EventType TYPE = EventType.getEventType(CryptEvent.class);
+
+    @Label("Collection")
+    String collection;
+
+    @Label("Entity Class")
+    Class<?> entityClass;
+
+    @Label("Operation")
+    @Description("encrypt or decrypt")
+    String operation;
+
+    @Label("Encrypted Fields")
+    @Description("Number of encrypted fields (leaves) walked")
+    int fields;
+
+    @Label("Serialized Size")
+    @Description("Size of the serialized plaintext of the fields crypted")
+    @DataAmount
+    long bytes;
+
+    @Label("Key Version")
+    @Description("Key version of the last field crypted, -1 if none was")
+    int keyVersion;
+
+    /** a begun event if a running recording has it enabled; null otherwise, so that no event is allocated per document */
+    static CryptEvent start() {
+        if (!TYPE.isEnabled()) return null;
+        CryptEvent event = new CryptEvent();
+        event.begin();
+        return event;
+    }
+}
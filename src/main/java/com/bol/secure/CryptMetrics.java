@@ -0,0 +1,31 @@
+package com.bol.secure;
+
+/**
+ * Receives the measurements of an encryption event listener, see {@link AbstractEncryptionEventListener#withMetrics(CryptMetrics)}.
+ * Called on the crypting threads, so implementations must be thread-safe and cheap.
+ */
+public interface CryptMetrics {
+
+    /** measures nothing; the listeners skip even taking the time with this one */
+    CryptMetrics NOOP = new CryptMetrics() {
+    };
+
+    /** a document of `collection` (null if unknown, e.g. for database-wide change streams) was encrypted (or decrypted, if !encrypt) in `nanos`, `fields` encrypted fields in it */
+    default void documentCrypted(String collection, boolean encrypt, int fields, long nanos) {
+    }
+
+    /** a single value was encrypted with key `keyVersion`, `plainBytes` serialized into `cryptedBytes` */
+    default void fieldEncrypted(int keyVersion, int plainBytes, int cryptedBytes) {
+    }
+
+    /** a single value encrypted with key `keyVersion` was decrypted, `cryptedBytes` into `plainBytes` serialized */
+    default void fieldDecrypted(int keyVersion, int cryptedBytes, int plainBytes) {
+    }
+
+    /**
+     * decrypting a value of `collection` (null for lazily decrypted values) failed; `silent` if the failure was
+     * swallowed, see {@link AbstractEncryptionEventListener#withSilentDecryptionFailure(boolean)}
+     */
+    default void decryptionFailed(String collection, boolean silent) {
+    }
+}
@@ -0,0 +1,50 @@
+package com.bol.secure;
+
+import org.bson.Document;
+
+/**
+ * Crypts the encrypted fields of a single entity class with straight-line code, instead of interpreting the FieldPlan
+ * built by reflection.
+ * <p>
+ * Implementations are generated at build time by the spring-data-mongodb-encrypt-processor annotation processor,
+ * and picked up by {@link CachedEncryptionEventListener} via {@link java.util.ServiceLoader}.
+ */
+public interface CryptWalker {
+
+    /** the class whose documents this walker crypts */
+    Class<?> type();
+
+    void walk(Document document, Context context);
+
+    /** true if `type()` has no encrypted fields at all */
+    default boolean isEmpty() {
+        return false;
+    }
+
+    /** walks a value that is not a document field itself: a sub-document, list element or map value */
+    @FunctionalInterface
+    interface ValueWalker {
+        void walk(Object value, Context context);
+    }
+
+    /** what generated walkers call back into; implemented by the event listener */
+    abstract class Context {
+        Context() {
+        }
+
+        /** crypt field `documentName` of `document`, annotated by @Encrypted */
+        public abstract void direct(Document document, String documentName, String fieldName);
+
+        /** same as direct(), for @Encrypted fields of type LazyEncrypted */
+        public abstract void lazy(Document document, String documentName, String fieldName);
+
+        /** descend into field `documentName` of `document`, a sub-document, list or map */
+        public abstract void field(Document document, String documentName, String fieldName, ValueWalker walker);
+
+        public abstract void document(Object value, CryptWalker walker);
+
+        public abstract void list(Object value, ValueWalker elements);
+
+        public abstract void map(Object value, ValueWalker values);
+    }
+}
@@ -0,0 +1,18 @@
+package com.bol.secure;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * On an @Encrypted field: encrypt it with {@link DeterministicEncryption} (AES-SIV) instead of the CryptVault, so that
+ * equal plaintexts are stored as equal ciphertexts. The field can then be queried by equality, see
+ * {@link DeterministicEncryption#encryptValue(Object)}, and carry a unique index.
+ * <p>
+ * This tells which documents share a value, so keep it to the fields that need it. Not supported on LazyEncrypted fields.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Deterministic {
+}
@@ -0,0 +1,239 @@
+package com.bol.secure;
+
+import com.bol.crypt.CryptOperationException;
+import org.bson.types.Binary;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * AES-SIV (RFC 5297) with versioned keys, for @Deterministic fields: encrypting the same plaintext with the same key
+ * always yields the same ciphertext, which is still authenticated on decryption.
+ * <p>
+ * Ciphertexts are laid out as `[key version][synthetic IV, 16 bytes][AES-CTR ciphertext]`, starting with the key
+ * version just like those of CryptVault; the key version is authenticated as associated data. Keys are 32, 48 or 64
+ * bytes long (AES-128, 192 or 256): the first half keys S2V, the second half CTR. Never reuse a CryptVault key.
+ */
+public class DeterministicEncryption {
+    private static final int BLOCK = 16;
+
+    // by key version
+    private final SecretKeySpec[] macKeys = new SecretKeySpec[256];
+    private final SecretKeySpec[] ctrKeys = new SecretKeySpec[256];
+    private volatile int defaultKeyVersion = -1;
+
+    private final CodecPool<Siv> sivs = new CodecPool<>(Siv::new, siv -> true);
+    private final CodecPool<BsonValueCodec> codecs = new CodecPool<>(BsonValueCodec::new, BsonValueCodec::isReusable);
+
+    public DeterministicEncryption withKey(int version, byte[] key) {
+        if (version < 0 || version > 255) throw new IllegalArgumentException("key version must be 0 to 255, got " + version);
+        if (key.length != 32 && key.length != 48 && key.length != 64) throw new IllegalArgumentException("AES-SIV key must be 32, 48 or 64 bytes, got " + key.length);
+
+        macKeys[version] = new SecretKeySpec(key, 0, key.length / 2, "AES");
+        ctrKeys[version] = new SecretKeySpec(key, key.length / 2, key.length / 2, "AES");
+        return this;
+    }
+
+    public DeterministicEncryption withDefaultKeyVersion(int version) {
+        if (version < 0 || version > 255 || macKeys[version] == null) throw new IllegalArgumentException("no key with version " + version);
+        this.defaultKeyVersion = version;
+        return this;
+    }
+
+    public int getDefaultKeyVersion() {
+        return defaultKeyVersion;
+    }
+
+    /** encrypts with the default key */
+    public byte[] encrypt(byte[] plaintext) {
+        int version = defaultKeyVersion;
+        if (version < 0) throw new IllegalStateException("no default key version set");
+        return encrypt(version, plaintext);
+    }
+
+    public byte[] encrypt(int version, byte[] plaintext) {
+        if (version < 0 || version > 255 || macKeys[version] == null) throw new CryptOperationException("no deterministic key with version " + version, null);
+
+        Siv siv = sivs.borrow();
+        try {
+            byte[] header = {(byte) version};
+            byte[] v = siv.s2v(macKeys[version], header, plaintext);
+
+            byte[] result = new byte[1 + BLOCK + plaintext.length];
+            result[0] = header[0];
+            System.arraycopy(v, 0, result, 1, BLOCK);
+            siv.ctr(ctrKeys[version], v, plaintext, 0, plaintext.length, result, 1 + BLOCK);
+            return result;
+        } catch (GeneralSecurityException e) {
+            throw new CryptOperationException("JCE exception caught while encrypting with deterministic key version " + version, e);
+        } finally {
+            sivs.release(siv);
+        }
+    }
+
+    public byte[] decrypt(byte[] data) {
+        if (data.length < 1 + BLOCK) throw new CryptOperationException("deterministic ciphertext too short: " + data.length + " bytes", null);
+
+        int version = data[0] & 0xff;
+        if (macKeys[version] == null) throw new CryptOperationException("no deterministic key with version " + version, null);
+
+        Siv siv = sivs.borrow();
+        try {
+            byte[] v = Arrays.copyOfRange(data, 1, 1 + BLOCK);
+            byte[] plaintext = new byte[data.length - 1 - BLOCK];
+            siv.ctr(ctrKeys[version], v, data, 1 + BLOCK, plaintext.length, plaintext, 0);
+
+            byte[] expected = siv.s2v(macKeys[version], new byte[]{data[0]}, plaintext);
+            if (!MessageDigest.isEqual(expected, v)) {
+                throw new CryptOperationException("deterministic ciphertext with key version " + version + " failed to authenticate", new AEADBadTagException());
+            }
+            return plaintext;
+        } catch (GeneralSecurityException e) {
+            throw new CryptOperationException("JCE exception caught while decrypting with deterministic key version " + version, e);
+        } finally {
+            sivs.release(siv);
+        }
+    }
+
+    /**
+     * The ciphertext of `value` as stored in a @Deterministic field, to query by, e.g.
+     * `where("ssn").is(deterministicEncryption.encryptValue(ssn))`. Pass `value` as mapped by the mapping converter:
+     * for Strings, numbers, booleans and dates, that's the value itself.
+     */
+    public Binary encryptValue(Object value) {
+        BsonValueCodec codec = codecs.borrow();
+        try {
+            return new Binary(encrypt(codec.serialize(value)));
+        } finally {
+            codecs.release(codec);
+        }
+    }
+
+    /**
+     * The ciphertexts of `value` under every key version, to find the documents written with any of them, e.g. before
+     * a KeyRotation: `where("ssn").in(deterministicEncryption.encryptValueWithEveryKey(ssn))`.
+     */
+    public List<Binary> encryptValueWithEveryKey(Object value) {
+        BsonValueCodec codec = codecs.borrow();
+        try {
+            byte[] serialized = codec.serialize(value);
+            List<Binary> result = new ArrayList<>();
+            for (int version = 0; version < macKeys.length; version++) {
+                if (macKeys[version] != null) result.add(new Binary(encrypt(version, serialized)));
+            }
+            return result;
+        } finally {
+            codecs.release(codec);
+        }
+    }
+
+    /** plain RFC 5297 AES-SIV, with `key` as specified there; for test vectors */
+    static byte[] siv(byte[] key, byte[][] associatedData, byte[] plaintext) throws GeneralSecurityException {
+        SecretKeySpec macKey = new SecretKeySpec(key, 0, key.length / 2, "AES");
+        SecretKeySpec ctrKey = new SecretKeySpec(key, key.length / 2, key.length / 2, "AES");
+
+        byte[][] strings = Arrays.copyOf(associatedData, associatedData.length + 1);
+        strings[associatedData.length] = plaintext;
+
+        Siv siv = new Siv();
+        byte[] v = siv.s2v(macKey, strings);
+        byte[] result = Arrays.copyOf(v, BLOCK + plaintext.length);
+        siv.ctr(ctrKey, v, plaintext, 0, plaintext.length, result, BLOCK);
+        return result;
+    }
+
+    /** the ciphers; Cipher.getInstance() is too slow to call per value */
+    private static class Siv {
+        final Cipher ecb;
+        final Cipher ctr;
+
+        Siv() {
+            try {
+                ecb = Cipher.getInstance("AES/ECB/NoPadding");
+                ctr = Cipher.getInstance("AES/CTR/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        byte[] s2v(SecretKeySpec key, byte[]... strings) throws GeneralSecurityException {
+            ecb.init(Cipher.ENCRYPT_MODE, key);
+            byte[] subkey = dbl(ecb.doFinal(new byte[BLOCK]));
+
+            byte[] d = cmac(subkey, new byte[BLOCK]);
+            for (int i = 0; i < strings.length - 1; i++) {
+                d = dbl(d);
+                xor(d, cmac(subkey, strings[i]), 0);
+            }
+
+            byte[] last = strings[strings.length - 1];
+            byte[] t;
+            if (last.length >= BLOCK) {
+                // xorend
+                t = last.clone();
+                xor(t, d, last.length - BLOCK);
+            } else {
+                t = dbl(d);
+                xor(t, pad(last), 0);
+            }
+            return cmac(subkey, t);
+        }
+
+        /** RFC 4493 AES-CMAC, with `ecb` initialized to the key, and its first subkey */
+        byte[] cmac(byte[] subkey, byte[] message) throws GeneralSecurityException {
+            int blocks = Math.max(1, (message.length + BLOCK - 1) / BLOCK);
+            boolean complete = message.length > 0 && message.length % BLOCK == 0;
+
+            byte[] x = new byte[BLOCK];
+            for (int i = 0; i < blocks - 1; i++) {
+                for (int j = 0; j < BLOCK; j++) x[j] ^= message[i * BLOCK + j];
+                x = ecb.doFinal(x);
+            }
+
+            byte[] last = complete ? Arrays.copyOfRange(message, (blocks - 1) * BLOCK, blocks * BLOCK)
+                    : pad(Arrays.copyOfRange(message, (blocks - 1) * BLOCK, message.length));
+            xor(last, complete ? subkey : dbl(subkey), 0);
+            xor(x, last, 0);
+            return ecb.doFinal(x);
+        }
+
+        void ctr(SecretKeySpec key, byte[] v, byte[] input, int offset, int length, byte[] output, int outputOffset) throws GeneralSecurityException {
+            byte[] q = v.clone();
+            // clear the 31st and 63rd bits from the right, so that implementations can use 32 or 64 bit counters
+            q[8] &= 0x7f;
+            q[12] &= 0x7f;
+            ctr.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(q));
+            ctr.doFinal(input, offset, length, output, outputOffset);
+        }
+
+        /** multiplication by x in GF(2^128) */
+        static byte[] dbl(byte[] block) {
+            byte[] result = new byte[BLOCK];
+            for (int i = 0; i < BLOCK - 1; i++) {
+                result[i] = (byte) ((block[i] << 1) | ((block[i + 1] & 0xff) >>> 7));
+            }
+            result[BLOCK - 1] = (byte) (block[BLOCK - 1] << 1);
+            if ((block[0] & 0x80) != 0) result[BLOCK - 1] ^= (byte) 0x87;
+            return result;
+        }
+
+        /** 10* padding of a partial block */
+        static byte[] pad(byte[] partial) {
+            byte[] result = Arrays.copyOf(partial, BLOCK);
+            result[partial.length] = (byte) 0x80;
+            return result;
+        }
+
+        /** xors `block` into `target` at `offset` */
+        static void xor(byte[] target, byte[] block, int offset) {
+            for (int i = 0; i < BLOCK; i++) target[offset + i] ^= block[i];
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.bol.secure;
+
+import org.bson.types.Binary;
+
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+
+/**
+ * Remembers the ciphertext of the encrypted fields of the most recently loaded/saved documents, along with a
+ * fingerprint of their serialized plaintext, so that saving a document can reuse the ciphertext of unchanged fields
+ * instead of encrypting them again.
+ * <p>
+ * Ciphertexts are matched by plaintext within the same document rather than by field path, so the walkers need not
+ * track paths. Each ciphertext is handed out at most once per save, so two equal fields never end up with the same
+ * ciphertext.
+ */
+class DirtyTracker {
+    private final int maxDocuments;
+    // random seed, so fingerprint collisions can't be crafted
+    private final long seed = new SecureRandom().nextLong();
+
+    // ReentrantLock instead of synchronized, to not pin virtual threads
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Key, TrackedDocument> documents;
+
+    final LongAdder reused = new LongAdder();
+
+    DirtyTracker(int maxDocuments) {
+        this.maxDocuments = maxDocuments;
+        this.documents = new LinkedHashMap<Key, TrackedDocument>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, TrackedDocument> eldest) {
+                return size() > DirtyTracker.this.maxDocuments;
+            }
+        };
+    }
+
+    /** @return state to record the ciphertexts of the document being loaded in, or null if it has no _id */
+    TrackedDocument loading(String collection, Object id) {
+        if (id == null) return null;
+        TrackedDocument tracked = new TrackedDocument(null);
+        put(new Key(collection, id), tracked);
+        return tracked;
+    }
+
+    /** @return state to look up reusable ciphertexts in and record the new ones, or null if it has no _id */
+    TrackedDocument saving(String collection, Object id) {
+        if (id == null) return null;
+        Key key = new Key(collection, id);
+
+        lock.lock();
+        try {
+            TrackedDocument previous = documents.get(key);
+            TrackedDocument tracked = new TrackedDocument(previous != null ? previous.current : null);
+            documents.put(key, tracked);
+            return tracked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void put(Key key, TrackedDocument tracked) {
+        lock.lock();
+        try {
+            documents.put(key, tracked);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long fingerprint(byte[] data) {
+        long h = seed ^ (data.length * 0x9E3779B97F4A7C15L);
+        int i = 0;
+        for (; i + 8 <= data.length; i += 8) {
+            long word = (data[i] & 0xffL)
+                    | (data[i + 1] & 0xffL) << 8
+                    | (data[i + 2] & 0xffL) << 16
+                    | (data[i + 3] & 0xffL) << 24
+                    | (data[i + 4] & 0xffL) << 32
+                    | (data[i + 5] & 0xffL) << 40
+                    | (data[i + 6] & 0xffL) << 48
+                    | (data[i + 7] & 0xffL) << 56;
+            h = Long.rotateLeft(h ^ mix(word), 27) * 0x9E3779B97F4A7C15L;
+        }
+        long tail = 0;
+        for (int shift = 0; i < data.length; i++, shift += 8) tail |= (data[i] & 0xffL) << shift;
+        return mix(h ^ mix(tail));
+    }
+
+    // murmur3 finalizer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** ciphertexts of a single document, by plaintext fingerprint; safe to use from parallel crypting threads */
+    class TrackedDocument {
+        private Map<Long, Queue<Binary>> previous;
+        private final Map<Long, Queue<Binary>> current = new ConcurrentHashMap<>();
+        private volatile int defaultKeyVersion = -1;
+
+        TrackedDocument(Map<Long, Queue<Binary>> previous) {
+            this.previous = previous;
+        }
+
+        /** remember the ciphertext a field was loaded from, or was just encrypted to */
+        void record(byte[] serialized, Binary encrypted) {
+            current.computeIfAbsent(fingerprint(serialized), k -> new ConcurrentLinkedQueue<>()).add(encrypted);
+        }
+
+        /** @return an unused ciphertext of the same plaintext, if it was encrypted with the default key version */
+        Binary reuse(byte[] serialized, IntSupplier defaultKeyVersionProbe) {
+            Map<Long, Queue<Binary>> previous = this.previous;
+            if (previous == null) return null;
+
+            long fingerprint = fingerprint(serialized);
+            Queue<Binary> candidates = previous.get(fingerprint);
+            if (candidates == null) return null;
+
+            Binary encrypted = candidates.poll();
+            if (encrypted == null) return null;
+
+            if (defaultKeyVersion < 0) defaultKeyVersion = defaultKeyVersionProbe.getAsInt();
+            if (AbstractEncryptionEventListener.keyVersion(encrypted) != defaultKeyVersion) return null;
+
+            current.computeIfAbsent(fingerprint, k -> new ConcurrentLinkedQueue<>()).add(encrypted);
+            reused.increment();
+            return encrypted;
+        }
+
+        /** the document is fully crypted; drop the state of the previous save */
+        void done() {
+            previous = null;
+        }
+    }
+
+    private static final class Key {
+        final String collection;
+        final Object id;
+
+        Key(String collection, Object id) {
+            this.collection = collection;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return Objects.equals(collection, key.collection) && id.equals(key.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(collection) + id.hashCode();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.bol.secure;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.core.type.filter.AnnotationTypeFilter;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.util.ClassUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Builds the metadata of all persistent entities on context refresh, so that the first load/save of each entity
+ * doesn't have to. Entities are taken from the MongoMappingContext, plus the @Document classes found in `basePackages`.
+ */
+public class EncryptionWarmUp implements ApplicationListener<ContextRefreshedEvent> {
+    private static final Logger LOG = LoggerFactory.getLogger(EncryptionWarmUp.class);
+
+    private final AbstractEncryptionEventListener<?> listener;
+    private final List<String> basePackages;
+    private final Executor executor;
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    public EncryptionWarmUp(AbstractEncryptionEventListener<?> listener, String... basePackages) {
+        this(listener, ForkJoinPool.commonPool(), basePackages);
+    }
+
+    public EncryptionWarmUp(AbstractEncryptionEventListener<?> listener, Executor executor, String... basePackages) {
+        this.listener = listener;
+        this.executor = executor;
+        this.basePackages = Arrays.asList(basePackages);
+    }
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        // child contexts refresh too
+        if (!done.compareAndSet(false, true)) return;
+
+        long start = System.nanoTime();
+        Set<Class<?>> classes = entities(event.getApplicationContext());
+
+        List<CompletableFuture<Integer>> prepared = new ArrayList<>(classes.size());
+        for (Class<?> clazz : classes) {
+            prepared.add(CompletableFuture.supplyAsync(() -> listener.prepare(clazz), executor)
+                    .exceptionally(e -> {
+                        // it's going to fail on first use just the same; don't prevent the rest from starting up
+                        LOG.warn("Encryption warm-up failed for {}", clazz.getName(), e);
+                        return 0;
+                    }));
+        }
+
+        int encrypted = 0;
+        for (CompletableFuture<Integer> future : prepared) encrypted += future.join();
+
+        LOG.info("Encryption warm-up: scanned {} classes, found {} encrypted fields in {} ms",
+                classes.size(), encrypted, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    Set<Class<?>> entities(ApplicationContext context) {
+        Set<Class<?>> classes = new LinkedHashSet<>();
+
+        MongoMappingContext mappingContext = context.getBeanProvider(MongoMappingContext.class).getIfAvailable();
+        if (mappingContext != null) {
+            for (MongoPersistentEntity<?> entity : mappingContext.getPersistentEntities()) {
+                classes.add(entity.getType());
+            }
+        }
+
+        if (!basePackages.isEmpty()) {
+            ClassPathScanningCandidateComponentProvider scanner = new ClassPathScanningCandidateComponentProvider(false);
+            scanner.addIncludeFilter(new AnnotationTypeFilter(Document.class));
+            ClassLoader classLoader = context.getClassLoader();
+
+            for (String basePackage : basePackages) {
+                for (BeanDefinition candidate : scanner.findCandidateComponents(basePackage)) {
+                    classes.add(ClassUtils.resolveClassName(candidate.getBeanClassName(), classLoader));
+                }
+            }
+        }
+
+        return classes;
+    }
+}
@@ -0,0 +1,56 @@
+package com.bol.secure;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tree of dot-separated document paths (e.g. "address.street") to crypt; see {@link AbstractEncryptionEventListener#decryptOnly}.
+ * Paths use mongodb document names, same as in projections. Lists are transparent: "list.field" applies to all elements.
+ */
+final class FieldSelection {
+    /** everything below is selected */
+    static final FieldSelection ALL = new FieldSelection(null);
+
+    private final Map<String, FieldSelection> children;
+
+    private FieldSelection(Map<String, FieldSelection> children) {
+        this.children = children;
+    }
+
+    static FieldSelection of(Collection<String> paths) {
+        FieldSelection root = new FieldSelection(new HashMap<>());
+
+        for (String path : paths) {
+            FieldSelection node = root;
+            String[] parts = path.split("\\.");
+
+            for (int i = 0; i < parts.length; i++) {
+                if (i == parts.length - 1) {
+                    node.children.put(parts[i], ALL);
+                    break;
+                }
+
+                FieldSelection child = node.children.get(parts[i]);
+                if (child == ALL) break;    // a parent path is already selected as a whole
+                if (child == null) {
+                    child = new FieldSelection(new HashMap<>());
+                    node.children.put(parts[i], child);
+                }
+                node = child;
+            }
+        }
+
+        return root;
+    }
+
+    /** selection below `name`, or null if nothing is selected there */
+    FieldSelection child(String name) {
+        if (children == null) return this;
+        return children.get(name);
+    }
+
+    boolean isEmpty() {
+        return children != null && children.isEmpty();
+    }
+}
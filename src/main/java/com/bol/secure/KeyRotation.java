@@ -0,0 +1,423 @@
+package com.bol.secure;
+
+import com.bol.crypt.CryptOperationException;
+import com.bol.crypt.CryptVault;
+import com.bol.reflection.FieldPlan;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.MongoOperations;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-encrypts the encrypted fields of a collection that are not encrypted with the default key version, as a
+ * background job, so that old keys can be removed.
+ * <p>
+ * Documents are streamed by ascending _id as raw documents, bypassing the mapping converter and the event listeners.
+ * Their encrypted fields are found by the plan of the CachedEncryptionEventListener; only the stale ciphertexts are
+ * decrypted and encrypted again (without deserializing them), and written back by `$set` of their paths, in unordered
+ * bulk writes of `batchSize` documents. Each update only applies if the old ciphertexts are still there, so
+ * documents saved by the application in the meantime, which are encrypted with the default key anyway, are left alone.
+ * <p>
+ * To go easy on a live cluster, reading is throttled to `documentsPerSecond`, and batches are crypted and written by
+ * up to `parallelism` threads. After each batch that's written along with all before it, the _id of its last document
+ * is stored in the {@link Checkpoint}, so that an interrupted or {@link #stop() stopped} run resumes where it left off.
+ */
+public class KeyRotation {
+    private static final Logger LOG = LoggerFactory.getLogger(KeyRotation.class);
+
+    private final MongoOperations mongoOperations;
+    private final CachedEncryptionEventListener listener;
+    private final CryptVault cryptVault;
+    private int batchSize = 500;
+    private double documentsPerSecond = 0;
+    private int parallelism = 1;
+    private Checkpoint checkpoint = Checkpoint.NONE;
+    private volatile boolean stopped;
+
+    public KeyRotation(MongoOperations mongoOperations, CachedEncryptionEventListener listener) {
+        this.mongoOperations = mongoOperations;
+        this.listener = listener;
+        this.cryptVault = listener.cryptVault;
+    }
+
+    /** number of documents read and written at a time (default: 500) */
+    public KeyRotation withBatchSize(int batchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /** maximum number of documents read per second; 0 is unlimited (default) */
+    public KeyRotation withRateLimit(double documentsPerSecond) {
+        if (documentsPerSecond < 0) throw new IllegalArgumentException("documentsPerSecond must not be negative: " + documentsPerSecond);
+        this.documentsPerSecond = documentsPerSecond;
+        return this;
+    }
+
+    /** number of batches crypted and written concurrently (default: 1) */
+    public KeyRotation withParallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public KeyRotation withCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+        return this;
+    }
+
+    /** makes a running rotation return after the batches already read; the checkpoint is kept for the next run */
+    public void stop() {
+        stopped = true;
+    }
+
+    public Result rotate(Class<?> entityClass) {
+        return rotate(entityClass, mongoOperations.getCollectionName(entityClass));
+    }
+
+    public Result rotate(Class<?> entityClass, String collectionName) {
+        stopped = false;
+        Result result = new Result();
+
+        FieldPlan plan = listener.plan(entityClass);
+        // subclasses may have encrypted fields of their own
+        if (plan == FieldPlan.EMPTY && !listener.isPolymorphic()) return result.completed();
+
+        MongoCollection<Document> collection = mongoOperations.getCollection(collectionName);
+        Object resumeAfter = checkpoint.load(collectionName);
+        Document filter = resumeAfter != null ? new Document("_id", new Document("$gt", resumeAfter)) : new Document();
+
+        FindIterable<Document> documents = collection.find(filter).sort(new Document("_id", 1)).batchSize(batchSize);
+        if (!listener.isPolymorphic()) documents.projection(projection(plan));
+
+        int defaultKeyVersion = listener.defaultKeyVersion();
+        LOG.info("rotating {} to key version {}{}", collectionName, defaultKeyVersion, resumeAfter != null ? ", resuming after _id " + resumeAfter : "");
+
+        ExecutorService executor = parallelism > 1 ? Executors.newFixedThreadPool(parallelism) : null;
+        // batches being written, in _id order
+        Deque<Batch> pending = new ArrayDeque<>();
+        long start = System.nanoTime();
+
+        try (MongoCursor<Document> cursor = documents.iterator()) {
+            List<Document> batch = new ArrayList<>(batchSize);
+            while (!stopped && cursor.hasNext()) {
+                batch.add(cursor.next());
+                result.documents++;
+                throttle(start, result.documents);
+
+                if (batch.size() == batchSize) {
+                    submit(new Batch(collection, entityClass, defaultKeyVersion, batch), executor, pending);
+                    batch = new ArrayList<>(batchSize);
+                    while (pending.size() >= parallelism) complete(pending.removeFirst(), collectionName, result);
+                }
+            }
+            if (!batch.isEmpty()) submit(new Batch(collection, entityClass, defaultKeyVersion, batch), executor, pending);
+            while (!pending.isEmpty()) complete(pending.removeFirst(), collectionName, result);
+        } finally {
+            if (executor != null) executor.shutdown();
+        }
+
+        if (!stopped) {
+            // next rotation starts from scratch
+            checkpoint.store(collectionName, null);
+            result.completed();
+        }
+
+        LOG.info("rotated {}: {}", collectionName, result);
+        return result;
+    }
+
+    private void throttle(long start, long documents) {
+        if (documentsPerSecond <= 0) return;
+
+        long wait = start + (long) (documents * 1_000_000_000d / documentsPerSecond) - System.nanoTime();
+        if (wait <= 0) return;
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopped = true;
+        }
+    }
+
+    private static void submit(Batch batch, ExecutorService executor, Deque<Batch> pending) {
+        if (executor != null) {
+            batch.future = CompletableFuture.runAsync(batch, executor);
+        } else {
+            batch.run();
+            batch.future = CompletableFuture.completedFuture(null);
+        }
+        pending.addLast(batch);
+    }
+
+    private void complete(Batch batch, String collectionName, Result result) {
+        try {
+            batch.future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+
+        result.updated += batch.updated;
+        result.fields += batch.fields;
+        result.conflicts += batch.conflicts;
+        result.failures += batch.failures;
+        result.lastId = batch.lastId;
+        checkpoint.store(collectionName, batch.lastId);
+    }
+
+    /** only the fields that may hold encrypted values, and whatever is needed to find their plan */
+    static Document projection(FieldPlan plan) {
+        Document projection = new Document("_id", 1);
+        for (String documentName : plan.documentNames) projection.put(documentName, 1);
+        return projection;
+    }
+
+    /**
+     * The update re-encrypting the stale ciphertexts of `document` (which is modified in place), or null if there are
+     * none. Ciphertexts below map keys that can't be part of a path are left as they are, and counted as failures.
+     */
+    UpdateOneModel<Document> rotate(Document document, Class<?> entityClass, Rotator rotator) {
+        listener.cryptDocument(document, listener.plan(entityClass, document), rotator, FieldSelection.ALL);
+        if (rotator.rotated.isEmpty()) return null;
+
+        Document filter = new Document("_id", document.get("_id"));
+        Document set = new Document();
+        for (Map.Entry<String, Object> entry : document.entrySet()) {
+            if (!entry.getKey().equals("_id")) collectPaths(entry.getValue(), entry.getKey(), rotator.rotated, filter, set);
+        }
+
+        rotator.rotatedFields += set.size();
+        rotator.failures += rotator.rotated.size() - set.size();
+        rotator.rotated.clear();
+        return set.isEmpty() ? null : new UpdateOneModel<>(filter, new Document("$set", set));
+    }
+
+    private static void collectPaths(Object value, String path, Map<Object, Object> rotated, Document filter, Document set) {
+        if (value instanceof Document) {
+            for (Map.Entry<String, Object> entry : ((Document) value).entrySet()) {
+                String key = entry.getKey();
+                if (key.indexOf('.') >= 0 || key.startsWith("$")) continue;
+                collectPaths(entry.getValue(), path + '.' + key, rotated, filter, set);
+            }
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            for (int i = 0; i < list.size(); i++) {
+                collectPaths(list.get(i), path + '.' + i, rotated, filter, set);
+            }
+        } else if (value != null && rotated.containsKey(value)) {
+            filter.put(path, rotated.get(value));
+            set.put(path, value);
+        }
+    }
+
+    private class Batch implements Runnable {
+        final MongoCollection<Document> collection;
+        final Class<?> entityClass;
+        final List<Document> documents;
+        final Rotator rotator;
+        final Object lastId;
+        CompletableFuture<Void> future;
+        long updated;
+        long fields;
+        long conflicts;
+        long failures;
+
+        Batch(MongoCollection<Document> collection, Class<?> entityClass, int defaultKeyVersion, List<Document> documents) {
+            this.collection = collection;
+            this.entityClass = entityClass;
+            this.documents = documents;
+            this.rotator = new Rotator(defaultKeyVersion);
+            this.lastId = documents.get(documents.size() - 1).get("_id");
+        }
+
+        @Override
+        public void run() {
+            List<UpdateOneModel<Document>> updates = new ArrayList<>();
+            for (Document document : documents) {
+                try {
+                    UpdateOneModel<Document> update = rotate(document, entityClass, rotator);
+                    if (update != null) updates.add(update);
+                } catch (RuntimeException e) {
+                    // e.g. a document not matching the entity; the rest of the collection may well be fine
+                    LOG.warn("could not rotate document with _id {} in {}", document.get("_id"), collection.getNamespace(), e);
+                    rotator.rotated.clear();
+                    failures++;
+                }
+            }
+
+            fields = rotator.rotatedFields;
+            failures += rotator.failures;
+            if (updates.isEmpty()) return;
+
+            BulkWriteResult written = collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+            updated = written.getModifiedCount();
+            conflicts = updates.size() - written.getMatchedCount();
+        }
+    }
+
+    /** re-encrypts ciphertexts of other than the default key version, remembering the new ciphertexts */
+    class Rotator extends AbstractEncryptionEventListener.Crypter {
+        final int defaultKeyVersion;
+        // new ciphertext -> old one, by identity
+        final Map<Object, Object> rotated = new IdentityHashMap<>();
+        int rotatedFields;
+        int failures;
+
+        Rotator(int defaultKeyVersion) {
+            this.defaultKeyVersion = defaultKeyVersion;
+        }
+
+        @Override
+        public Object apply(Object o) {
+            return rotate(o, false);
+        }
+
+        @Override
+        Object deterministic(Object o) {
+            return rotate(o, true);
+        }
+
+        private Object rotate(Object o, boolean deterministic) {
+            // LAZY fields are wrapped by the plan walk
+            if (o instanceof LazyEncrypted) o = ((LazyEncrypted<?>) o).encrypted;
+
+            byte[] data;
+            if (o instanceof Binary) data = ((Binary) o).getData();
+            else if (o instanceof byte[]) data = (byte[]) o;
+            else return o;    // not encrypted (yet), nothing to rotate
+
+            DeterministicEncryption deterministicEncryption = deterministic ? listener.deterministicEncryption() : null;
+            int targetKeyVersion = deterministic ? deterministicEncryption.getDefaultKeyVersion() : defaultKeyVersion;
+            if (data.length == 0 || CryptVault.fromSignedByte(data[0]) == targetKeyVersion) return o;
+
+            try {
+                Binary result = new Binary(deterministic
+                        ? deterministicEncryption.encrypt(deterministicEncryption.decrypt(data))
+                        : cryptVault.encrypt(cryptVault.decrypt(data)));
+                rotated.put(result, o);
+                return result;
+            } catch (CryptOperationException e) {
+                failures++;
+                return o;
+            }
+        }
+    }
+
+    /** where a rotation resumes from */
+    public interface Checkpoint {
+        Checkpoint NONE = new Checkpoint() {
+            @Override
+            public Object load(String collection) {
+                return null;
+            }
+
+            @Override
+            public void store(String collection, Object lastId) {
+            }
+        };
+
+        /** the _id of the last document rotated in `collection`, or null to start from the beginning */
+        Object load(String collection);
+
+        /** `lastId` is null once `collection` is done */
+        void store(String collection, Object lastId);
+
+        /**
+         * Keeps the checkpoints in `checkpointCollection`, one document per rotated collection. Drop it when the
+         * default key changes while a rotation is unfinished, as the documents before the checkpoint are then stale again.
+         */
+        static Checkpoint inCollection(MongoOperations mongoOperations, String checkpointCollection) {
+            return new Checkpoint() {
+                @Override
+                public Object load(String collection) {
+                    Document checkpoint = mongoOperations.getCollection(checkpointCollection).find(new Document("_id", collection)).first();
+                    return checkpoint != null ? checkpoint.get("lastId") : null;
+                }
+
+                @Override
+                public void store(String collection, Object lastId) {
+                    MongoCollection<Document> checkpoints = mongoOperations.getCollection(checkpointCollection);
+                    if (lastId == null) checkpoints.deleteOne(new Document("_id", collection));
+                    else checkpoints.replaceOne(new Document("_id", collection), new Document("_id", collection).append("lastId", lastId), new ReplaceOptions().upsert(true));
+                }
+            };
+        }
+    }
+
+    public static class Result {
+        long documents;
+        long updated;
+        long fields;
+        long conflicts;
+        long failures;
+        Object lastId;
+        boolean completed;
+
+        Result completed() {
+            completed = true;
+            return this;
+        }
+
+        /** number of documents read */
+        public long getDocuments() {
+            return documents;
+        }
+
+        /** number of documents written */
+        public long getUpdated() {
+            return updated;
+        }
+
+        /** number of ciphertexts re-encrypted */
+        public long getFields() {
+            return fields;
+        }
+
+        /** number of documents changed by someone else in the meantime, and left alone */
+        public long getConflicts() {
+            return conflicts;
+        }
+
+        /** number of ciphertexts or documents that could not be rotated; see the log */
+        public long getFailures() {
+            return failures;
+        }
+
+        /** the _id of the last document rotated, or null */
+        public Object getLastId() {
+            return lastId;
+        }
+
+        /** false if stopped before the end of the collection */
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        @Override
+        public String toString() {
+            return "documents=" + documents + ", updated=" + updated + ", fields=" + fields + ", conflicts=" + conflicts + ", failures=" + failures + ", completed=" + completed;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.bol.secure;
+
+import org.bson.types.Binary;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.data.convert.WritingConverter;
+
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Field type for @Encrypted fields that should only be decrypted on first access, e.g.
+ * <pre>
+ *     &#64;Encrypted
+ *     LazyEncrypted&lt;String&gt; ssn;
+ * </pre>
+ * On load, the encryption event listener leaves a LazyEncrypted holding the ciphertext in the document; decryption
+ * happens in {@link #get()}. On save, a value that was loaded and not replaced is written back as-is (as long as it
+ * was encrypted with the default key version), without decrypting it first; so is its blind index, if any.
+ * <p>
+ * Values are immutable; to change the field, assign a new {@link #of(Object)}.
+ * Only values that map to a single bson value (String, numbers, Date, ObjectId, etc.) are supported.
+ * <p>
+ * Requires {@link Writer} to be registered in MongoCustomConversions, so spring-data hands LazyEncrypted over to the
+ * encryption event listener instead of mapping it as a sub-document.
+ */
+public final class LazyEncrypted<T> {
+    private static final Object UNSET = new Object();
+
+    final Binary encrypted;
+    // blind index loaded along with the ciphertext, if the field has a @BlindIndex
+    final Binary index;
+    private final Function<Binary, Object> decryptor;
+    // decrypting twice from competing threads is harmless, so no locking; visibility is all we need
+    private volatile Object value;
+
+    private LazyEncrypted(T value) {
+        this.encrypted = null;
+        this.index = null;
+        this.decryptor = null;
+        this.value = value;
+    }
+
+    LazyEncrypted(Binary encrypted, Binary index, Function<Binary, Object> decryptor) {
+        this.encrypted = encrypted;
+        this.index = index;
+        this.decryptor = decryptor;
+        this.value = UNSET;
+    }
+
+    public static <T> LazyEncrypted<T> of(T value) {
+        return new LazyEncrypted<>(value);
+    }
+
+    public T get() {
+        Object result = value;
+        if (result == UNSET) {
+            result = decryptor.apply(encrypted);
+            value = result;
+        }
+        return (T) result;
+    }
+
+    /** true if the value is available without decryption */
+    public boolean isDecrypted() {
+        return value != UNSET;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof LazyEncrypted)) return false;
+        return Objects.equals(get(), ((LazyEncrypted<?>) o).get());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(get());
+    }
+
+    @Override
+    public String toString() {
+        // never decrypt (and log) the secret by accident
+        return isDecrypted() ? "LazyEncrypted{decrypted}" : "LazyEncrypted{encrypted}";
+    }
+
+    /** passes LazyEncrypted fields to the document as-is; the encryption event listener takes it from there */
+    @WritingConverter
+    public enum Writer implements Converter<LazyEncrypted<?>, Object> {
+        INSTANCE;
+
+        @Override
+        public Object convert(LazyEncrypted<?> source) {
+            return source;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.bol.secure;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Reports to a Micrometer MeterRegistry:
+ * <ul>
+ *     <li>`mongodb.encrypt.document`: timer of crypting whole documents, by collection and operation (encrypt/decrypt)</li>
+ *     <li>`mongodb.encrypt.document.fields`: encrypted fields per document, by collection and operation</li>
+ *     <li>`mongodb.encrypt.fields`: number of values crypted, by operation and key version</li>
+ *     <li>`mongodb.encrypt.bytes`: bytes crypted, by operation and direction (in/out)</li>
+ *     <li>`mongodb.encrypt.decryption.failures`: by collection, and whether the failure was swallowed (silent)</li>
+ * </ul>
+ * Meters are registered on first use and looked up without allocation afterwards.
+ * <p>
+ * Only what the encryption event listener crypts is measured: saves and loads, and what goes through it, like
+ * {@link UpdateEncryption}, {@link PipelineDecryption}, {@link ReactiveEncryption} and lazily decrypted values.
+ * {@link KeyRotation} re-encrypts without reporting.
+ */
+public class MicrometerCryptMetrics implements CryptMetrics {
+    // lazily decrypted values and database-wide change streams are not attributed to a collection
+    static final String NO_COLLECTION = "none";
+
+    private final MeterRegistry registry;
+
+    private final ConcurrentHashMap<String, DocumentMeters> encryptedDocuments = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, DocumentMeters> decryptedDocuments = new ConcurrentHashMap<>();
+    // by key version
+    private final AtomicReferenceArray<Counter> encryptedFields = new AtomicReferenceArray<>(256);
+    private final AtomicReferenceArray<Counter> decryptedFields = new AtomicReferenceArray<>(256);
+    private final ConcurrentHashMap<String, Counter> failures = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Counter> silentFailures = new ConcurrentHashMap<>();
+
+    private final Counter encryptBytesIn;
+    private final Counter encryptBytesOut;
+    private final Counter decryptBytesIn;
+    private final Counter decryptBytesOut;
+
+    public MicrometerCryptMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.encryptBytesIn = bytes("encrypt", "in");
+        this.encryptBytesOut = bytes("encrypt", "out");
+        this.decryptBytesIn = bytes("decrypt", "in");
+        this.decryptBytesOut = bytes("decrypt", "out");
+    }
+
+    @Override
+    public void documentCrypted(String collection, boolean encrypt, int fields, long nanos) {
+        String tag = collection != null ? collection : NO_COLLECTION;
+        ConcurrentHashMap<String, DocumentMeters> documents = encrypt ? encryptedDocuments : decryptedDocuments;
+        DocumentMeters meters = documents.get(tag);
+        if (meters == null) meters = documents.computeIfAbsent(tag, c -> new DocumentMeters(c, encrypt ? "encrypt" : "decrypt"));
+
+        meters.timer.record(nanos, TimeUnit.NANOSECONDS);
+        meters.fields.record(fields);
+    }
+
+    @Override
+    public void fieldEncrypted(int keyVersion, int plainBytes, int cryptedBytes) {
+        fields(encryptedFields, "encrypt", keyVersion).increment();
+        encryptBytesIn.increment(plainBytes);
+        encryptBytesOut.increment(cryptedBytes);
+    }
+
+    @Override
+    public void fieldDecrypted(int keyVersion, int cryptedBytes, int plainBytes) {
+        fields(decryptedFields, "decrypt", keyVersion).increment();
+        decryptBytesIn.increment(cryptedBytes);
+        decryptBytesOut.increment(plainBytes);
+    }
+
+    @Override
+    public void decryptionFailed(String collection, boolean silent) {
+        String tag = collection != null ? collection : NO_COLLECTION;
+        ConcurrentHashMap<String, Counter> counters = silent ? silentFailures : failures;
+        Counter counter = counters.get(tag);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(tag, c -> Counter.builder("mongodb.encrypt.decryption.failures")
+                    .description("values that could not be decrypted")
+                    .tag("collection", c)
+                    .tag("silent", Boolean.toString(silent))
+                    .register(registry));
+        }
+        counter.increment();
+    }
+
+    private Counter fields(AtomicReferenceArray<Counter> counters, String operation, int keyVersion) {
+        Counter counter = counters.get(keyVersion);
+        if (counter != null) return counter;
+
+        // registering twice yields the very same counter, no need to guard against races
+        counter = Counter.builder("mongodb.encrypt.fields")
+                .description("values crypted")
+                .tag("operation", operation)
+                .tag("key.version", Integer.toString(keyVersion))
+                .register(registry);
+        counters.set(keyVersion, counter);
+        return counter;
+    }
+
+    private Counter bytes(String operation, String direction) {
+        return Counter.builder("mongodb.encrypt.bytes")
+                .description("bytes crypted")
+                .baseUnit("bytes")
+                .tag("operation", operation)
+                .tag("direction", direction)
+                .register(registry);
+    }
+
+    private class DocumentMeters {
+        final Timer timer;
+        final DistributionSummary fields;
+
+        DocumentMeters(String collection, String operation) {
+            this.timer = Timer.builder("mongodb.encrypt.document")
+                    .description("time spent crypting documents")
+                    .tag("collection", collection)
+                    .tag("operation", operation)
+                    .register(registry);
+            this.fields = DistributionSummary.builder("mongodb.encrypt.document.fields")
+                    .description("encrypted fields per document")
+                    .tag("collection", collection)
+                    .tag("operation", operation)
+                    .register(registry);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.bol.secure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Crypts the leaves of a single document on an executor, for documents with many encrypted fields.
+ * <p>
+ * The number of leaves is only known after walking the document, so the first `threshold - 1` leaves are crypted
+ * right away with a borrowed codec, just like the sequential path does; smaller documents are walked only once.
+ * From the threshold on, the walk leaves placeholders in the document, and after all of those are crypted in chunks,
+ * the same walker runs again to put the results back. That second walk rethrows the first failure in document order,
+ * so the resulting FieldCryptException carries the very same path as in sequential mode.
+ */
+class ParallelCrypt<C extends AbstractEncryptionEventListener.Crypter> extends AbstractEncryptionEventListener.Crypter {
+    private static final int MIN_CHUNK_SIZE = 16;
+
+    private final CodecPool<C> codecs;
+    private final boolean encrypting;
+    private final int threshold;
+    private C inline;
+    // null until the threshold is reached
+    private List<Deferred> leaves;
+    // summed up from the codecs crypting the chunks
+    private final AtomicLong chunkBytes = new AtomicLong();
+    private volatile int chunkKeyVersion = -1;
+    private boolean resolving;
+
+    ParallelCrypt(CodecPool<C> codecs, boolean encrypting, int threshold, String collection, DirtyTracker.TrackedDocument tracked) {
+        this.codecs = codecs;
+        this.encrypting = encrypting;
+        this.threshold = threshold;
+        this.collection = collection;
+        this.tracked = tracked;
+    }
+
+    // the resolving walk sees placeholders instead of plaintexts; blind indexes are done by then
+    @Override
+    boolean encrypting() {
+        return encrypting && !resolving;
+    }
+
+    @Override
+    public Object apply(Object value) {
+        if (resolving) return resolve(value);
+        return leaves == null && inline.fields + 1 < threshold ? inline.apply(value) : collect(value, false);
+    }
+
+    @Override
+    Object deterministic(Object value) {
+        if (resolving) return resolve(value);
+        return leaves == null && inline.fields + 1 < threshold ? inline.deterministic(value) : collect(value, true);
+    }
+
+    /** collecting phase: remember value, leave placeholder in the document */
+    private Object collect(Object value, boolean deterministic) {
+        if (leaves == null) leaves = new ArrayList<>();
+        Deferred deferred = new Deferred(value, deterministic);
+        leaves.add(deferred);
+        return deferred;
+    }
+
+    /** resolving phase: replace placeholders by the crypted values, leave the ones crypted right away alone */
+    private static Object resolve(Object value) {
+        if (!(value instanceof Deferred)) return value;
+        Deferred deferred = (Deferred) value;
+        if (deferred.failure instanceof RuntimeException) throw (RuntimeException) deferred.failure;
+        if (deferred.failure instanceof Error) throw (Error) deferred.failure;
+        if (deferred.failure != null) throw new IllegalStateException(deferred.failure);
+        return deferred.result;
+    }
+
+    void run(Consumer<AbstractEncryptionEventListener.Crypter> walker, Executor executor) {
+        inline = codecs.borrow();
+        inline.borrowed(collection, tracked);
+        try {
+            walker.accept(this);
+            fields = inline.fields;
+            bytes = inline.bytes;
+            keyVersion = inline.keyVersion;
+        } finally {
+            inline.released();
+            codecs.release(inline);
+            inline = null;
+        }
+        if (leaves == null) return;
+
+        cryptLeaves(executor);
+        fields += leaves.size();
+        bytes += chunkBytes.get();
+        if (chunkKeyVersion >= 0) keyVersion = chunkKeyVersion;
+
+        resolving = true;
+        walker.accept(this);
+    }
+
+    private void cryptLeaves(Executor executor) {
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, leaves.size() / (parallelism(executor) * 4) + 1);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        try {
+            for (int from = 0; from < leaves.size(); from += chunkSize) {
+                int start = from;
+                int end = Math.min(from + chunkSize, leaves.size());
+                futures.add(CompletableFuture.runAsync(() -> cryptLeaves(start, end), executor));
+            }
+        } catch (RuntimeException | Error e) {
+            // e.g. rejected by the executor: the chunks already submitted still write to the leaves, let them finish first
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).exceptionally(failure -> null).join();
+            throw e;
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    }
+
+    private void cryptLeaves(int from, int to) {
+        C codec = codecs.borrow();
+        codec.borrowed(collection, tracked);
+        try {
+            for (int i = from; i < to; i++) {
+                Deferred deferred = leaves.get(i);
+                try {
+                    deferred.result = deferred.deterministic ? codec.deterministic(deferred.value) : codec.apply(deferred.value);
+                } catch (Throwable e) {
+                    deferred.failure = e;
+                }
+            }
+            chunkBytes.addAndGet(codec.bytes);
+            if (codec.keyVersion >= 0) chunkKeyVersion = codec.keyVersion;
+        } finally {
+            codec.released();
+            codecs.release(codec);
+        }
+    }
+
+    private static int parallelism(Executor executor) {
+        if (executor instanceof ForkJoinPool) return ((ForkJoinPool) executor).getParallelism();
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    private static class Deferred {
+        final Object value;
+        final boolean deterministic;
+        Object result;
+        Throwable failure;
+
+        Deferred(Object value, boolean deterministic) {
+            this.value = value;
+            this.deterministic = deterministic;
+        }
+    }
+}
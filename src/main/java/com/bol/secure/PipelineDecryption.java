@@ -0,0 +1,89 @@
+package com.bol.secure;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.ChangeStreamEvent;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationResults;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.data.mongodb.core.messaging.MessageListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Decrypts documents that are not loaded as the entity they were saved as, by the plan of that entity:
+ * <ul>
+ *     <li>the results of aggregations: on AfterLoadEvent, these are decrypted by the plan of the output type, so
+ *     aggregating into a DTO without @Encrypted fields, or into Document, leaves them encrypted. Aggregate via
+ *     {@link #aggregate(MongoOperations, Aggregation, String, Class, Class)} instead, which decrypts the raw results
+ *     by the plan of the entity, then maps them to the output type</li>
+ *     <li>the full documents of change stream events, which are mapped without any AfterLoadEvent: decrypt them by
+ *     {@link #decrypt(ChangeStreamEvent, Class)}, e.g. in `reactiveMongoTemplate.changeStream(...).map(...)`, or
+ *     wrap the listener of a change stream request of a MessageListenerContainer by
+ *     {@link #decrypting(Class, MessageListener)}</li>
+ * </ul>
+ * Only fields still at the path they were saved at are decrypted: pipelines that filter, sort, limit or look up
+ * documents keep the encrypted fields in place, while $project or $group can move them elsewhere. Encrypted values
+ * can't be computed on by the server anyway.
+ */
+public class PipelineDecryption {
+    private final AbstractEncryptionEventListener<?> eventListener;
+
+    public PipelineDecryption(AbstractEncryptionEventListener<?> eventListener) {
+        this.eventListener = eventListener;
+    }
+
+    public <T> AggregationResults<T> aggregate(MongoOperations operations, Aggregation aggregation, Class<?> entityClass, Class<T> outputType) {
+        return aggregate(operations, aggregation, operations.getCollectionName(entityClass), entityClass, outputType);
+    }
+
+    /** same as MongoOperations.aggregate(), with the results decrypted as `entityClass` before mapping them to `outputType` */
+    public <T> AggregationResults<T> aggregate(MongoOperations operations, Aggregation aggregation, String collection, Class<?> entityClass, Class<T> outputType) {
+        AggregationResults<Document> results = operations.aggregate(aggregation, collection, Document.class);
+
+        List<T> mapped = new ArrayList<>(results.getMappedResults().size());
+        for (Document document : results.getMappedResults()) {
+            mapped.add(read(operations, document, collection, entityClass, outputType));
+        }
+        return new AggregationResults<>(mapped, results.getRawResults());
+    }
+
+    /** same as MongoOperations.aggregateStream(), with the results decrypted as `entityClass` before mapping them to `outputType` */
+    public <T> Stream<T> aggregateStream(MongoOperations operations, Aggregation aggregation, String collection, Class<?> entityClass, Class<T> outputType) {
+        return operations.aggregateStream(aggregation, collection, Document.class)
+                .map(document -> read(operations, document, collection, entityClass, outputType));
+    }
+
+    /** decrypts the full document, and the one before the change, of `event` in place, as `entityClass`; call before its getBody() */
+    public <T> ChangeStreamEvent<T> decrypt(ChangeStreamEvent<T> event, Class<?> entityClass) {
+        decrypt(event.getRaw(), event.getCollectionName(), entityClass);
+        return event;
+    }
+
+    /** `listener`, with the full documents of the messages it gets decrypted as `entityClass` */
+    public <T> MessageListener<ChangeStreamDocument<Document>, T> decrypting(Class<?> entityClass, MessageListener<ChangeStreamDocument<Document>, T> listener) {
+        return message -> {
+            decrypt(message.getRaw(), message.getProperties().getCollectionName(), entityClass);
+            listener.onMessage(message);
+        };
+    }
+
+    private <T> T read(MongoOperations operations, Document document, String collection, Class<?> entityClass, Class<T> outputType) {
+        decrypt(document, collection, entityClass);
+        return operations.getConverter().read(outputType, document);
+    }
+
+    private void decrypt(ChangeStreamDocument<Document> raw, String collection, Class<?> entityClass) {
+        if (raw == null) return;
+        // deletes have neither
+        if (raw.getFullDocument() != null) decrypt(raw.getFullDocument(), collection, entityClass);
+        if (raw.getFullDocumentBeforeChange() != null) decrypt(raw.getFullDocumentBeforeChange(), collection, entityClass);
+    }
+
+    private void decrypt(Document document, String collection, Class<?> entityClass) {
+        eventListener.onAfterLoad(new AfterLoadEvent<>(document, entityClass, collection));
+    }
+}
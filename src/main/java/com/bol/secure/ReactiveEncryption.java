@@ -0,0 +1,120 @@
+package com.bol.secure;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveCallback;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+import org.springframework.data.mongodb.core.mapping.event.ReactiveBeforeSaveCallback;
+import org.springframework.data.mongodb.core.query.BasicQuery;
+import org.springframework.data.mongodb.core.query.Query;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Encryption for ReactiveMongoTemplate, with the crypt work moved off the event loop threads that emit the mapping
+ * events. Register this as a bean instead of (never next to) the wrapped encryption event listener, which must not
+ * be a bean itself:
+ * <ul>
+ *     <li>saves are encrypted on `scheduler`, as a ReactiveBeforeSaveCallback; to encrypt the saves of a blocking
+ *     MongoTemplate too, register {@link #blockingSaveCallback()} as a bean as well</li>
+ *     <li>loads via {@link #find(ReactiveMongoOperations, Query, Class)} are decrypted and mapped on `scheduler`, in
+ *     batches of `batchSize` documents, as requested by the subscriber</li>
+ *     <li>all other loads are still decrypted on AfterLoadEvent, on the thread emitting it, as there is no reactive
+ *     callback before the document is mapped to the entity</li>
+ * </ul>
+ */
+public class ReactiveEncryption extends AbstractMongoEventListener<Object> implements ReactiveBeforeSaveCallback<Object> {
+    static final int DEFAULT_BATCH_SIZE = 32;
+
+    private final AbstractEncryptionEventListener<?> eventListener;
+    private final Scheduler scheduler;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    public ReactiveEncryption(AbstractEncryptionEventListener<?> eventListener) {
+        this(eventListener, Schedulers.boundedElastic());
+    }
+
+    public ReactiveEncryption(AbstractEncryptionEventListener<?> eventListener, Scheduler scheduler) {
+        this.eventListener = eventListener;
+        this.scheduler = scheduler;
+    }
+
+    /** number of documents {@link #find(ReactiveMongoOperations, Query, Class)} requests and crypts at a time */
+    public ReactiveEncryption withBatchSize(int batchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public AbstractEncryptionEventListener<?> getEventListener() {
+        return eventListener;
+    }
+
+    @Override
+    public Mono<Object> onBeforeSave(Object entity, Document document, String collection) {
+        return Mono.fromCallable(() -> encrypt(entity, document, collection)).subscribeOn(scheduler);
+    }
+
+    private Object encrypt(Object entity, Document document, String collection) {
+        eventListener.onBeforeSave(new BeforeSaveEvent<>(entity, document, collection));
+        return entity;
+    }
+
+    /** encrypts saves of a blocking MongoTemplate, which doesn't call reactive callbacks, in place */
+    public BlockingSaveCallback blockingSaveCallback() {
+        return new BlockingSaveCallback();
+    }
+
+    @Override
+    public void onAfterLoad(AfterLoadEvent<Object> event) {
+        // raw documents, e.g. those loaded by find() below; they are decrypted once their entity type is known
+        if (Document.class.equals(event.getType())) return;
+        eventListener.onAfterLoad(event);
+    }
+
+    public <T> Flux<T> find(ReactiveMongoOperations operations, Query query, Class<T> entityClass) {
+        return find(operations, query, entityClass, operations.getCollectionName(entityClass));
+    }
+
+    /**
+     * Same as ReactiveMongoOperations.find(), but decrypts and maps the documents on `scheduler`. The query is mapped
+     * for `entityClass`, as ReactiveMongoOperations would, before it is run against the raw documents.
+     * As with {@link AbstractEncryptionEventListener#decryptOnly(Query, java.util.function.Supplier)}, only the fields
+     * included by the projection of the query, if any, are decrypted.
+     */
+    public <T> Flux<T> find(ReactiveMongoOperations operations, Query query, Class<T> entityClass, String collection) {
+        Query mapped = map(operations.getConverter(), query, entityClass);
+        return operations.find(mapped, Document.class, collection)
+                .publishOn(scheduler, batchSize)
+                .map(document -> eventListener.decryptOnly(mapped, () -> {
+                    eventListener.onAfterLoad(new AfterLoadEvent<>(document, entityClass, collection));
+                    return operations.getConverter().read(entityClass, document);
+                }));
+    }
+
+    // queries for Document.class are run as they are, so map property names and values to those of the documents here
+    static Query map(MongoConverter converter, Query query, Class<?> entityClass) {
+        MongoPersistentEntity<?> entity = converter.getMappingContext().getPersistentEntity(entityClass);
+        if (entity == null) return query;
+
+        QueryMapper queryMapper = new QueryMapper(converter);
+        BasicQuery mapped = BlindIndexQuery.copy(query, queryMapper.getMappedObject(query.getQueryObject(), entity));
+        mapped.setFieldsObject(queryMapper.getMappedFields(query.getFieldsObject(), entity));
+        mapped.setSortObject(queryMapper.getMappedSort(query.getSortObject(), entity));
+        return mapped;
+    }
+
+    public class BlockingSaveCallback implements BeforeSaveCallback<Object> {
+        @Override
+        public Object onBeforeSave(Object entity, Document document, String collection) {
+            return encrypt(entity, document, collection);
+        }
+    }
+}
@@ -17,6 +17,7 @@ import java.util.Map;
 import java.util.function.Function;
 
 import static com.bol.reflection.Node.Type.DIRECT;
+import static com.bol.reflection.Node.Type.LAZY;
 import static com.bol.reflection.ReflectionCache.isPrimitive;
 
 /**
@@ -37,21 +38,45 @@ public class ReflectionEncryptionEventListener extends AbstractEncryptionEventLi
         reflectionCache = new ReflectionCache(fieldEncryptedPredicate);
     }
 
-    void cryptDocument(Document document, Class<?> clazz, Function<Object, Object> crypt) {
+    /** sub-documents are only reflected once seen in a document, so this covers the top level of `clazz` */
+    @Override
+    public int prepare(Class<?> clazz) {
+        int encrypted = 0;
+        for (Node node : reflectionCache.reflectSingle(clazz)) {
+            if (node.type == DIRECT || node.type == LAZY) encrypted++;
+        }
+        return encrypted;
+    }
+
+    void cryptDocument(Document document, Class<?> clazz, Function<Object, Object> crypt, FieldSelection selection) {
+        // only the fields that may need crypting; looking them up beats scanning all keys of wide documents
         List<Node> nodes = reflectionCache.reflectSingle(clazz);
 
-        for (Map.Entry<String, Object> field : document.entrySet()) {
-            String documentName = field.getKey();
-            if (documentName.equals("_class")) continue;
+        for (int i = 0, size = nodes.size(); i < size; i++) {
+            Node node = nodes.get(i);
+            String documentName = node.documentName;
 
-            Node node = find(nodes, documentName);
-            if (node == null) continue;
+            FieldSelection fieldSelection = selection.child(documentName);
+            if (fieldSelection == null && node.type != LAZY) continue;
 
-            Object fieldValue = field.getValue();
+            Object fieldValue = document.get(documentName);
+            if (fieldValue == null) {
+                // explicit nulls of encrypted fields get crypted, same as any value
+                if (node.type != DIRECT && node.type != LAZY || !document.containsKey(documentName)) continue;
+            }
 
             if (node.type == DIRECT) {
                 try {
-                    document.put(documentName, crypt.apply(fieldValue));
+                    if (node.blindIndexName != null) blindIndex(document, node.blindIndexName, node.blindIndexLength, fieldValue, crypt);
+                    document.put(documentName, node.deterministic ? ((Crypter) crypt).deterministic(fieldValue) : crypt.apply(fieldValue));
+                } catch (Exception e) {
+                    throw new FieldCryptException(documentName, e);
+                }
+
+            } else if (node.type == LAZY) {
+                try {
+                    if (node.blindIndexName != null) blindIndex(document, node.blindIndexName, node.blindIndexLength, fieldValue, crypt);
+                    document.put(documentName, crypt.apply(node.blindIndexName != null ? lazy(fieldValue, document.get(node.blindIndexName)) : lazy(fieldValue)));
                 } catch (Exception e) {
                     throw new FieldCryptException(documentName, e);
                 }
@@ -59,7 +84,7 @@ public class ReflectionEncryptionEventListener extends AbstractEncryptionEventLi
             } else {
 
                 try {
-                    diveInto(fieldValue, node.field.getGenericType(), crypt);
+                    diveInto(fieldValue, node.field.getGenericType(), crypt, fieldSelection);
                 } catch (FieldCryptException e) {
                     throw e.chain(documentName);
                 }
@@ -67,7 +92,7 @@ public class ReflectionEncryptionEventListener extends AbstractEncryptionEventLi
         }
     }
 
-    void diveInto(Object value, Type type, Function<Object, Object> crypt) {
+    void diveInto(Object value, Type type, Function<Object, Object> crypt, FieldSelection selection) {
         // java primitive type; ignore
         if (isPrimitive(value.getClass())) return;
 
@@ -88,8 +113,11 @@ public class ReflectionEncryptionEventListener extends AbstractEncryptionEventLi
                 Type subFieldType = typeArguments[1];
 
                 for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    FieldSelection entrySelection = selection.child(entry.getKey().toString());
+                    if (entrySelection == null) continue;
+
                     try {
-                        diveInto(entry.getValue(), subFieldType, crypt);
+                        diveInto(entry.getValue(), subFieldType, crypt, entrySelection);
                     } catch (FieldCryptException e) {
                         throw e.chain(entry.getKey().toString());
                     }
@@ -98,9 +126,9 @@ public class ReflectionEncryptionEventListener extends AbstractEncryptionEventLi
             } else {
                 Class<?> childNode = fetchClassFromField((Document) value);
                 if (childNode != null) {
-                    cryptDocument((Document) value, childNode, crypt);
+                    cryptDocument((Document) value, childNode, crypt, selection);
                 } else {
-                    cryptDocument((Document) value, reflectiveClass, crypt);
+                    cryptDocument((Document) value, reflectiveClass, crypt, selection);
                 }
             }
         } else if (value instanceof List) {
@@ -110,7 +138,7 @@ public class ReflectionEncryptionEventListener extends AbstractEncryptionEventLi
 
                 for (int i = 0; i < list.size(); i++) {
                     try {
-                        diveInto(list.get(i), subFieldType, crypt);
+                        diveInto(list.get(i), subFieldType, crypt, selection);
                     } catch (FieldCryptException e) {
                         throw e.chain(Integer.toString(i));
                     }
@@ -124,30 +152,24 @@ public class ReflectionEncryptionEventListener extends AbstractEncryptionEventLi
         }
     }
 
-    private static Class<?> fetchClassFromField(Document value) {
+    Class<?> fetchClassFromField(Document value) {
         String className = (String) value.get("_class");
-        if (className != null) {
-            try {
-                return Class.forName(className);
-            } catch (ClassNotFoundException ignored) {
-                throw new IllegalArgumentException("Unknown _class field reference: " + className);
-            }
-        }
-        return null;
-    }
-
-    private static Node find(List<Node> nodes, String documentName) {
-        for (Node node : nodes) {
-            if (node.documentName.equals(documentName)) return node;
-        }
-        return null;
+        if (className == null) return null;
+        return discriminatedClass(className, value);
     }
 
     @Override
     public void onAfterLoad(AfterLoadEvent event) {
+        // raw documents, e.g. aggregation results to be decrypted by PipelineDecryption; they have no plan of their own
+        if (Document.class.equals(event.getType())) return;
         Document document = event.getDocument();
+        Class<?> type = event.getType();
+
+        FieldSelection selection = decryptSelection();
+        if (selection.isEmpty()) return;
+
         try {
-            cryptDocument(document, event.getType(), new Decoder());
+            crypt(decoders, event.getCollectionName(), type, trackLoad(event.getCollectionName(), document), crypt -> cryptDocument(document, type, crypt, selection));
         } catch (Exception e) {
             Object id = document.get("_id");
             throw new DocumentCryptException(event.getCollectionName(), id, e);
@@ -157,8 +179,9 @@ public class ReflectionEncryptionEventListener extends AbstractEncryptionEventLi
     @Override
     public void onBeforeSave(BeforeSaveEvent event) {
         Document document = event.getDocument();
+        Class<?> type = event.getSource().getClass();
         try {
-            cryptDocument(document, event.getSource().getClass(), new Encoder());
+            crypt(encoders, event.getCollectionName(), type, trackSave(event.getCollectionName(), document), crypt -> cryptDocument(document, type, crypt, FieldSelection.ALL));
         } catch (Exception e) {
             Object id = document.get("_id");
             throw new DocumentCryptException(event.getCollectionName(), id, e);
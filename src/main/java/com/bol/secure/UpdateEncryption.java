@@ -0,0 +1,363 @@
+package com.bol.secure;
+
+import com.bol.crypt.FieldCryptException;
+import com.bol.reflection.FieldPlan;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentProperty;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.data.util.TypeInformation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Encrypts the values of an Update that target encrypted fields, so that they can be changed by a single atomic
+ * update instead of loading and saving the whole entity:
+ * <pre>
+ * mongoTemplate.updateFirst(query, updateEncryption.encrypt(new Update().set("ssn", ssn), Person.class), Person.class);
+ * </pre>
+ * Paths are resolved by the plan of the CachedEncryptionEventListener, by property or by document names, through
+ * sub-documents, map keys and list elements (`$`, `$[]`, `$[identifier]` or an index), e.g.
+ * `addresses.$.zipCode`. Values are mapped to their mongodb types by the converter first, then crypted just like on save:
+ * <ul>
+ *     <li>$set and $setOnInsert of an encrypted field encrypt its value, and set its blind index too</li>
+ *     <li>$set and $setOnInsert of a sub-document, list or map crypt the encrypted fields within</li>
+ *     <li>$push and $addToSet (with or without $each) crypt the encrypted fields within the new elements</li>
+ *     <li>$unset of a @BlindIndex field unsets its blind index too</li>
+ * </ul>
+ * Anything else touching an encrypted field (e.g. $inc, $push onto an encrypted list, or setting a field within an
+ * encrypted sub-document) is rejected by an IllegalArgumentException, as the server can't apply it to ciphertexts.
+ * <p>
+ * In polymorphism mode, values keep their _class, so that sub-documents are crypted by the plan of their subclass.
+ * Paths through the entity or a polymorphic sub-document may name fields of its subclasses known to the mapping
+ * context; a field that is neither a property of the declared class nor of any of those subclasses is rejected,
+ * as it might be encrypted by a subclass not known yet. Update such a field via the subclass as `entityClass`.
+ * Mind that $addToSet never finds an element with encrypted fields to be present already, as encryption is randomized.
+ */
+public class UpdateEncryption {
+    private final MongoConverter converter;
+    private final CachedEncryptionEventListener listener;
+
+    public UpdateEncryption(MongoConverter converter, CachedEncryptionEventListener listener) {
+        this.converter = converter;
+        this.listener = listener;
+    }
+
+    /** @return `update` itself if it touches no encrypted fields of `entityClass`, an encrypted copy otherwise */
+    public Update encrypt(Update update, Class<?> entityClass) {
+        FieldPlan plan = listener.plan(entityClass);
+        if (plan == FieldPlan.EMPTY && !listener.isPolymorphic()) return update;
+
+        Document result = new Document();
+        List<Value> values = new ArrayList<>();
+        boolean indexesUnset = false;
+
+        for (Map.Entry<String, Object> operation : update.getUpdateObject().entrySet()) {
+            String operator = operation.getKey();
+            // may hold the $unset of blind indexes already
+            Document fields = (Document) result.computeIfAbsent(operator, o -> new Document());
+            fields.putAll((Document) operation.getValue());
+
+            for (Map.Entry<String, Object> field : ((Document) operation.getValue()).entrySet()) {
+                String path = field.getKey();
+                Target target = resolve(entityClass, plan, path);
+                if (target == null) continue;
+
+                switch (operator) {
+                    case "$set":
+                    case "$setOnInsert":
+                        if (field.getValue() == null) {
+                            if (target.blindIndexName() != null) indexesUnset = unset(result, target.blindIndexPath());
+                            continue;
+                        }
+                        // with the declared type, so that subclasses keep their _class
+                        fields.put(path, converter.convertToMongoType(field.getValue(), target.type));
+                        values.add(new Value(fields, target, false));
+                        break;
+
+                    case "$push":
+                    case "$addToSet":
+                        if (target.tag() != FieldPlan.LIST) throw unsupported(entityClass, path, operator);
+                        if (field.getValue() == null) continue;
+                        fields.put(path, element(field.getValue(), target.type == null ? null : target.type.getComponentType()));
+                        values.add(new Value(fields, target, true));
+                        break;
+
+                    case "$unset":
+                        if (target.blindIndexName() != null) indexesUnset = unset(result, target.blindIndexPath());
+                        break;
+
+                    default:
+                        // e.g. $pull of sub-documents by their non-sensitive fields is fine
+                        if (target.tag() == FieldPlan.DIRECT || target.tag() == FieldPlan.LAZY) throw unsupported(entityClass, path, operator);
+                }
+            }
+        }
+
+        if (values.isEmpty() && !indexesUnset) return update;
+
+        if (!values.isEmpty()) {
+            String collection = converter.getMappingContext().getRequiredPersistentEntity(entityClass).getCollection();
+            listener.crypt(listener.encoders, collection, entityClass, null, crypt -> {
+                for (Value value : values) value.crypt(crypt);
+            });
+        }
+
+        Update encrypted = Update.fromDocument(result);
+        for (UpdateDefinition.ArrayFilter arrayFilter : update.getArrayFilters()) {
+            for (Map.Entry<String, Object> filter : arrayFilter.asDocument().entrySet()) {
+                encrypted.filterArray(filter.getKey(), filter.getValue());
+            }
+        }
+        return encrypted;
+    }
+
+    /** null if `path` is neither an encrypted field, nor leads to any */
+    private Target resolve(Class<?> entityClass, FieldPlan plan, String path) {
+        String[] segments = path.split("\\.");
+        FieldPlan owner = null;
+        int index = -1;
+        // loading by a superclass yields the subclass documents too
+        int tag = listener.isPolymorphic() ? FieldPlan.POLYMORPHIC : FieldPlan.DOCUMENT;
+        // of the value at the current segment; null if not known to the mapping context
+        TypeInformation<?> type = TypeInformation.of(entityClass);
+
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+
+            switch (tag) {
+                case FieldPlan.DOCUMENT:
+                    index = indexOf(plan, segment);
+                    if (index < 0) return null;
+                    owner = plan;
+                    type = propertyType(type, segment);
+                    break;
+
+                case FieldPlan.POLYMORPHIC:
+                    index = indexOf(plan, segment);
+                    if (index < 0) {
+                        type = subclassEncrypting(entityClass, type, segment, path);
+                        if (type == null) return null;
+                        plan = listener.plan(type.getType());
+                        index = indexOf(plan, segment);
+                    }
+                    owner = plan;
+                    type = propertyType(type, segment);
+                    break;
+
+                case FieldPlan.LIST:
+                    if (!isPositional(segment)) return null;
+                    // the single-entry plan of the elements
+                    owner = plan;
+                    index = 0;
+                    type = type == null ? null : type.getComponentType();
+                    break;
+
+                case FieldPlan.MAP:
+                    owner = plan;
+                    index = 0;
+                    type = type == null ? null : type.getMapValueType();
+                    break;
+
+                default:
+                    throw new IllegalArgumentException(entityClass.getName() + "." + String.join(".", List.of(segments).subList(0, i))
+                            + " is encrypted as a whole, and can't be updated partially via " + path);
+            }
+
+            tag = owner.tags[index];
+            plan = owner.next[index];
+        }
+
+        return new Target(path, owner, index, type);
+    }
+
+    /**
+     * The subclass of `declared` known to the mapping context that encrypts `segment`, or leads to encrypted fields
+     * by it; null if it's a plain property of `declared` or of those subclasses.
+     */
+    private TypeInformation<?> subclassEncrypting(Class<?> entityClass, TypeInformation<?> declared, String segment, String path) {
+        if (declared != null) {
+            Class<?> declaredClass = declared.getType();
+            Class<?> found = null;
+            boolean plain = propertyType(declared, segment) != null;
+
+            for (MongoPersistentEntity<?> entity : converter.getMappingContext().getPersistentEntities()) {
+                Class<?> subclass = entity.getType();
+                if (subclass == declaredClass || !declaredClass.isAssignableFrom(subclass)) continue;
+
+                if (indexOf(listener.plan(subclass), segment) < 0) {
+                    plain |= property(entity, segment) != null;
+                } else if (found == null || subclass.isAssignableFrom(found)) {
+                    found = subclass;
+                } else if (!found.isAssignableFrom(subclass) && !sameField(found, subclass, segment)) {
+                    throw new IllegalArgumentException(entityClass.getName() + "." + path + " is ambiguous, as " + found.getName()
+                            + " and " + subclass.getName() + " encrypt " + segment + " differently; update it via either as entity class");
+                }
+            }
+
+            if (found != null) return TypeInformation.of(found);
+            if (plain) return null;
+        }
+
+        throw new IllegalArgumentException(entityClass.getName() + "." + path + " can't be resolved: " + segment + " is not a property of "
+                + (declared == null ? "the sub-document" : declared.getType().getName() + " or any of its subclasses known to the mapping context")
+                + ", and may be encrypted by a subclass not known yet");
+    }
+
+    /** whether sibling subclasses encrypt their field `segment` alike, e.g. both declare an @Encrypted String */
+    private boolean sameField(Class<?> a, Class<?> b, String segment) {
+        FieldPlan planA = listener.plan(a);
+        FieldPlan planB = listener.plan(b);
+        int i = indexOf(planA, segment);
+        int j = indexOf(planB, segment);
+
+        return planA.tags[i] == planB.tags[j]
+                && (planA.tags[i] == FieldPlan.DIRECT || planA.tags[i] == FieldPlan.LAZY)
+                && planA.deterministic[i] == planB.deterministic[j]
+                && planA.blindIndexLengths[i] == planB.blindIndexLengths[j]
+                && Objects.equals(planA.blindIndexNames[i], planB.blindIndexNames[j]);
+    }
+
+    private TypeInformation<?> propertyType(TypeInformation<?> type, String segment) {
+        if (type == null) return null;
+        MongoPersistentEntity<?> entity = converter.getMappingContext().getPersistentEntity(type);
+        if (entity == null) return null;
+        MongoPersistentProperty property = property(entity, segment);
+        return property == null ? null : property.getTypeInformation();
+    }
+
+    /** by property or by document name, just like the plans */
+    private static MongoPersistentProperty property(MongoPersistentEntity<?> entity, String name) {
+        MongoPersistentProperty property = entity.getPersistentProperty(name);
+        if (property != null) return property;
+        for (MongoPersistentProperty candidate : entity) {
+            if (name.equals(candidate.getFieldName())) return candidate;
+        }
+        return null;
+    }
+
+    private static int indexOf(FieldPlan plan, String name) {
+        for (int i = 0; i < plan.tags.length; i++) {
+            if (name.equals(plan.documentNames[i]) || name.equals(plan.fieldNames[i])) return i;
+        }
+        return -1;
+    }
+
+    private static boolean isPositional(String segment) {
+        if (segment.equals("$") || segment.startsWith("$[")) return true;
+        for (int i = 0; i < segment.length(); i++) {
+            if (!Character.isDigit(segment.charAt(i))) return false;
+        }
+        return !segment.isEmpty();
+    }
+
+    /** the element to $push or $addToSet, with $each as a Document, mapped to mongodb types */
+    private Object element(Object value, TypeInformation<?> type) {
+        Document modifiers = null;
+        if (value instanceof Update.Modifiers) {
+            modifiers = new Document();
+            for (Update.Modifier modifier : ((Update.Modifiers) value).getModifiers()) {
+                modifiers.put(modifier.getKey(), modifier.getValue());
+            }
+        } else if (value instanceof Update.Modifier) {
+            modifiers = new Document(((Update.Modifier) value).getKey(), ((Update.Modifier) value).getValue());
+        } else if (value instanceof Document && ((Document) value).containsKey("$each")) {
+            modifiers = new Document((Document) value);
+        }
+
+        if (modifiers == null) return converter.convertToMongoType(value, type);
+
+        modifiers.put("$each", converter.convertToMongoType(modifiers.get("$each"), type));
+        return modifiers;
+    }
+
+    private static boolean unset(Document update, String path) {
+        Document unset = (Document) update.get("$unset");
+        if (unset == null) update.put("$unset", unset = new Document());
+        unset.put(path, "");
+        return true;
+    }
+
+    private static IllegalArgumentException unsupported(Class<?> entityClass, String path, String operator) {
+        return new IllegalArgumentException(entityClass.getName() + "." + path + " is encrypted, and can't be updated by " + operator);
+    }
+
+    /** where an update path ends: entry `index` of `owner`, declared as `type` */
+    private static final class Target {
+        final String path;
+        final FieldPlan owner;
+        final int index;
+        final TypeInformation<?> type;
+
+        Target(String path, FieldPlan owner, int index, TypeInformation<?> type) {
+            this.path = path;
+            this.owner = owner;
+            this.index = index;
+            this.type = type;
+        }
+
+        int tag() {
+            return owner.tags[index];
+        }
+
+        String blindIndexName() {
+            return owner.blindIndexNames[index];
+        }
+
+        /** the blind index is a sibling of the field */
+        String blindIndexPath() {
+            int dot = path.lastIndexOf('.');
+            return dot < 0 ? blindIndexName() : path.substring(0, dot + 1) + blindIndexName();
+        }
+    }
+
+    /** a value of `fields` to crypt in place; crypted twice in parallel mode, hence no state of its own */
+    private final class Value {
+        final Document fields;
+        final Target target;
+        final boolean element;
+
+        Value(Document fields, Target target, boolean element) {
+            this.fields = fields;
+            this.target = target;
+            this.element = element;
+        }
+
+        void crypt(AbstractEncryptionEventListener.Crypter crypt) {
+            String path = target.path;
+            Object value = fields.get(path);
+            FieldPlan owner = target.owner;
+            int i = target.index;
+
+            try {
+                if (element) {
+                    FieldPlan elements = owner.next[i];
+                    if (value instanceof Document && ((Document) value).containsKey("$each")) {
+                        listener.cryptList((List<?>) ((Document) value).get("$each"), elements, crypt, FieldSelection.ALL);
+                    } else {
+                        listener.cryptFields(value, elements.tags[0], elements.next[0], null, crypt, FieldSelection.ALL);
+                    }
+
+                } else if (target.tag() == FieldPlan.DIRECT || target.tag() == FieldPlan.LAZY) {
+                    if (target.blindIndexName() != null) {
+                        listener.blindIndex(fields, target.blindIndexPath(), owner.blindIndexLengths[i], value, crypt);
+                    }
+                    if (target.tag() == FieldPlan.LAZY) value = listener.lazy(value);
+                    fields.put(path, owner.deterministic[i] ? crypt.deterministic(value) : crypt.apply(value));
+
+                } else {
+                    listener.cryptFields(value, target.tag(), owner.next[i], null, crypt, FieldSelection.ALL);
+                }
+            } catch (FieldCryptException e) {
+                throw e.chain(path);
+            } catch (Exception e) {
+                throw new FieldCryptException(path, e);
+            }
+        }
+    }
+}
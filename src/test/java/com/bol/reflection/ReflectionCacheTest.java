@@ -0,0 +1,48 @@
+package com.bol.reflection;
+
+import com.bol.secure.FieldEncryptedPredicate;
+import com.bol.system.model.MyBean;
+import com.bol.system.model.MySubBean;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReflectionCacheTest {
+
+    @Test
+    public void concurrentBuildsPublishCompleteNodes() throws Exception {
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 20; round++) {
+                ReflectionCache cache = new ReflectionCache(FieldEncryptedPredicate.ANNOTATION_PRESENT);
+                CyclicBarrier start = new CyclicBarrier(threads);
+
+                List<Future<List<Node>>> results = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    Class<?> clazz = i % 2 == 0 ? MyBean.class : MySubBean.class;
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        return cache.reflectRecursive(clazz);
+                    }));
+                }
+
+                for (int i = 0; i < threads; i++) {
+                    List<Node> nodes = results.get(i).get(10, TimeUnit.SECONDS);
+                    assertThat(nodes).isSameAs(cache.reflectRecursive(i % 2 == 0 ? MyBean.class : MySubBean.class));
+                    assertThat(nodes).extracting(node -> node.fieldName).contains("secretString");
+                }
+
+                // the recursive sub-bean must be published with its fields, not as it was seen halfway through
+                Node subBean = cache.reflectRecursive(MyBean.class).stream().filter(node -> node.fieldName.equals("nonSensitiveSubBean")).findFirst().get();
+                assertThat(subBean.children).extracting(node -> node.fieldName).contains("secretString", "recursiveBean", "nestedCollectionsBean");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
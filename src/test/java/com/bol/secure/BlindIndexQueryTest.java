@@ -0,0 +1,152 @@
+package com.bol.secure;
+
+import com.bol.system.model.IndexedBean;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.junit.Test;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.SimpleMongoClientDatabaseFactory;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+public class BlindIndexQueryTest {
+
+    private static final byte[] indexKey = Base64.getDecoder().decode("93gEnX0TTPVYETLoESnEGPk15SEJrA+XxZzvPyQNOj4=");
+
+    private final BlindIndexer blindIndexer = new BlindIndexer(indexKey);
+    private final MappingMongoConverter converter = TestConverters.converter();
+
+    @Test
+    public void equality() {
+        BlindIndexQuery blindIndexQuery = rewrite(query(where("ssn").is("123-45-6789").and("name").is("joe"))
+                .with(Sort.by("name")).skip(5).limit(10));
+
+        assertThat(blindIndexQuery.getQuery().getQueryObject()).isEqualTo(new Document()
+                .append(IndexedBean.MONGO_SSN_INDEX, blindIndexer.index("123-45-6789", 16))
+                .append("name", "joe"));
+        assertThat(blindIndexQuery.getQuery().getSortObject()).isEqualTo(new Document("name", 1));
+        assertThat(blindIndexQuery.getQuery().getSkip()).isEqualTo(5);
+        assertThat(blindIndexQuery.getQuery().getLimit()).isEqualTo(10);
+    }
+
+    @Test
+    public void inAndNested() {
+        BlindIndexQuery blindIndexQuery = rewrite(query(new Criteria().andOperator(
+                where("email").in("joe@example.com", "jane@example.com"),
+                where("addresses.zipCode").is("1234AB"))));
+
+        List<Object> and = (List<Object>) blindIndexQuery.getQuery().getQueryObject().get("$and");
+        assertThat(and).containsExactly(
+                new Document(IndexedBean.MONGO_EMAIL_INDEX, new Document("$in", Arrays.asList(blindIndexer.index("joe@example.com", 4), blindIndexer.index("jane@example.com", 4)))),
+                new Document(IndexedBean.MONGO_ADDRESSES + "." + IndexedBean.Address.MONGO_ZIPCODE_INDEX, blindIndexer.index("1234AB", 16)));
+    }
+
+    @Test
+    public void collisionsDoNotMatch() {
+        BlindIndexQuery blindIndexQuery = rewrite(query(where("ssn").is("123-45-6789").and("addresses.zipCode").in("1234AB", "5678CD")));
+
+        IndexedBean bean = new IndexedBean();
+        bean.ssn = "123-45-6789";
+        bean.addresses = Arrays.asList(new IndexedBean.Address("9999ZZ"), new IndexedBean.Address("5678CD"));
+        assertThat(blindIndexQuery.matches(bean)).isTrue();
+
+        bean.addresses = Arrays.asList(new IndexedBean.Address("9999ZZ"));
+        assertThat(blindIndexQuery.matches(bean)).isFalse();
+
+        bean.addresses = Arrays.asList(new IndexedBean.Address("1234AB"));
+        bean.ssn = "000-00-0000";
+        assertThat(blindIndexQuery.matches(bean)).isFalse();
+
+        // projections can't be checked
+        assertThat(blindIndexQuery.matches(new Document())).isTrue();
+    }
+
+    @Test
+    public void lazyValuesAreCompared() {
+        BlindIndexQuery blindIndexQuery = rewrite(query(where("lazySsn").is("987-65-4321")));
+
+        IndexedBean bean = new IndexedBean();
+        bean.lazySsn = LazyEncrypted.of("987-65-4321");
+        assertThat(blindIndexQuery.matches(bean)).isTrue();
+
+        bean.lazySsn = LazyEncrypted.of("987-65-4320");
+        assertThat(blindIndexQuery.matches(bean)).isFalse();
+    }
+
+    @Test
+    public void deterministicCriteria() throws Exception {
+        DeterministicEncryption deterministicEncryption = new DeterministicEncryption()
+                .withKey(1, new byte[32])
+                .withDefaultKeyVersion(1);
+        IndexedBean bean = new IndexedBean();
+        bean.taxId = "NL123456789B01";
+        Document document = new Document();
+        converter.write(bean, document);
+        new CachedEncryptionEventListener(TestConverters.cryptVault()).withDeterministicEncryption(deterministicEncryption)
+                .onBeforeSave(new BeforeSaveEvent<>(bean, document, IndexedBean.MONGO_INDEXEDBEAN));
+
+        // documents saved before the default key changed are still found
+        deterministicEncryption.withKey(2, indexKey).withDefaultKeyVersion(2);
+        SimpleMongoClientDatabaseFactory databaseFactory = new SimpleMongoClientDatabaseFactory("mongodb://localhost/test");
+        try {
+            BlindIndexMongoTemplate template = new BlindIndexMongoTemplate(databaseFactory, converter, blindIndexer, deterministicEncryption);
+
+            BlindIndexQuery blindIndexQuery = template.rewrite(query(where("taxId").is(bean.taxId).and("name").is("joe")), IndexedBean.class);
+            List<Binary> ciphertexts = deterministicEncryption.encryptValueWithEveryKey(bean.taxId);
+            assertThat(ciphertexts).containsExactly((Binary) document.get(IndexedBean.MONGO_TAXID), deterministicEncryption.encryptValue(bean.taxId));
+            assertThat(blindIndexQuery.getQuery().getQueryObject()).isEqualTo(new Document()
+                    .append("taxId", new Document("$in", ciphertexts))
+                    .append("name", "joe"));
+            assertThat(blindIndexQuery.isExact()).isTrue();
+
+            // ciphertexts don't collide, so they may be looked up in a disjunction too
+            blindIndexQuery = template.rewrite(query(new Criteria().orOperator(where("taxId").in("a", "b"), where("name").is("joe"))), IndexedBean.class);
+            List<Object> ciphertextsOfBoth = new ArrayList<>(deterministicEncryption.encryptValueWithEveryKey("a"));
+            ciphertextsOfBoth.addAll(deterministicEncryption.encryptValueWithEveryKey("b"));
+            assertThat((List<Object>) blindIndexQuery.getQuery().getQueryObject().get("$or")).containsExactly(
+                    new Document("taxId", new Document("$in", ciphertextsOfBoth)),
+                    new Document("name", "joe"));
+
+            assertThatThrownBy(() -> template.rewrite(query(where("taxId").gt("a")), IndexedBean.class))
+                    .isInstanceOf(IllegalArgumentException.class);
+        } finally {
+            databaseFactory.destroy();
+        }
+    }
+
+    @Test
+    public void notRewritten() {
+        assertThat(rewrite(query(where("name").is("joe")))).isNull();
+        assertThat(rewrite(query(where("ssn").isNull()))).isNull();
+        assertThat(rewrite(query(where("mail").is("joe@example.com")))).isNull();
+        // without a DeterministicEncryption, the caller encrypts the value
+        assertThat(rewrite(query(where("taxId").is("NL123456789B01")))).isNull();
+    }
+
+    @Test
+    public void unsupportedCriteria() {
+        assertThatThrownBy(() -> rewrite(query(where("ssn").regex("^123"))))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> rewrite(query(where("ssn").gt("123"))))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> rewrite(query(new Criteria().orOperator(where("ssn").is("123-45-6789"), where("name").is("joe")))))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private BlindIndexQuery rewrite(Query query) {
+        return BlindIndexQuery.rewrite(blindIndexer, null, IndexedBean.class, query, Function.identity());
+    }
+}
@@ -0,0 +1,118 @@
+package com.bol.secure;
+
+import com.bol.crypt.CryptVault;
+import com.bol.crypt.DocumentCryptException;
+import com.bol.system.model.IndexedBean;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BlindIndexerTest {
+
+    private static final byte[] indexKey = Base64.getDecoder().decode("93gEnX0TTPVYETLoESnEGPk15SEJrA+XxZzvPyQNOj4=");
+
+    private final CryptVault cryptVault = TestConverters.cryptVault();
+    private final BlindIndexer blindIndexer = new BlindIndexer(indexKey);
+    private final MappingMongoConverter converter = TestConverters.converter();
+
+    @Test
+    public void indexIsKeyedAndTruncated() {
+        Binary index = blindIndexer.index("123-45-6789", 16);
+
+        assertThat(index.getData()).hasSize(16);
+        assertThat(blindIndexer.index("123-45-6789", 16)).isEqualTo(index);
+        assertThat(blindIndexer.index("123-45-6789", 4).getData()).isEqualTo(Arrays.copyOf(index.getData(), 4));
+        assertThat(blindIndexer.index("123-45-6780", 16)).isNotEqualTo(index);
+        assertThat(new BlindIndexer(TestConverters.SECRET_KEY).index("123-45-6789", 16)).isNotEqualTo(index);
+    }
+
+    @Test
+    public void criteria() {
+        Criteria ssn = blindIndexer.criteria(IndexedBean.class, "ssn", "123-45-6789");
+        assertThat(ssn.getCriteriaObject()).isEqualTo(new Document(IndexedBean.MONGO_SSN_INDEX, blindIndexer.index("123-45-6789", 16)));
+
+        Criteria email = blindIndexer.criteria(IndexedBean.class, "email", "joe@example.com");
+        assertThat(email.getKey()).isEqualTo(IndexedBean.MONGO_EMAIL_INDEX);
+        assertThat(((Binary) email.getCriteriaObject().get(IndexedBean.MONGO_EMAIL_INDEX)).getData()).hasSize(4);
+
+        Criteria zipCode = blindIndexer.criteria(IndexedBean.class, "addresses.zipCode", "1234AB");
+        assertThat(zipCode.getKey()).isEqualTo(IndexedBean.MONGO_ADDRESSES + "." + IndexedBean.Address.MONGO_ZIPCODE_INDEX);
+        assertThat(zipCode.getCriteriaObject().get(zipCode.getKey())).isEqualTo(blindIndexer.index("1234AB", 16));
+
+        assertThatThrownBy(() -> blindIndexer.criteria(IndexedBean.class, "name", "joe")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void cachedListenerWritesIndexes() {
+        checkIndexes(new CachedEncryptionEventListener(cryptVault).withBlindIndexer(blindIndexer));
+    }
+
+    @Test
+    public void reflectionListenerWritesIndexes() {
+        checkIndexes(new ReflectionEncryptionEventListener(cryptVault).withBlindIndexer(blindIndexer));
+    }
+
+    @Test
+    public void parallelCryptWritesIndexes() {
+        checkIndexes(new CachedEncryptionEventListener(cryptVault).withParallelCrypt(1).withBlindIndexer(blindIndexer));
+    }
+
+    private void checkIndexes(AbstractEncryptionEventListener<?> listener) {
+        IndexedBean bean = new IndexedBean();
+        bean.name = "joe";
+        bean.ssn = "123-45-6789";
+        bean.email = "joe@example.com";
+        bean.lazySsn = LazyEncrypted.of("987-65-4321");
+        bean.addresses = Arrays.asList(new IndexedBean.Address("1234AB"), new IndexedBean.Address(null));
+
+        Document document = save(listener, bean);
+
+        assertThat(document.get(IndexedBean.MONGO_SSN)).isNotEqualTo(bean.ssn);
+        assertThat(document.get(IndexedBean.MONGO_SSN_INDEX)).isEqualTo(blindIndexer.index(bean.ssn, 16));
+        assertThat(document.get(IndexedBean.MONGO_EMAIL_INDEX)).isEqualTo(blindIndexer.index(bean.email, 4));
+        assertThat(document.get("lazySsn_bidx")).isEqualTo(blindIndexer.index("987-65-4321", 16));
+        List<Document> addresses = (List<Document>) document.get(IndexedBean.MONGO_ADDRESSES);
+        assertThat(addresses.get(0).get(IndexedBean.Address.MONGO_ZIPCODE_INDEX)).isEqualTo(blindIndexer.index("1234AB", 16));
+        assertThat(addresses.get(1)).doesNotContainKey(IndexedBean.Address.MONGO_ZIPCODE_INDEX);
+
+        // loaded and saved again, without touching the lazy field: its index is still there
+        listener.onAfterLoad(new AfterLoadEvent<>(document, IndexedBean.class, IndexedBean.MONGO_INDEXEDBEAN));
+        IndexedBean fromDb = converter.read(IndexedBean.class, document);
+        assertThat(fromDb.ssn).isEqualTo(bean.ssn);
+        assertThat(fromDb.lazySsn.isDecrypted()).isFalse();
+
+        Document saved = save(listener, fromDb);
+        assertThat(saved.get("lazySsn_bidx")).isEqualTo(blindIndexer.index("987-65-4321", 16));
+        // the loaded index is written back, without decrypting the field
+        assertThat(fromDb.lazySsn.isDecrypted()).isFalse();
+        assertThat(saved.get(IndexedBean.MONGO_SSN_INDEX)).isEqualTo(document.get(IndexedBean.MONGO_SSN_INDEX));
+    }
+
+    @Test
+    public void indexWithoutIndexer() {
+        IndexedBean bean = new IndexedBean();
+        bean.ssn = "123-45-6789";
+
+        assertThatThrownBy(() -> save(new CachedEncryptionEventListener(cryptVault), bean))
+                .isInstanceOf(DocumentCryptException.class)
+                .hasRootCauseInstanceOf(IllegalStateException.class);
+    }
+
+    private Document save(AbstractEncryptionEventListener<?> listener, IndexedBean bean) {
+        Document document = new Document();
+        converter.write(bean, document);
+        listener.onBeforeSave(new BeforeSaveEvent<>(bean, document, IndexedBean.MONGO_INDEXEDBEAN));
+        return document;
+    }
+}
@@ -0,0 +1,75 @@
+package com.bol.secure;
+
+import org.bson.BSONCallback;
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.bson.BasicBSONObject;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BsonValueCodecTest {
+
+    private final BsonValueCodec codec = new BsonValueCodec();
+
+    private static final List<Object> VALUES = Arrays.asList(
+            "",
+            "earth is flat",
+            "árvíztűrő tükörfúrógép 😀",
+            0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE,
+            0L, 95459L, Long.MIN_VALUE, Long.MAX_VALUE,
+            (short) 12, (byte) 3, 'c',
+            0.0d, -1.5d, Double.MAX_VALUE, 1.25f,
+            true, false,
+            new Date(1508512345678L),
+            new ObjectId("59ea0fb902da8d61252b9988"),
+            new Decimal128(new BigDecimal("1234.5678")),
+            new byte[0], new byte[]{1, 2, 3},
+            new Binary((byte) 0x80, new byte[]{4, 5}),
+            UUID.fromString("9b48dc8f-ad24-4c7c-5d65-9ae23c23f1bb"),
+            Arrays.asList("ear", "all"),
+            new HashSet<>(Arrays.asList(1L, 2L)),
+            new Document("nonSensitiveData", "sky is blue").append("secretString", "earth is round"),
+            new Document("nested", new Document("list", Arrays.asList(new Document("a", 1), Arrays.asList(2, 3))))
+    );
+
+    @Test
+    public void serializesSameAsBasicBSONEncoder() {
+        for (Object value : VALUES) {
+            byte[] expected = new BasicBSONEncoder().encode(new BasicBSONObject("", value));
+            assertThat(codec.serialize(value)).as("serialized %s", value).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void deserializesSameAsBasicBSONDecoder() {
+        for (Object value : VALUES) {
+            byte[] serialized = codec.serialize(value);
+
+            BSONCallback bsonCallback = new BsonValueCodec.BasicDBObjectCallback();
+            new BasicBSONDecoder().decode(serialized, bsonCallback);
+            Object expected = ((BSONObject) bsonCallback.get()).get("");
+
+            Object actual = codec.deserialize(serialized);
+            assertThat(actual).as("deserialized %s", value).isEqualTo(expected);
+            if (expected != null) assertThat(actual).hasSameClassAs(expected);
+        }
+    }
+
+    @Test
+    public void bufferIsReused() {
+        byte[] large = codec.serialize(String.join("", Collections.nCopies(1000, "long string ")));
+        byte[] small = codec.serialize("short");
+
+        assertThat(codec.deserialize(small)).isEqualTo("short");
+        assertThat(codec.deserialize(large)).asString().hasSize(12000);
+    }
+}
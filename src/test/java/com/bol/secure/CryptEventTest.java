@@ -0,0 +1,93 @@
+package com.bol.secure;
+
+import com.bol.crypt.CryptVault;
+import com.bol.system.model.MyBean;
+import com.bol.system.model.MySubBean;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.bson.Document;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CryptEventTest {
+
+    private final CryptVault cryptVault = TestConverters.cryptVault(3);
+    private final MappingMongoConverter converter = TestConverters.converter();
+
+    @Test
+    public void cachedListenerEvents() throws Exception {
+        checkEvents(new CachedEncryptionEventListener(cryptVault));
+    }
+
+    @Test
+    public void reflectionListenerEvents() throws Exception {
+        checkEvents(new ReflectionEncryptionEventListener(cryptVault));
+    }
+
+    @Test
+    public void parallelCryptEvents() throws Exception {
+        checkEvents(new CachedEncryptionEventListener(cryptVault).withParallelCrypt(1));
+    }
+
+    @Test
+    public void noEventsWithoutRecording() {
+        assertThat(CryptEvent.start()).isNull();
+
+        try (Recording recording = new Recording()) {
+            recording.enable(CryptEvent.NAME);
+            recording.start();
+            assertThat(CryptEvent.start()).isNotNull();
+        }
+    }
+
+    private void checkEvents(AbstractEncryptionEventListener<?> listener) throws Exception {
+        MyBean bean = new MyBean();
+        bean.secretString = "earth is flat";
+        bean.secretLong = 95459L;
+        bean.secretSubBean = new MySubBean("sky is blue", "earth is round");
+
+        Document document = new Document();
+        converter.write(bean, document);
+
+        Path jfr = Files.createTempFile("crypt", ".jfr");
+        try {
+            try (Recording recording = new Recording()) {
+                recording.enable(CryptEvent.NAME).withThreshold(Duration.ZERO);
+                recording.start();
+
+                listener.onBeforeSave(new BeforeSaveEvent<>(bean, document, MyBean.MONGO_MYBEAN));
+                listener.onAfterLoad(new AfterLoadEvent<>(document, MyBean.class, MyBean.MONGO_MYBEAN));
+
+                recording.stop();
+                recording.dump(jfr);
+            }
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(jfr).stream()
+                    .filter(event -> event.getEventType().getName().equals(CryptEvent.NAME))
+                    .collect(Collectors.toList());
+
+            assertThat(events).extracting(event -> event.getString("operation")).containsExactly("encrypt", "decrypt");
+            for (RecordedEvent event : events) {
+                assertThat(event.getString("collection")).isEqualTo(MyBean.MONGO_MYBEAN);
+                assertThat(event.getClass("entityClass").getName()).isEqualTo(MyBean.class.getName());
+                assertThat(event.getInt("fields")).isEqualTo(3);
+                assertThat(event.getInt("keyVersion")).isEqualTo(3);
+                assertThat(event.getLong("bytes")).isPositive();
+            }
+            assertThat(events.get(1).getLong("bytes")).isEqualTo(events.get(0).getLong("bytes"));
+        } finally {
+            Files.delete(jfr);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.bol.secure;
+
+import com.bol.crypt.CryptOperationException;
+import com.bol.crypt.CryptVault;
+import com.bol.crypt.DocumentCryptException;
+import com.bol.system.model.IndexedBean;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DeterministicEncryptionTest {
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final CryptVault cryptVault = TestConverters.cryptVault();
+    private final DeterministicEncryption deterministicEncryption = new DeterministicEncryption()
+            .withKey(3, hex("7f7e7d7c 7b7a7978 77767574 73727170 40414243 44454647 48494a4b 4c4d4e4f"))
+            .withDefaultKeyVersion(3);
+    private final MappingMongoConverter converter = TestConverters.converter();
+
+    // RFC 5297 A.1
+    @Test
+    public void deterministicAuthenticatedEncryptionVector() throws Exception {
+        byte[] key = hex("fffefdfc fbfaf9f8 f7f6f5f4 f3f2f1f0 f0f1f2f3 f4f5f6f7 f8f9fafb fcfdfeff");
+        byte[] ad = hex("10111213 14151617 18191a1b 1c1d1e1f 20212223 24252627");
+        byte[] plaintext = hex("11223344 55667788 99aabbcc ddee");
+
+        assertThat(DeterministicEncryption.siv(key, new byte[][]{ad}, plaintext))
+                .isEqualTo(hex("85632d07 c6e8f37f 950acd32 0a2ecc93 40c02b96 90c4dc04 daef7f6a fe5c"));
+    }
+
+    // RFC 5297 A.2
+    @Test
+    public void nonceBasedAuthenticatedEncryptionVector() throws Exception {
+        byte[] key = hex("7f7e7d7c 7b7a7978 77767574 73727170 40414243 44454647 48494a4b 4c4d4e4f");
+        byte[] ad1 = hex("00112233 44556677 8899aabb ccddeeff deaddada deaddada ffeeddcc bbaa9988 77665544 33221100");
+        byte[] ad2 = hex("10203040 50607080 90a0");
+        byte[] nonce = hex("09f91102 9d74e35b d84156c5 635688c0");
+        byte[] plaintext = hex("74686973 20697320 736f6d65 20706c61 696e7465 78742074 6f20656e 63727970 74207573 696e6720 5349562d 414553");
+
+        assertThat(DeterministicEncryption.siv(key, new byte[][]{ad1, ad2, nonce}, plaintext))
+                .isEqualTo(hex("7bdb6e3b 432667eb 06f4d14b ff2fbd0f cb900f2f ddbe4043 26601965 c889bf17 dba77ceb 094fa663 b7a3f748 ba8af829 ea64ad54 4a272e9c 485b62a3 fd5c0d"));
+    }
+
+    @Test
+    public void sameCiphertextForSamePlaintext() {
+        DeterministicEncryption encryption = new DeterministicEncryption()
+                .withKey(1, new byte[32])
+                .withKey(2, hex("7f7e7d7c 7b7a7978 77767574 73727170 40414243 44454647 48494a4b 4c4d4e4f"))
+                .withDefaultKeyVersion(2);
+
+        for (String value : new String[]{"", "short", "exactly 16 bytes", "a plaintext that spans more than two AES blocks"}) {
+            byte[] plaintext = value.getBytes(StandardCharsets.UTF_8);
+            byte[] encrypted = encryption.encrypt(plaintext);
+
+            assertThat(encrypted[0]).isEqualTo((byte) 2);
+            assertThat(encrypted).hasSize(plaintext.length + 17);
+            assertThat(encryption.encrypt(plaintext)).isEqualTo(encrypted);
+            assertThat(encryption.encrypt(1, plaintext)).isNotEqualTo(encrypted);
+            assertThat(encryption.decrypt(encrypted)).isEqualTo(plaintext);
+            assertThat(encryption.decrypt(encryption.encrypt(1, plaintext))).isEqualTo(plaintext);
+        }
+
+        assertThat(encryption.encryptValue("123-45-6789")).isEqualTo(encryption.encryptValue("123-45-6789"));
+        assertThat(encryption.encryptValue("123-45-6789")).isNotEqualTo(encryption.encryptValue("123-45-6780"));
+    }
+
+    @Test
+    public void tamperedCiphertextIsRejected() {
+        DeterministicEncryption encryption = new DeterministicEncryption().withKey(0, new byte[64]).withDefaultKeyVersion(0);
+        byte[] encrypted = encryption.encrypt("earth is flat".getBytes(StandardCharsets.UTF_8));
+
+        encrypted[encrypted.length - 1] ^= 1;
+        assertThatThrownBy(() -> encryption.decrypt(encrypted)).isInstanceOf(CryptOperationException.class);
+
+        encrypted[encrypted.length - 1] ^= 1;
+        encrypted[0] = 1;
+        assertThatThrownBy(() -> encryption.decrypt(encrypted)).isInstanceOf(CryptOperationException.class);
+
+        assertThatThrownBy(() -> encryption.decrypt(new byte[16])).isInstanceOf(CryptOperationException.class);
+        assertThatThrownBy(() -> new DeterministicEncryption().withKey(0, new byte[16])).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void cachedListener() {
+        checkListener(new CachedEncryptionEventListener(cryptVault).withDeterministicEncryption(deterministicEncryption));
+    }
+
+    @Test
+    public void reflectionListener() {
+        checkListener(new ReflectionEncryptionEventListener(cryptVault).withDeterministicEncryption(deterministicEncryption));
+    }
+
+    @Test
+    public void parallelCrypt() {
+        checkListener(new CachedEncryptionEventListener(cryptVault).withParallelCrypt(1).withDeterministicEncryption(deterministicEncryption));
+    }
+
+    private void checkListener(AbstractEncryptionEventListener<?> listener) {
+        IndexedBean bean = new IndexedBean();
+        bean.name = "joe";
+        bean.taxId = "NL123456789B01";
+
+        Document document = save(listener, bean);
+        Document again = save(listener, bean);
+
+        assertThat(document.get(IndexedBean.MONGO_TAXID)).isEqualTo(deterministicEncryption.encryptValue(bean.taxId));
+        assertThat(again.get(IndexedBean.MONGO_TAXID)).isEqualTo(document.get(IndexedBean.MONGO_TAXID));
+        assertThat(((Binary) document.get(IndexedBean.MONGO_TAXID)).getData()[0]).isEqualTo((byte) 3);
+
+        listener.onAfterLoad(new AfterLoadEvent<>(document, IndexedBean.class, IndexedBean.MONGO_INDEXEDBEAN));
+        IndexedBean fromDb = converter.read(IndexedBean.class, document);
+        assertThat(fromDb.taxId).isEqualTo(bean.taxId);
+        assertThat(fromDb.name).isEqualTo(bean.name);
+    }
+
+    @Test
+    public void listenerWithoutDeterministicEncryption() {
+        IndexedBean bean = new IndexedBean();
+        bean.taxId = "NL123456789B01";
+
+        assertThatThrownBy(() -> save(new CachedEncryptionEventListener(cryptVault), bean))
+                .isInstanceOf(DocumentCryptException.class)
+                .hasRootCauseInstanceOf(IllegalStateException.class);
+    }
+
+    private Document save(AbstractEncryptionEventListener<?> listener, IndexedBean bean) {
+        Document document = new Document();
+        converter.write(bean, document);
+        listener.onBeforeSave(new BeforeSaveEvent<>(bean, document, IndexedBean.MONGO_INDEXEDBEAN));
+        return document;
+    }
+
+    private static byte[] hex(String hex) {
+        return HEX.parseHex(hex.replace(" ", ""));
+    }
+}
@@ -0,0 +1,83 @@
+package com.bol.secure;
+
+import com.bol.crypt.CryptVault;
+import com.bol.system.model.MyBean;
+import com.bol.system.polymorphism.model.TestObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.boot.test.system.OutputCaptureRule;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EncryptionWarmUpTest {
+
+    @Rule
+    public OutputCaptureRule output = new OutputCaptureRule();
+
+    private final CryptVault cryptVault = TestConverters.cryptVault();
+
+    @Test
+    public void preparesMappedAndScannedEntities() {
+        RecordingListener listener = new RecordingListener(cryptVault, null);
+        EncryptionWarmUp warmUp = new EncryptionWarmUp(listener, Runnable::run, "com.bol.system.polymorphism.model");
+
+        warmUp.onApplicationEvent(new ContextRefreshedEvent(context()));
+
+        assertThat(listener.prepared.get(MyBean.class))
+                .isPositive()
+                .isEqualTo(new CachedEncryptionEventListener(cryptVault).prepare(MyBean.class));
+        // not in the mapping context, only found by scanning
+        assertThat(listener.prepared).containsEntry(TestObject.class, 0);
+
+        // child contexts refresh too
+        listener.prepared.clear();
+        warmUp.onApplicationEvent(new ContextRefreshedEvent(context()));
+        assertThat(listener.prepared).isEmpty();
+    }
+
+    @Test
+    public void failuresAreLoggedAndSkipped() {
+        RecordingListener listener = new RecordingListener(cryptVault, MyBean.class);
+
+        new EncryptionWarmUp(listener, "com.bol.system.polymorphism.model").onApplicationEvent(new ContextRefreshedEvent(context()));
+
+        assertThat(listener.prepared).doesNotContainKey(MyBean.class).containsKey(TestObject.class);
+        assertThat(output.getOut()).contains("Encryption warm-up failed for " + MyBean.class.getName());
+    }
+
+    private static GenericApplicationContext context() {
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setInitialEntitySet(Set.of(MyBean.class));
+        mappingContext.afterPropertiesSet();
+
+        GenericApplicationContext context = new GenericApplicationContext();
+        context.registerBean(MongoMappingContext.class, () -> mappingContext);
+        context.refresh();
+        return context;
+    }
+
+    private static class RecordingListener extends CachedEncryptionEventListener {
+        final Map<Class<?>, Integer> prepared = new ConcurrentHashMap<>();
+        final Class<?> failing;
+
+        RecordingListener(CryptVault cryptVault, Class<?> failing) {
+            super(cryptVault);
+            this.failing = failing;
+        }
+
+        @Override
+        public int prepare(Class<?> clazz) {
+            if (clazz == failing) throw new IllegalStateException("can't reflect " + clazz.getName());
+            int encrypted = super.prepare(clazz);
+            prepared.put(clazz, encrypted);
+            return encrypted;
+        }
+    }
+}
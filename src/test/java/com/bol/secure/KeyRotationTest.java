@@ -0,0 +1,137 @@
+package com.bol.secure;
+
+import com.bol.crypt.CryptVault;
+import com.bol.system.model.IndexedBean;
+import com.bol.system.model.MyBean;
+import com.bol.system.model.MySubBean;
+import com.mongodb.client.model.UpdateOneModel;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+
+import static com.bol.crypt.CryptVault.fromSignedByte;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class KeyRotationTest {
+
+    private static final byte[] oldKey = Base64.getDecoder().decode("aic7QGYCCSHyy7gYRCyNTpPThbomw1/dtWl4bocyTnU=");
+    private static final byte[] newKey = Base64.getDecoder().decode("IqWTpi549pJDZ1kuc9HppcMxtPfu2SP6Idlh+tz4LL4=");
+
+    private final CryptVault oldVault = new CryptVault()
+            .with256BitAesCbcPkcs5PaddingAnd128BitSaltKey(1, oldKey)
+            .withDefaultKeyVersion(1);
+    private final CryptVault newVault = new CryptVault()
+            .with256BitAesCbcPkcs5PaddingAnd128BitSaltKey(1, oldKey)
+            .with256BitAesCbcPkcs5PaddingAnd128BitSaltKey(2, newKey)
+            .withDefaultKeyVersion(2);
+
+    private final CachedEncryptionEventListener listener = new CachedEncryptionEventListener(newVault).withGeneratedWalkers(false);
+    private final KeyRotation keyRotation = new KeyRotation(null, listener);
+    private final MappingMongoConverter converter = TestConverters.converter();
+
+    @Test
+    public void rotatesStaleCiphertextsOnly() {
+        MyBean bean = new MyBean();
+        bean.id = "5f1e6d2c3b4a596877665544";
+        bean.nonSensitiveData = "grass is green";
+        bean.secretString = "earth is flat";
+        bean.nonSensitiveSubBean = new MySubBean("sky is blue", "earth is round");
+        bean.nonSensitiveSubBeanList = Arrays.asList(new MySubBean("a", "b"), new MySubBean("c", "d"));
+        bean.nonSensitiveMap = new HashMap<>();
+        bean.nonSensitiveMap.put("key", new MySubBean("e", "f"));
+
+        Document document = encrypt(bean, oldVault);
+        // written by something else than spring data, which doesn't allow dots in map keys
+        Document map = (Document) document.get(MyBean.MONGO_NONSENSITIVEMAP);
+        map.put("dotted.key", new Document((Document) map.get("key")));
+        // saved by the application after the key change
+        Document subBean = (Document) document.get(MyBean.MONGO_NONSENSITIVESUBBEAN);
+        byte[] stale = ((Binary) subBean.get(MySubBean.MONGO_SECRETSTRING)).getData();
+        subBean.put(MySubBean.MONGO_SECRETSTRING, new Binary(newVault.encrypt(oldVault.decrypt(stale))));
+        Object oldSecretString = document.get(MyBean.MONGO_SECRETSTRING);
+
+        KeyRotation.Rotator rotator = keyRotation.new Rotator(2);
+        UpdateOneModel<Document> update = keyRotation.rotate(document, MyBean.class, rotator);
+
+        Document filter = (Document) update.getFilter();
+        Document set = (Document) ((Document) update.getUpdate()).get("$set");
+
+        assertThat(set).containsOnlyKeys(
+                "secretString",
+                "nonSensitiveSubBeanList.0.secretString",
+                "nonSensitiveSubBeanList.1.secretString",
+                "nonSensitiveMap.key.secretString");
+        assertThat(filter.keySet()).containsExactlyInAnyOrder("_id",
+                "secretString",
+                "nonSensitiveSubBeanList.0.secretString",
+                "nonSensitiveSubBeanList.1.secretString",
+                "nonSensitiveMap.key.secretString");
+        assertThat(filter.get(MyBean.MONGO_SECRETSTRING)).isSameAs(oldSecretString);
+
+        for (Object rotated : set.values()) assertThat(fromSignedByte(((Binary) rotated).getData()[0])).isEqualTo(2);
+        assertThat(rotator.rotatedFields).isEqualTo(4);
+        // can't be addressed by a path; still readable by the old key
+        assertThat(rotator.failures).isEqualTo(1);
+
+        // the rotated document decrypts just the same
+        listener.onAfterLoad(new AfterLoadEvent<>(document, MyBean.class, MyBean.MONGO_MYBEAN));
+        MyBean fromDb = converter.read(MyBean.class, document);
+        assertThat(fromDb.secretString).isEqualTo(bean.secretString);
+        assertThat(fromDb.nonSensitiveSubBean.secretString).isEqualTo("earth is round");
+        assertThat(fromDb.nonSensitiveSubBeanList.get(1).secretString).isEqualTo("d");
+        assertThat(fromDb.nonSensitiveMap.get("key").secretString).isEqualTo("f");
+    }
+
+    @Test
+    public void nothingToRotate() {
+        MyBean bean = new MyBean();
+        bean.secretString = "earth is flat";
+
+        assertThat(keyRotation.rotate(encrypt(bean, newVault), MyBean.class, keyRotation.new Rotator(2))).isNull();
+    }
+
+    @Test
+    public void projection() {
+        assertThat(KeyRotation.projection(listener.plan(MyBean.class)))
+                .containsKeys("_id", MyBean.MONGO_SECRETSTRING, MyBean.MONGO_NONSENSITIVESUBBEAN, MyBean.MONGO_NONSENSITIVEMAP)
+                .doesNotContainKeys(MyBean.MONGO_NONSENSITIVEDATA, "publicStringList");
+    }
+
+    @Test
+    public void rotatesDeterministicFields() {
+        DeterministicEncryption oldEncryption = new DeterministicEncryption().withKey(1, new byte[32]).withDefaultKeyVersion(1);
+        DeterministicEncryption newEncryption = new DeterministicEncryption().withKey(1, new byte[32]).withKey(2, newKey).withDefaultKeyVersion(2);
+
+        IndexedBean bean = new IndexedBean();
+        bean.id = "5f1e6d2c3b4a596877665544";
+        bean.taxId = "NL123456789B01";
+
+        Document document = new Document();
+        converter.write(bean, document);
+        new CachedEncryptionEventListener(oldVault).withDeterministicEncryption(oldEncryption)
+                .onBeforeSave(new BeforeSaveEvent<>(bean, document, IndexedBean.MONGO_INDEXEDBEAN));
+
+        CachedEncryptionEventListener rotatingListener = new CachedEncryptionEventListener(newVault).withDeterministicEncryption(newEncryption);
+        KeyRotation rotation = new KeyRotation(null, rotatingListener);
+        UpdateOneModel<Document> update = rotation.rotate(document, IndexedBean.class, rotation.new Rotator(2));
+
+        Document set = (Document) ((Document) update.getUpdate()).get("$set");
+        assertThat(set).containsOnlyKeys(IndexedBean.MONGO_TAXID);
+        assertThat(set.get(IndexedBean.MONGO_TAXID)).isEqualTo(newEncryption.encryptValue(bean.taxId));
+    }
+
+    private Document encrypt(MyBean bean, CryptVault cryptVault) {
+        Document document = new Document();
+        converter.write(bean, document);
+        new CachedEncryptionEventListener(cryptVault).withGeneratedWalkers(false)
+                .onBeforeSave(new BeforeSaveEvent<>(bean, document, MyBean.MONGO_MYBEAN));
+        return document;
+    }
+}
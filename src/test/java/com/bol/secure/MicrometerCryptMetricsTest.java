@@ -0,0 +1,91 @@
+package com.bol.secure;
+
+import com.bol.crypt.CryptVault;
+import com.bol.crypt.DocumentCryptException;
+import com.bol.system.model.MyBean;
+import com.bol.system.model.MySubBean;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MicrometerCryptMetricsTest {
+
+    private final CryptVault cryptVault = TestConverters.cryptVault();
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final MappingMongoConverter converter = TestConverters.converter();
+
+    @Test
+    public void cachedListenerMetrics() {
+        checkMetrics(new CachedEncryptionEventListener(cryptVault).withMetrics(new MicrometerCryptMetrics(registry)));
+    }
+
+    @Test
+    public void reflectionListenerMetrics() {
+        checkMetrics(new ReflectionEncryptionEventListener(cryptVault).withMetrics(new MicrometerCryptMetrics(registry)));
+    }
+
+    @Test
+    public void parallelCryptMetrics() {
+        checkMetrics(new CachedEncryptionEventListener(cryptVault).withParallelCrypt(1).withMetrics(new MicrometerCryptMetrics(registry)));
+    }
+
+    private void checkMetrics(AbstractEncryptionEventListener<?> listener) {
+        MyBean bean = new MyBean();
+        bean.secretString = "earth is flat";
+        bean.secretLong = 95459L;
+        bean.secretSubBean = new MySubBean("sky is blue", "earth is round");
+
+        Document document = new Document();
+        converter.write(bean, document);
+        listener.onBeforeSave(new BeforeSaveEvent<>(bean, document, MyBean.MONGO_MYBEAN));
+        listener.onAfterLoad(new AfterLoadEvent<>(document, MyBean.class, MyBean.MONGO_MYBEAN));
+
+        for (String operation : new String[]{"encrypt", "decrypt"}) {
+            assertThat(registry.get("mongodb.encrypt.document").tags("collection", MyBean.MONGO_MYBEAN, "operation", operation).timer().count()).isEqualTo(1);
+            assertThat(registry.get("mongodb.encrypt.document.fields").tags("collection", MyBean.MONGO_MYBEAN, "operation", operation).summary().totalAmount()).isEqualTo(3);
+            assertThat(registry.get("mongodb.encrypt.fields").tags("operation", operation, "key.version", "0").counter().count()).isEqualTo(3);
+        }
+
+        double plainBytes = registry.get("mongodb.encrypt.bytes").tags("operation", "encrypt", "direction", "in").counter().count();
+        double cryptedBytes = registry.get("mongodb.encrypt.bytes").tags("operation", "encrypt", "direction", "out").counter().count();
+        assertThat(cryptedBytes).isGreaterThan(plainBytes).isGreaterThan(0);
+        assertThat(registry.get("mongodb.encrypt.bytes").tags("operation", "decrypt", "direction", "in").counter().count()).isEqualTo(cryptedBytes);
+        assertThat(registry.get("mongodb.encrypt.bytes").tags("operation", "decrypt", "direction", "out").counter().count()).isEqualTo(plainBytes);
+    }
+
+    @Test
+    public void withoutCollection() {
+        CachedEncryptionEventListener listener = new CachedEncryptionEventListener(cryptVault).withMetrics(new MicrometerCryptMetrics(registry));
+        MyBean bean = new MyBean();
+        bean.secretString = "earth is flat";
+
+        Document document = new Document();
+        converter.write(bean, document);
+        listener.onBeforeSave(new BeforeSaveEvent<>(bean, document, MyBean.MONGO_MYBEAN));
+        // as database-wide change streams decrypt
+        listener.onAfterLoad(new AfterLoadEvent<>(document, MyBean.class, null));
+
+        assertThat(document.get(MyBean.MONGO_SECRETSTRING)).isEqualTo(bean.secretString);
+        assertThat(registry.get("mongodb.encrypt.document").tags("collection", MicrometerCryptMetrics.NO_COLLECTION, "operation", "decrypt").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    public void decryptionFailures() {
+        CachedEncryptionEventListener listener = new CachedEncryptionEventListener(cryptVault).withMetrics(new MicrometerCryptMetrics(registry));
+        Document notEncrypted = new Document(MyBean.MONGO_SECRETSTRING, "earth is flat");
+
+        assertThatThrownBy(() -> listener.onAfterLoad(new AfterLoadEvent<>(notEncrypted, MyBean.class, MyBean.MONGO_MYBEAN)))
+                .isInstanceOf(DocumentCryptException.class);
+        assertThat(registry.get("mongodb.encrypt.decryption.failures").tags("collection", MyBean.MONGO_MYBEAN, "silent", "false").counter().count()).isEqualTo(1);
+
+        listener.withSilentDecryptionFailure(true);
+        listener.onAfterLoad(new AfterLoadEvent<>(notEncrypted, MyBean.class, MyBean.MONGO_MYBEAN));
+        assertThat(registry.get("mongodb.encrypt.decryption.failures").tags("collection", MyBean.MONGO_MYBEAN, "silent", "true").counter().count()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,176 @@
+package com.bol.secure;
+
+import com.bol.crypt.CryptVault;
+import com.bol.crypt.DocumentCryptException;
+import com.bol.crypt.FieldCryptException;
+import com.bol.system.model.MyBean;
+import com.bol.system.model.MySubBean;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.catchThrowableOfType;
+
+public class ParallelCryptTest {
+
+    private final CryptVault cryptVault = TestConverters.cryptVault();
+    private final MappingMongoConverter converter = TestConverters.converter();
+    private final AtomicInteger tasks = new AtomicInteger();
+    private final ExecutorService executorService = Executors.newFixedThreadPool(2);
+
+    @After
+    public void shutdown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void customExecutor() {
+        CachedEncryptionEventListener listener = new CachedEncryptionEventListener(cryptVault).withParallelCrypt(1, this::execute);
+
+        Document document = save(listener, bean());
+        assertThat(tasks.get()).isEqualTo(1);
+        assertThat(document.get(MyBean.MONGO_SECRETSTRING)).isInstanceOf(Binary.class);
+
+        listener.onAfterLoad(new AfterLoadEvent<>(document, MyBean.class, MyBean.MONGO_MYBEAN));
+        assertThat(tasks.get()).isEqualTo(2);
+        MyBean fromDb = converter.read(MyBean.class, document);
+        assertThat(fromDb.secretString).isEqualTo(bean().secretString);
+        assertThat(fromDb.nonSensitiveSubBeanList.get(1).secretString).isEqualTo(bean().nonSensitiveSubBeanList.get(1).secretString);
+    }
+
+    @Test
+    public void failureOnWorkerThread() {
+        CachedEncryptionEventListener sequential = new CachedEncryptionEventListener(cryptVault);
+        CachedEncryptionEventListener parallel = new CachedEncryptionEventListener(cryptVault).withParallelCrypt(1, this::execute);
+
+        DocumentCryptException expected = loadCorrupt(sequential);
+        DocumentCryptException e = loadCorrupt(parallel);
+
+        assertThat(tasks.get()).isEqualTo(1);
+        assertThat(e.getId()).isEqualTo("42");
+        assertThat(e.getCollectionName()).isEqualTo(MyBean.MONGO_MYBEAN);
+        assertThat(e.getCause()).isInstanceOf(FieldCryptException.class);
+        assertThat(e.getCause().getMessage())
+                .isEqualTo(expected.getCause().getMessage())
+                .isEqualTo(MyBean.MONGO_NONSENSITIVESUBBEANLIST + ".1." + MySubBean.MONGO_SECRETSTRING);
+    }
+
+    @Test
+    public void executorShutDown() {
+        CachedEncryptionEventListener listener = new CachedEncryptionEventListener(cryptVault).withParallelCrypt(1, executorService);
+        Document document = save(listener, bean());
+
+        executorService.shutdown();
+        DocumentCryptException e = catchThrowableOfType(() -> listener.onAfterLoad(new AfterLoadEvent<>(document, MyBean.class, MyBean.MONGO_MYBEAN)), DocumentCryptException.class);
+
+        assertThat(e.getId()).isEqualTo("42");
+        assertThat(e).hasRootCauseInstanceOf(RejectedExecutionException.class);
+    }
+
+    @Test
+    public void belowThresholdWalksOnce() {
+        CachedEncryptionEventListener listener = new CachedEncryptionEventListener(cryptVault).withParallelCrypt(4, this::execute);
+        AtomicInteger walks = new AtomicInteger();
+
+        List<Object> values = values(3);
+        listener.crypt(listener.encoders, MyBean.MONGO_MYBEAN, MyBean.class, null, walker(values, walks));
+        assertThat(walks.get()).isEqualTo(1);
+        assertThat(tasks.get()).isZero();
+        assertThat(values).allMatch(Binary.class::isInstance);
+
+        // from the threshold on, the rest goes to the executor, and a second walk puts it back
+        walks.set(0);
+        values = values(5);
+        listener.crypt(listener.encoders, MyBean.MONGO_MYBEAN, MyBean.class, null, walker(values, walks));
+        assertThat(walks.get()).isEqualTo(2);
+        assertThat(tasks.get()).isEqualTo(1);
+        assertThat(values).allMatch(Binary.class::isInstance);
+    }
+
+    @Test
+    public void rejectedChunkWaitsForSubmittedOnes() {
+        AtomicInteger encrypted = new AtomicInteger();
+        CryptVault slowVault = new CryptVault() {
+            @Override
+            public byte[] encrypt(byte[] data) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                encrypted.incrementAndGet();
+                return cryptVault.encrypt(data);
+            }
+        };
+        // accepts the first chunk only
+        CachedEncryptionEventListener listener = new CachedEncryptionEventListener(slowVault).withParallelCrypt(1, task -> {
+            if (tasks.getAndIncrement() > 0) throw new RejectedExecutionException("queue full");
+            executorService.execute(task);
+        });
+
+        List<Object> values = values(40);
+        assertThatThrownBy(() -> listener.crypt(listener.encoders, MyBean.MONGO_MYBEAN, MyBean.class, null, walker(values, new AtomicInteger())))
+                .isInstanceOf(RejectedExecutionException.class);
+        // the first chunk is done, and nothing writes to the document anymore
+        assertThat(encrypted.get()).isEqualTo(16);
+    }
+
+    private static List<Object> values(int count) {
+        List<Object> values = new ArrayList<>();
+        for (int i = 0; i < count; i++) values.add("secret " + i);
+        return values;
+    }
+
+    private static Consumer<AbstractEncryptionEventListener.Crypter> walker(List<Object> values, AtomicInteger walks) {
+        return crypt -> {
+            walks.incrementAndGet();
+            for (int i = 0; i < values.size(); i++) values.set(i, crypt.apply(values.get(i)));
+        };
+    }
+
+    // runs the chunks on a pool thread, counting them
+    private void execute(Runnable task) {
+        tasks.incrementAndGet();
+        executorService.execute(task);
+    }
+
+    private DocumentCryptException loadCorrupt(AbstractEncryptionEventListener<?> listener) {
+        Document document = save(new CachedEncryptionEventListener(cryptVault), bean());
+        List<?> subBeans = (List<?>) document.get(MyBean.MONGO_NONSENSITIVESUBBEANLIST);
+        ((Document) subBeans.get(1)).put(MySubBean.MONGO_SECRETSTRING, new Binary(new byte[0]));
+
+        return catchThrowableOfType(() -> listener.onAfterLoad(new AfterLoadEvent<>(document, MyBean.class, MyBean.MONGO_MYBEAN)), DocumentCryptException.class);
+    }
+
+    private static MyBean bean() {
+        MyBean bean = new MyBean();
+        bean.id = "42";
+        bean.secretString = "earth is flat";
+        bean.nonSensitiveSubBeanList = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            bean.nonSensitiveSubBeanList.add(new MySubBean("public " + i, "secret " + i));
+        }
+        return bean;
+    }
+
+    private Document save(AbstractEncryptionEventListener<?> listener, MyBean bean) {
+        Document document = new Document();
+        converter.write(bean, document);
+        listener.onBeforeSave(new BeforeSaveEvent<>(bean, document, MyBean.MONGO_MYBEAN));
+        return document;
+    }
+}
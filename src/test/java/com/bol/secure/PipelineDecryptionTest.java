@@ -0,0 +1,139 @@
+package com.bol.secure;
+
+import com.bol.crypt.CryptVault;
+import com.bol.system.model.MyBean;
+import com.bol.system.model.MySubBean;
+import com.bol.system.model.PlainBean;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.types.Binary;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.ChangeStreamEvent;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+import org.springframework.data.mongodb.core.messaging.Message;
+import org.springframework.data.mongodb.core.messaging.MessageListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PipelineDecryptionTest {
+
+    private final CryptVault cryptVault = TestConverters.cryptVault();
+    private final CachedEncryptionEventListener listener = new CachedEncryptionEventListener(cryptVault);
+    private final PipelineDecryption pipelineDecryption = new PipelineDecryption(listener);
+    private final MappingMongoConverter converter = TestConverters.converter();
+
+    @Test
+    public void changeStreamEvent() {
+        ChangeStreamDocument<Document> raw = changeStreamDocument(save(bean()));
+        assertThat(raw.getFullDocument().get(MyBean.MONGO_SECRETSTRING)).isInstanceOf(Binary.class);
+
+        ChangeStreamEvent<MyBean> event = pipelineDecryption.decrypt(new ChangeStreamEvent<>(raw, MyBean.class, converter), MyBean.class);
+
+        assertDecrypted(event.getBody());
+    }
+
+    @Test
+    public void changeStreamMessageListener() {
+        ChangeStreamDocument<Document> raw = changeStreamDocument(save(bean()));
+        List<MyBean> received = new ArrayList<>();
+        MessageListener<ChangeStreamDocument<Document>, MyBean> decrypting = pipelineDecryption.decrypting(MyBean.class, message -> received.add(message.getBody()));
+
+        decrypting.onMessage(new Message<>() {
+            @Override
+            public ChangeStreamDocument<Document> getRaw() {
+                return raw;
+            }
+
+            @Override
+            public MyBean getBody() {
+                return converter.read(MyBean.class, raw.getFullDocument());
+            }
+
+            @Override
+            public MessageProperties getProperties() {
+                return MessageProperties.builder().collectionName(MyBean.MONGO_MYBEAN).build();
+            }
+        });
+
+        assertThat(received).hasSize(1);
+        assertDecrypted(received.get(0));
+    }
+
+    @Test
+    public void rawDocumentsAreLeftToPipelineDecryption() {
+        CachedEncryptionEventListener polymorphic = new CachedEncryptionEventListener(cryptVault).withPolymorphism(converter);
+        Document document = save(bean());
+        assertThat(document.get("_class")).isEqualTo(MyBean.class.getName());
+
+        // as fired by e.g. aggregate(..., Document.class), and by loading a DTO projection
+        polymorphic.onAfterLoad(new AfterLoadEvent<>(document, Document.class, MyBean.MONGO_MYBEAN));
+        polymorphic.onAfterLoad(new AfterLoadEvent<>(document, PlainBean.class, MyBean.MONGO_MYBEAN));
+        assertThat(document.get(MyBean.MONGO_SECRETSTRING)).isInstanceOf(Binary.class);
+
+        ChangeStreamDocument<Document> raw = changeStreamDocument(document);
+        ChangeStreamEvent<MyBean> event = new PipelineDecryption(polymorphic).decrypt(new ChangeStreamEvent<>(raw, MyBean.class, converter), MyBean.class);
+
+        assertDecrypted(event.getBody());
+    }
+
+    @Test
+    public void unknownClassFallsBackToTheDeclaredType() {
+        CachedEncryptionEventListener polymorphic = new CachedEncryptionEventListener(cryptVault).withPolymorphism(converter);
+        MyBean bean = bean();
+        bean.nonSensitiveSubBean = new MySubBean("grass is green", "moon is cheese");
+        Document document = new Document();
+        converter.write(bean, document);
+        listener.onBeforeSave(new BeforeSaveEvent<>(bean, document, MyBean.MONGO_MYBEAN));
+
+        // e.g. written by a version of the application that had classes since removed
+        document.put("_class", "com.bol.system.model.RemovedBean");
+        ((Document) document.get(MyBean.MONGO_NONSENSITIVESUBBEAN)).put("_class", "com.bol.system.model.RemovedSubBean");
+        polymorphic.onAfterLoad(new AfterLoadEvent<>(document, MyBean.class, MyBean.MONGO_MYBEAN));
+
+        assertThat(document.get(MyBean.MONGO_SECRETSTRING)).isEqualTo(bean.secretString);
+        assertThat(((Document) document.get(MyBean.MONGO_NONSENSITIVESUBBEAN)).get(MySubBean.MONGO_SECRETSTRING)).isEqualTo(bean.nonSensitiveSubBean.secretString);
+    }
+
+    private static MyBean bean() {
+        MyBean bean = new MyBean();
+        bean.nonSensitiveData = "grass is green";
+        bean.secretString = "earth is flat";
+        bean.secretSubBean = new MySubBean("sky is blue", "earth is round");
+        return bean;
+    }
+
+    private static void assertDecrypted(MyBean fromDb) {
+        MyBean bean = bean();
+        assertThat(fromDb.nonSensitiveData).isEqualTo(bean.nonSensitiveData);
+        assertThat(fromDb.secretString).isEqualTo(bean.secretString);
+        assertThat(fromDb.secretSubBean.secretString).isEqualTo(bean.secretSubBean.secretString);
+    }
+
+    private Document save(MyBean bean) {
+        Document document = new Document();
+        converter.write(bean, document);
+        listener.onBeforeSave(new BeforeSaveEvent<>(bean, document, MyBean.MONGO_MYBEAN));
+        return document;
+    }
+
+    // decoded as the driver does, as the constructors of ChangeStreamDocument differ between driver versions
+    private static ChangeStreamDocument<Document> changeStreamDocument(Document fullDocument) {
+        Document event = new Document("_id", new Document("_data", "826521"))
+                .append("operationType", "insert")
+                .append("ns", new Document("db", "test").append("coll", MyBean.MONGO_MYBEAN))
+                .append("fullDocument", fullDocument);
+
+        BsonDocument bson = event.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+        return ChangeStreamDocument.createCodec(Document.class, MongoClientSettings.getDefaultCodecRegistry())
+                .decode(new BsonDocumentReader(bson), DecoderContext.builder().build());
+    }
+}
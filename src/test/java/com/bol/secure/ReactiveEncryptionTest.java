@@ -0,0 +1,36 @@
+package com.bol.secure;
+
+import com.bol.system.model.IndexedBean;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.query.Query;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+public class ReactiveEncryptionTest {
+
+    private final MappingMongoConverter converter = TestConverters.converter();
+
+    @Test
+    public void queriesAreMappedForTheEntity() {
+        ObjectId id = new ObjectId();
+        Query query = query(where("id").is(id.toHexString()).and("email").is("joe@example.com"))
+                .with(Sort.by("email"))
+                .skip(5)
+                .limit(10);
+        query.fields().include("email");
+
+        Query mapped = ReactiveEncryption.map(converter, query, IndexedBean.class);
+
+        assertThat(mapped.getQueryObject()).isEqualTo(new Document("_id", id).append(IndexedBean.MONGO_EMAIL, "joe@example.com"));
+        assertThat(mapped.getFieldsObject()).isEqualTo(new Document(IndexedBean.MONGO_EMAIL, 1));
+        assertThat(mapped.getSortObject()).isEqualTo(new Document(IndexedBean.MONGO_EMAIL, 1));
+        assertThat(mapped.getSkip()).isEqualTo(5);
+        assertThat(mapped.getLimit()).isEqualTo(10);
+    }
+}
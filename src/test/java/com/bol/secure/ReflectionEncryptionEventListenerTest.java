@@ -0,0 +1,110 @@
+package com.bol.secure;
+
+import com.bol.system.model.LazyBean;
+import com.bol.system.model.MyBean;
+import com.bol.system.model.MySubBean;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReflectionEncryptionEventListenerTest {
+
+    private final ReflectionEncryptionEventListener listener = new ReflectionEncryptionEventListener(TestConverters.cryptVault());
+    private final MappingMongoConverter converter = TestConverters.converter();
+
+    @Test
+    public void wideDocumentWithExplicitNull() {
+        MyBean bean = new MyBean();
+        bean.nonSensitiveData = "grass is green";
+        bean.secretSubBean = new MySubBean("sky is blue", "earth is round");
+
+        Document document = new Document();
+        converter.write(bean, document);
+        // fields of other versions of the entity, or of other applications sharing the collection
+        for (int i = 0; i < 500; i++) document.put("unknown" + i, "value " + i);
+        document.put(MyBean.MONGO_SECRETSTRING, null);
+        listener.onBeforeSave(new BeforeSaveEvent<>(bean, document, MyBean.MONGO_MYBEAN));
+
+        assertThat(document.get(MyBean.MONGO_SECRETSTRING)).isInstanceOf(Binary.class);
+        assertThat(document.get(MyBean.MONGO_SECRETSUBBEAN)).isInstanceOf(Binary.class);
+        // absent fields stay absent
+        assertThat(document).doesNotContainKey(MyBean.MONGO_SECRETLONG);
+        assertThat(document.get("unknown499")).isEqualTo("value 499");
+
+        listener.onAfterLoad(new AfterLoadEvent<>(document, MyBean.class, MyBean.MONGO_MYBEAN));
+
+        assertThat(document).containsEntry(MyBean.MONGO_SECRETSTRING, null);
+        assertThat(document).doesNotContainKey(MyBean.MONGO_SECRETLONG);
+        assertThat(document.get("unknown0")).isEqualTo("value 0");
+        MyBean fromDb = converter.read(MyBean.class, document);
+        assertThat(fromDb.nonSensitiveData).isEqualTo(bean.nonSensitiveData);
+        assertThat(fromDb.secretSubBean.secretString).isEqualTo(bean.secretSubBean.secretString);
+    }
+
+    @Test
+    public void decryptOnlySelectedPaths() {
+        MyBean bean = new MyBean();
+        bean.secretString = "earth is flat";
+        bean.secretLong = 95459L;
+        bean.secretSubBean = new MySubBean("sky is blue", "earth is round");
+        bean.nonSensitiveSubBean = new MySubBean("grass is green", "moon is cheese");
+        bean.nonSensitiveSubBeanList = Arrays.asList(new MySubBean("a", "b"), new MySubBean("c", "d"));
+
+        Document document = save(bean);
+
+        List<String> paths = Arrays.asList(MyBean.MONGO_SECRETSTRING, MyBean.MONGO_NONSENSITIVESUBBEANLIST + "." + MySubBean.MONGO_SECRETSTRING);
+        listener.decryptOnly(paths, () -> {
+            listener.onAfterLoad(new AfterLoadEvent<>(document, MyBean.class, MyBean.MONGO_MYBEAN));
+            return null;
+        });
+
+        assertThat(document.get(MyBean.MONGO_SECRETSTRING)).isEqualTo(bean.secretString);
+        for (Object subBean : (List<?>) document.get(MyBean.MONGO_NONSENSITIVESUBBEANLIST)) {
+            assertThat(((Document) subBean).get(MySubBean.MONGO_SECRETSTRING)).isInstanceOf(String.class);
+        }
+        assertThat(document.get(MyBean.MONGO_SECRETLONG)).isInstanceOf(Binary.class);
+        assertThat(document.get(MyBean.MONGO_SECRETSUBBEAN)).isInstanceOf(Binary.class);
+        assertThat(((Document) document.get(MyBean.MONGO_NONSENSITIVESUBBEAN)).get(MySubBean.MONGO_SECRETSTRING)).isInstanceOf(Binary.class);
+
+        // the selection is gone after the action: loads decrypt all again
+        Document next = save(bean);
+        listener.onAfterLoad(new AfterLoadEvent<>(next, MyBean.class, MyBean.MONGO_MYBEAN));
+        assertThat(next.get(MyBean.MONGO_SECRETLONG)).isEqualTo(bean.secretLong);
+    }
+
+    @Test
+    public void lazyFieldsAreWrappedOutsideTheSelection() {
+        LazyBean bean = new LazyBean();
+        bean.secretString = LazyEncrypted.of("earth is flat");
+        bean.secretLong = LazyEncrypted.of(95459L);
+
+        Document document = new Document();
+        converter.write(bean, document);
+        listener.onBeforeSave(new BeforeSaveEvent<>(bean, document, LazyBean.MONGO_LAZYBEAN));
+
+        listener.decryptOnly(Collections.singletonList(LazyBean.MONGO_SECRETSTRING), () -> {
+            listener.onAfterLoad(new AfterLoadEvent<>(document, LazyBean.class, LazyBean.MONGO_LAZYBEAN));
+            return null;
+        });
+
+        LazyBean fromDb = converter.read(LazyBean.class, document);
+        assertThat(fromDb.secretString.get()).isEqualTo(bean.secretString.get());
+        assertThat(fromDb.secretLong.get()).isEqualTo(bean.secretLong.get());
+    }
+
+    private Document save(MyBean bean) {
+        Document document = new Document();
+        converter.write(bean, document);
+        listener.onBeforeSave(new BeforeSaveEvent<>(bean, document, MyBean.MONGO_MYBEAN));
+        return document;
+    }
+}
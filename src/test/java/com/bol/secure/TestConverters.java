@@ -0,0 +1,41 @@
+package com.bol.secure;
+
+import com.bol.crypt.CryptVault;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.util.Base64;
+import java.util.Collections;
+
+/** what the unit tests save and load with, without any mongodb */
+public final class TestConverters {
+
+    public static final byte[] SECRET_KEY = Base64.getDecoder().decode("hqHKBLV83LpCqzKpf8OvutbCs+O5wX5BPu3btWpEvXA=");
+
+    private TestConverters() {}
+
+    public static CryptVault cryptVault() {
+        return cryptVault(0);
+    }
+
+    public static CryptVault cryptVault(int keyVersion) {
+        return new CryptVault()
+                .with256BitAesCbcPkcs5PaddingAnd128BitSaltKey(keyVersion, SECRET_KEY)
+                .withDefaultKeyVersion(keyVersion);
+    }
+
+    /** a converter as configured by spring boot, minus the dbref resolver */
+    public static MappingMongoConverter converter() {
+        MongoCustomConversions conversions = new MongoCustomConversions(Collections.singletonList(LazyEncrypted.Writer.INSTANCE));
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        mappingContext.afterPropertiesSet();
+
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+        return converter;
+    }
+}
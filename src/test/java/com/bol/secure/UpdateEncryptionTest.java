@@ -0,0 +1,205 @@
+package com.bol.secure;
+
+import com.bol.crypt.CryptVault;
+import com.bol.system.model.IndexedBean;
+import com.bol.system.model.MyBean;
+import com.bol.system.model.MySubBean;
+import com.bol.system.polymorphism.model.AliasedSubObject;
+import com.bol.system.polymorphism.model.SubObject;
+import com.bol.system.polymorphism.model.TestObject;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.Base64;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class UpdateEncryptionTest {
+
+    private static final byte[] indexKey = Base64.getDecoder().decode("ge2L+MA9jLA8UiUJ4z5fUoK+Lgj2yddlL6EzYIBqb1Q=");
+
+    private final CryptVault cryptVault = TestConverters.cryptVault();
+    private final DeterministicEncryption deterministicEncryption = new DeterministicEncryption()
+            .withKey(0, new byte[64])
+            .withDefaultKeyVersion(0);
+    private final MappingMongoConverter converter = TestConverters.converter();
+
+    @Test
+    public void cachedListener() {
+        checkSet(listener());
+    }
+
+    @Test
+    public void parallelCrypt() {
+        checkSet(listener().withParallelCrypt(1));
+    }
+
+    private void checkSet(CachedEncryptionEventListener listener) {
+        IndexedBean bean = new IndexedBean();
+        bean.name = "joe";
+        bean.ssn = "123-45-6789";
+        bean.email = "joe@example.com";
+        bean.taxId = "NL123456789B01";
+        bean.lazySsn = LazyEncrypted.of("987-65-4321");
+
+        Update update = new Update()
+                .set("name", bean.name)
+                .set("ssn", bean.ssn)
+                .set("email", bean.email)
+                .set("taxId", bean.taxId)
+                .setOnInsert("lazySsn", bean.lazySsn);
+        Update encrypted = new UpdateEncryption(converter, listener).encrypt(update, IndexedBean.class);
+
+        Document set = (Document) encrypted.getUpdateObject().get("$set");
+        Document setOnInsert = (Document) encrypted.getUpdateObject().get("$setOnInsert");
+        Document saved = save(listener, bean);
+
+        assertThat(set.get("name")).isEqualTo(bean.name);
+        assertThat(set.get("ssn")).isInstanceOf(Binary.class);
+        assertThat(set.get("email")).isInstanceOf(Binary.class);
+        assertThat(set.get(IndexedBean.MONGO_SSN_INDEX)).isEqualTo(saved.get(IndexedBean.MONGO_SSN_INDEX));
+        assertThat(set.get(IndexedBean.MONGO_EMAIL_INDEX)).isEqualTo(saved.get(IndexedBean.MONGO_EMAIL_INDEX));
+        assertThat(set.get("taxId")).isEqualTo(saved.get(IndexedBean.MONGO_TAXID));
+        assertThat(setOnInsert.get("lazySsn")).isInstanceOf(Binary.class);
+        assertThat(setOnInsert.get("lazySsn_bidx")).isEqualTo(saved.get("lazySsn_bidx"));
+
+        // mapped as the update mapper would, then loaded
+        Document document = new Document(set);
+        document.put(IndexedBean.MONGO_EMAIL, document.remove("email"));
+        document.putAll(setOnInsert);
+        listener.onAfterLoad(new AfterLoadEvent<>(document, IndexedBean.class, IndexedBean.MONGO_INDEXEDBEAN));
+        IndexedBean fromDb = converter.read(IndexedBean.class, document);
+
+        assertThat(fromDb.ssn).isEqualTo(bean.ssn);
+        assertThat(fromDb.email).isEqualTo(bean.email);
+        assertThat(fromDb.taxId).isEqualTo(bean.taxId);
+        assertThat(fromDb.lazySsn.get()).isEqualTo(bean.lazySsn.get());
+    }
+
+    @Test
+    public void positionalAndNestedPaths() {
+        UpdateEncryption updateEncryption = new UpdateEncryption(converter, listener());
+
+        Update update = new Update()
+                .set("addresses.$.zipCode", "1234AB")
+                .push("addresses", new IndexedBean.Address("5678CD"));
+        Document encrypted = updateEncryption.encrypt(update, IndexedBean.class).getUpdateObject();
+
+        Document set = (Document) encrypted.get("$set");
+        assertThat(set.get("addresses.$.zipCode")).isInstanceOf(Binary.class);
+        assertThat(set.get("addresses.$." + IndexedBean.Address.MONGO_ZIPCODE_INDEX)).isInstanceOf(Binary.class);
+        Document pushed = (Document) ((Document) encrypted.get("$push")).get("addresses");
+        assertThat(pushed.get(IndexedBean.Address.MONGO_ZIPCODE)).isInstanceOf(Binary.class);
+        assertThat(pushed.get(IndexedBean.Address.MONGO_ZIPCODE_INDEX)).isInstanceOf(Binary.class);
+
+        update = new Update()
+                .set("nonSensitiveMap.key.secretString", "sky is blue")
+                .set("nonSensitiveSubBeanList.$[element].secretString", "earth is round")
+                .set("nonSensitiveSubBean", new MySubBean("public", "earth is flat"))
+                .set("secretSubBean", new MySubBean("public", "earth is flat"))
+                .filterArray("element.nonSensitiveData", "public");
+        update.push("nonSensitiveSubBeanList").each(new MySubBean("a", "b"), new MySubBean("c", "d"));
+        Update encryptedUpdate = new UpdateEncryption(converter, listener()).encrypt(update, MyBean.class);
+        encrypted = encryptedUpdate.getUpdateObject();
+
+        set = (Document) encrypted.get("$set");
+        assertThat(set.get("nonSensitiveMap.key.secretString")).isInstanceOf(Binary.class);
+        assertThat(set.get("nonSensitiveSubBeanList.$[element].secretString")).isInstanceOf(Binary.class);
+        assertThat(((Document) set.get("nonSensitiveSubBean")).get(MySubBean.MONGO_NONSENSITIVEDATA)).isEqualTo("public");
+        assertThat(((Document) set.get("nonSensitiveSubBean")).get(MySubBean.MONGO_SECRETSTRING)).isInstanceOf(Binary.class);
+        assertThat(set.get("secretSubBean")).isInstanceOf(Binary.class);
+        assertThat(encryptedUpdate.getArrayFilters()).hasSize(1);
+
+        List<?> each = (List<?>) ((Document) ((Document) encrypted.get("$push")).get("nonSensitiveSubBeanList")).get("$each");
+        assertThat(each).hasSize(2);
+        for (Object element : each) {
+            assertThat(((Document) element).get(MySubBean.MONGO_SECRETSTRING)).isInstanceOf(Binary.class);
+        }
+    }
+
+    @Test
+    public void unsetsBlindIndexes() {
+        Document encrypted = new UpdateEncryption(converter, listener())
+                .encrypt(new Update().unset("ssn").set("email", null), IndexedBean.class)
+                .getUpdateObject();
+
+        assertThat(((Document) encrypted.get("$unset")).keySet()).containsExactlyInAnyOrder("ssn", IndexedBean.MONGO_SSN_INDEX, IndexedBean.MONGO_EMAIL_INDEX);
+        assertThat(((Document) encrypted.get("$set")).get("email")).isNull();
+    }
+
+    @Test
+    public void updatesWithoutEncryptedFieldsAreLeftAlone() {
+        UpdateEncryption updateEncryption = new UpdateEncryption(converter, listener());
+
+        Update update = new Update().set("nonSensitiveData", "public").inc("version", 1).push("publicStringList", "x");
+        assertThat(updateEncryption.encrypt(update, MyBean.class)).isSameAs(update);
+    }
+
+    @Test
+    public void rejectsOperationsOnCiphertexts() {
+        UpdateEncryption updateEncryption = new UpdateEncryption(converter, listener());
+
+        assertThatThrownBy(() -> updateEncryption.encrypt(new Update().inc("secretLong", 1), MyBean.class))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> updateEncryption.encrypt(new Update().push("secretStringList", "x"), MyBean.class))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> updateEncryption.encrypt(new Update().set("secretSubBean.secretString", "x"), MyBean.class))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void polymorphicSubclassFields() {
+        CachedEncryptionEventListener listener = new CachedEncryptionEventListener(cryptVault).withPolymorphism(converter);
+        UpdateEncryption updateEncryption = new UpdateEncryption(converter, listener);
+
+        // not known to the mapping context yet: its fields might be encrypted
+        assertThatThrownBy(() -> updateEncryption.encrypt(new Update().set("list.$.field", "x"), TestObject.class))
+                .isInstanceOf(IllegalArgumentException.class);
+
+        // as if saved or loaded before
+        converter.getMappingContext().getPersistentEntity(SubObject.class);
+        converter.getMappingContext().getPersistentEntity(AliasedSubObject.class);
+
+        SubObject subObject = new SubObject();
+        subObject.field = "earth is flat";
+        Update update = new Update()
+                .set("list.$.field", "sky is blue")
+                .set("list.1", subObject);
+        update.push("list", subObject);
+        Document encrypted = updateEncryption.encrypt(update, TestObject.class).getUpdateObject();
+
+        Document set = (Document) encrypted.get("$set");
+        assertThat(set.get("list.$.field")).isInstanceOf(Binary.class);
+        assertThat(((Document) set.get("list.1")).get("_class")).isEqualTo(SubObject.class.getName());
+        assertThat(((Document) set.get("list.1")).get("field")).isInstanceOf(Binary.class);
+        Document pushed = (Document) ((Document) encrypted.get("$push")).get("list");
+        assertThat(pushed.get("field")).isInstanceOf(Binary.class);
+
+        Document document = new Document("list", List.of(pushed));
+        listener.onAfterLoad(new AfterLoadEvent<>(document, TestObject.class, TestObject.MONGO_TESTOBJECT));
+        assertThat(((SubObject) converter.read(TestObject.class, document).list.get(0)).field).isEqualTo(subObject.field);
+
+        assertThatThrownBy(() -> updateEncryption.encrypt(new Update().set("list.$.unknown", "x"), TestObject.class))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private CachedEncryptionEventListener listener() {
+        return new CachedEncryptionEventListener(cryptVault)
+                .withBlindIndexer(new BlindIndexer(indexKey))
+                .withDeterministicEncryption(deterministicEncryption);
+    }
+
+    private Document save(AbstractEncryptionEventListener<?> listener, IndexedBean bean) {
+        Document document = new Document();
+        converter.write(bean, document);
+        listener.onBeforeSave(new BeforeSaveEvent<>(bean, document, IndexedBean.MONGO_INDEXEDBEAN));
+        return document;
+    }
+}
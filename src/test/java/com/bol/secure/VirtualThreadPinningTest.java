@@ -0,0 +1,110 @@
+package com.bol.secure;
+
+import com.bol.crypt.CryptVault;
+import com.bol.system.model.MyBean;
+import com.bol.system.model.MySubBean;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingFile;
+import org.bson.Document;
+import org.junit.Assume;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** saves and loads from thousands of virtual threads, and checks via JFR that none of them pinned its carrier */
+public class VirtualThreadPinningTest {
+
+    private static final int TASKS = 5000;
+
+    private final CryptVault cryptVault = TestConverters.cryptVault();
+
+    @Test
+    public void cachedListenerDoesNotPin() throws Exception {
+        checkNoPinning(new CachedEncryptionEventListener(cryptVault).withDirtyTracking(TASKS / 2));
+    }
+
+    @Test
+    public void reflectionListenerDoesNotPin() throws Exception {
+        checkNoPinning(new ReflectionEncryptionEventListener(cryptVault));
+    }
+
+    private void checkNoPinning(AbstractEncryptionEventListener<?> listener) throws Exception {
+        Assume.assumeTrue("virtual threads need java 21+", Runtime.version().feature() >= 21);
+
+        MappingMongoConverter converter = TestConverters.converter();
+        // class initialization may legitimately pin; get it out of the way first
+        saveAndLoad(converter, listener, -1);
+
+        Path jfr = Files.createTempFile("pinning", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+            recording.start();
+
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            try {
+                List<Future<?>> futures = new ArrayList<>(TASKS);
+                for (int i = 0; i < TASKS; i++) {
+                    int id = i;
+                    futures.add(executor.submit(() -> saveAndLoad(converter, listener, id)));
+                }
+                for (Future<?> future : futures) future.get(1, TimeUnit.MINUTES);
+            } finally {
+                executor.shutdown();
+            }
+
+            recording.stop();
+            recording.dump(jfr);
+        }
+
+        try {
+            List<RecordedEvent> pinned = RecordingFile.readAllEvents(jfr).stream()
+                    .filter(event -> event.getEventType().getName().equals("jdk.VirtualThreadPinned"))
+                    .collect(Collectors.toList());
+            assertThat(pinned).as(() -> pinned.stream().map(VirtualThreadPinningTest::stackTrace).collect(Collectors.joining("\n\n"))).isEmpty();
+        } finally {
+            Files.delete(jfr);
+        }
+    }
+
+    private static void saveAndLoad(MappingMongoConverter converter, AbstractEncryptionEventListener<?> listener, int id) {
+        MyBean bean = new MyBean();
+        bean.id = String.format("%024x", id & 0xffffffffL);
+        bean.secretString = "secret " + id;
+        bean.secretSubBean = new MySubBean("sky is blue", "earth is round " + id);
+        bean.nonSensitiveSubBeanList = Arrays.asList(new MySubBean("grass is green", "earth is flat " + id));
+
+        Document document = new Document();
+        converter.write(bean, document);
+        listener.onBeforeSave(new BeforeSaveEvent<>(bean, document, MyBean.MONGO_MYBEAN));
+        assertThat(document.get(MyBean.MONGO_SECRETSTRING)).isNotEqualTo(bean.secretString);
+
+        listener.onAfterLoad(new AfterLoadEvent<>(document, MyBean.class, MyBean.MONGO_MYBEAN));
+        MyBean fromDb = converter.read(MyBean.class, document);
+        assertThat(fromDb.secretString).isEqualTo(bean.secretString);
+        assertThat(fromDb.secretSubBean.secretString).isEqualTo(bean.secretSubBean.secretString);
+        assertThat(fromDb.nonSensitiveSubBeanList.get(0).secretString).isEqualTo(bean.nonSensitiveSubBeanList.get(0).secretString);
+    }
+
+    private static String stackTrace(RecordedEvent event) {
+        if (event.getStackTrace() == null) return event.toString();
+        return event.getStackTrace().getFrames().stream()
+                .map(RecordedFrame::getMethod)
+                .map(method -> method.getType().getName() + "." + method.getName())
+                .collect(Collectors.joining("\n\tat ", "pinned at ", ""));
+    }
+}
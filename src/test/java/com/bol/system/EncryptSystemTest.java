@@ -2,6 +2,7 @@ package com.bol.system;
 
 import com.bol.crypt.*;
 import com.bol.secure.AbstractEncryptionEventListener;
+import com.bol.secure.LazyEncrypted;
 import com.bol.system.model.*;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
@@ -14,6 +15,8 @@ import org.junit.Test;
 import org.junit.internal.Throwables;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.util.ReflectionTestUtils;
@@ -48,6 +51,7 @@ public abstract class EncryptSystemTest {
         mongoTemplate.dropCollection(RenamedField.class);
         mongoTemplate.dropCollection(PrimitiveField.class);
         mongoTemplate.dropCollection(InitBean.class);
+        mongoTemplate.dropCollection(LazyBean.class);
     }
 
     @PostConstruct
@@ -678,6 +682,97 @@ public abstract class EncryptSystemTest {
         });
     }
 
+    @Test
+    public void checkCodecReuse() {
+        MyBean bean = new MyBean();
+        bean.secretString = "reused";
+        mongoTemplate.save(bean);
+        mongoTemplate.save(bean);
+
+        for (int i = 0; i < 3; i++) {
+            MyBean fromDb = mongoTemplate.findOne(query(where("_id").is(bean.id)), MyBean.class);
+            assertThat(fromDb.secretString).isEqualTo(bean.secretString);
+        }
+
+        assertThat(abstractEncryptionEventListener.getCodecReuseHits()).isGreaterThan(0);
+        assertThat(abstractEncryptionEventListener.getCodecReuseHitRate()).isGreaterThan(0);
+    }
+
+    @Test
+    public void checkLazyDecryption() {
+        LazyBean bean = new LazyBean();
+        bean.nonSensitiveData = "lazy";
+        bean.secretString = LazyEncrypted.of("lazy secret");
+        bean.secretLong = LazyEncrypted.of(95459L);
+        mongoTemplate.save(bean);
+
+        Document fromMongo = mongoTemplate.getCollection(LazyBean.MONGO_LAZYBEAN).find(new Document("_id", new ObjectId(bean.id))).first();
+        cryptAssert.assertCryptLength(fromMongo.get(LazyBean.MONGO_SECRETSTRING), "lazy secret".length() + 12);
+        cryptAssert.assertCryptLength(fromMongo.get(LazyBean.MONGO_SECRETLONG), 8);
+
+        LazyBean fromDb = mongoTemplate.findOne(query(where("_id").is(bean.id)), LazyBean.class);
+        assertThat(fromDb.nonSensitiveData).isEqualTo(bean.nonSensitiveData);
+        assertThat(fromDb.secretString.isDecrypted()).isFalse();
+        assertThat(fromDb.secretLong.isDecrypted()).isFalse();
+
+        assertThat(fromDb.secretString.get()).isEqualTo("lazy secret");
+        assertThat(fromDb.secretString.isDecrypted()).isTrue();
+        assertThat(fromDb.secretLong.isDecrypted()).isFalse();
+
+        // untouched ciphertext is written back as-is, replaced values are encrypted again
+        fromDb.secretLong = LazyEncrypted.of(42L);
+        mongoTemplate.save(fromDb);
+
+        Document updated = mongoTemplate.getCollection(LazyBean.MONGO_LAZYBEAN).find(new Document("_id", new ObjectId(bean.id))).first();
+        assertThat(updated.get(LazyBean.MONGO_SECRETSTRING)).isEqualTo(fromMongo.get(LazyBean.MONGO_SECRETSTRING));
+        assertThat(updated.get(LazyBean.MONGO_SECRETLONG)).isNotEqualTo(fromMongo.get(LazyBean.MONGO_SECRETLONG));
+
+        LazyBean reloaded = mongoTemplate.findOne(query(where("_id").is(bean.id)), LazyBean.class);
+        assertThat(reloaded.secretString.get()).isEqualTo("lazy secret");
+        assertThat(reloaded.secretLong.get()).isEqualTo(42L);
+    }
+
+    @Test
+    public void checkDecryptOnlyProjection() {
+        MyBean bean = new MyBean();
+        bean.nonSensitiveData = "projected";
+        bean.secretString = "selected";
+        bean.secretLong = 95459L;
+        mongoTemplate.save(bean);
+
+        Query query = query(where("_id").is(bean.id));
+        query.fields().include(MONGO_NONSENSITIVEDATA, MONGO_SECRETSTRING);
+        MyBean fromDb = (MyBean) abstractEncryptionEventListener.decryptOnly(query, () -> mongoTemplate.findOne(query, MyBean.class));
+
+        assertThat(fromDb.nonSensitiveData).isEqualTo(bean.nonSensitiveData);
+        assertThat(fromDb.secretString).isEqualTo(bean.secretString);
+        assertThat(fromDb.secretLong).isNull();
+    }
+
+    @Test
+    public void checkDecryptOnlyLeavesOtherFieldsEncrypted() {
+        MyBean bean = new MyBean();
+        bean.id = new ObjectId().toHexString();
+        bean.secretString = "selected";
+        bean.secretLong = 95459L;
+        bean.nonSensitiveSubBeanList = Arrays.asList(new MySubBean("one", "secret one"), new MySubBean("two", "secret two"));
+
+        Document document = new Document();
+        mongoTemplate.getConverter().write(bean, document);
+        abstractEncryptionEventListener.onBeforeSave(new BeforeSaveEvent<>(bean, document, MyBean.MONGO_MYBEAN));
+
+        abstractEncryptionEventListener.decryptOnly(Arrays.asList(MONGO_SECRETSTRING, MyBean.MONGO_NONSENSITIVESUBBEANLIST + "." + MySubBean.MONGO_NONSENSITIVEDATA), () -> {
+            abstractEncryptionEventListener.onAfterLoad(new AfterLoadEvent<>(document, MyBean.class, MyBean.MONGO_MYBEAN));
+            return null;
+        });
+
+        assertThat(document.get(MONGO_SECRETSTRING)).isEqualTo(bean.secretString);
+        assertThat(document.get(MyBean.MONGO_SECRETLONG)).isInstanceOf(Binary.class);
+        for (Object subBean : (List<?>) document.get(MyBean.MONGO_NONSENSITIVESUBBEANLIST)) {
+            assertThat(((Document) subBean).get(MySubBean.MONGO_SECRETSTRING)).isInstanceOf(Binary.class);
+        }
+    }
+
     byte[] cryptedResultInDb(String value) {
         MyBean bean = new MyBean();
         bean.secretString = value;
@@ -1,6 +1,7 @@
 package com.bol.system;
 
 import com.bol.crypt.CryptVault;
+import com.bol.secure.LazyEncrypted;
 import com.mongodb.ConnectionString;
 import com.mongodb.MongoClientSettings;
 import com.mongodb.client.MongoClient;
@@ -41,6 +42,11 @@ public abstract class MongoDBConfiguration extends AbstractMongoClientConfigurat
         );
     }
 
+    @Override
+    protected void configureConverters(MongoCustomConversions.MongoConverterConfigurationAdapter adapter) {
+        adapter.registerConverter(LazyEncrypted.Writer.INSTANCE);
+    }
+
     @Bean
     public CryptVault cryptVault() {
         return new CryptVault()
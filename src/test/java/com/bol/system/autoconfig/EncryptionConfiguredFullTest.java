@@ -3,6 +3,9 @@ package com.bol.system.autoconfig;
 import com.bol.config.EncryptAutoConfiguration;
 import com.bol.crypt.CryptVault;
 import com.bol.secure.AbstractEncryptionEventListener;
+import com.bol.secure.BlindIndexer;
+import com.bol.secure.DeterministicEncryption;
+import com.bol.secure.EncryptionWarmUp;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -21,10 +24,17 @@ public class EncryptionConfiguredFullTest {
 
     @Autowired(required = false) CryptVault cryptVault;
     @Autowired(required = false) AbstractEncryptionEventListener eventListener;
+    @Autowired(required = false) EncryptionWarmUp warmUp;
+    @Autowired(required = false) BlindIndexer blindIndexer;
+    @Autowired(required = false) DeterministicEncryption deterministicEncryption;
 
     @Test
     public void sanityTest() {
         assertThat(cryptVault).isNotNull();
         assertThat(eventListener).isNotNull();
+        assertThat(warmUp).isNotNull();
+        assertThat(blindIndexer).isNotNull();
+        assertThat(deterministicEncryption).isNotNull();
+        assertThat(deterministicEncryption.getDefaultKeyVersion()).isEqualTo(1);
     }
 }
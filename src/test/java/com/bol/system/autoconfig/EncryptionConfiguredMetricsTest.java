@@ -0,0 +1,54 @@
+package com.bol.system.autoconfig;
+
+import com.bol.config.EncryptAutoConfiguration;
+import com.bol.crypt.CryptVault;
+import com.bol.secure.AbstractEncryptionEventListener;
+import com.bol.secure.CryptMetrics;
+import com.bol.secure.MicrometerCryptMetrics;
+import com.bol.system.model.MyBean;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ActiveProfiles("autoconfig-short")
+@RunWith(SpringRunner.class)
+@EnableAutoConfiguration
+@SpringBootTest(classes = {EncryptionConfiguredMetricsTest.class, EncryptionConfiguredMetricsTest.MeterRegistryConfig.class, EncryptAutoConfiguration.class})
+public class EncryptionConfiguredMetricsTest {
+
+    @Autowired MeterRegistry meterRegistry;
+    @Autowired(required = false) CryptVault cryptVault;
+    @Autowired(required = false) AbstractEncryptionEventListener eventListener;
+    @Autowired(required = false) CryptMetrics cryptMetrics;
+
+    @Test
+    public void sanityTest() {
+        assertThat(cryptVault).isNotNull();
+        assertThat(eventListener).isNotNull();
+        assertThat(cryptMetrics).isInstanceOf(MicrometerCryptMetrics.class);
+
+        Document document = new Document(MyBean.MONGO_SECRETSTRING, "earth is flat");
+        eventListener.onBeforeSave(new BeforeSaveEvent<>(new MyBean(), document, MyBean.MONGO_MYBEAN));
+        assertThat(meterRegistry.get("mongodb.encrypt.document").tags("collection", MyBean.MONGO_MYBEAN, "operation", "encrypt").timer().count()).isEqualTo(1);
+    }
+
+    @TestConfiguration
+    static class MeterRegistryConfig {
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+}
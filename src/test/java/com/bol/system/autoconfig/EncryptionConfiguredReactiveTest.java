@@ -0,0 +1,41 @@
+package com.bol.system.autoconfig;
+
+import com.bol.config.EncryptAutoConfiguration;
+import com.bol.crypt.CryptVault;
+import com.bol.secure.AbstractEncryptionEventListener;
+import com.bol.secure.CachedEncryptionEventListener;
+import com.bol.secure.EncryptionWarmUp;
+import com.bol.secure.ReactiveEncryption;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ActiveProfiles("autoconfig-reactive")
+@RunWith(SpringRunner.class)
+@EnableAutoConfiguration
+@SpringBootTest(classes = {EncryptionConfiguredReactiveTest.class, EncryptAutoConfiguration.class})
+public class EncryptionConfiguredReactiveTest {
+
+    @Autowired(required = false) CryptVault cryptVault;
+    @Autowired(required = false) AbstractEncryptionEventListener eventListener;
+    @Autowired(required = false) ReactiveEncryption reactiveEncryption;
+    @Autowired(required = false) ReactiveEncryption.BlockingSaveCallback blockingSaveCallback;
+    @Autowired(required = false) EncryptionWarmUp warmUp;
+
+    @Test
+    public void sanityTest() {
+        assertThat(cryptVault).isNotNull();
+        // the event listener is wrapped, registering it on its own would encrypt twice
+        assertThat(eventListener).isNull();
+        assertThat(reactiveEncryption).isNotNull();
+        assertThat(reactiveEncryption.getEventListener()).isInstanceOf(CachedEncryptionEventListener.class);
+        assertThat(blockingSaveCallback).isNotNull();
+        assertThat(warmUp).isNotNull();
+    }
+}
@@ -0,0 +1,43 @@
+package com.bol.system.blindindex;
+
+import com.bol.crypt.CryptVault;
+import com.bol.secure.BlindIndexMongoTemplate;
+import com.bol.secure.BlindIndexer;
+import com.bol.secure.CachedEncryptionEventListener;
+import com.bol.secure.DeterministicEncryption;
+import com.bol.system.MongoDBConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.MongoDatabaseFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+
+import java.util.Base64;
+
+@Configuration
+public class BlindIndexMongoDBConfiguration extends MongoDBConfiguration {
+
+    private static final byte[] indexKey = Base64.getDecoder().decode("93gEnX0TTPVYETLoESnEGPk15SEJrA+XxZzvPyQNOj4=");
+    private static final byte[] deterministicKey = Base64.getDecoder().decode("0ZRCIBfoZ6J4ugKCJQWzb0bXvCN8YXKdjVTQfM3Tjd0xKZ6m6kSYF1mLOEN1/L9iRP1o5xwhS0SbHLgvKeeDJw==");
+
+    @Bean
+    public BlindIndexer blindIndexer() {
+        return new BlindIndexer(indexKey);
+    }
+
+    @Bean
+    public DeterministicEncryption deterministicEncryption() {
+        return new DeterministicEncryption().withKey(1, deterministicKey).withDefaultKeyVersion(1);
+    }
+
+    @Bean
+    public CachedEncryptionEventListener encryptionEventListener(CryptVault cryptVault, BlindIndexer blindIndexer, DeterministicEncryption deterministicEncryption) {
+        return new CachedEncryptionEventListener(cryptVault).withBlindIndexer(blindIndexer).withDeterministicEncryption(deterministicEncryption);
+    }
+
+    @Override
+    @Bean
+    public MongoTemplate mongoTemplate(MongoDatabaseFactory databaseFactory, MappingMongoConverter converter) {
+        return new BlindIndexMongoTemplate(databaseFactory, converter, blindIndexer(), deterministicEncryption());
+    }
+}
@@ -0,0 +1,93 @@
+package com.bol.system.blindindex;
+
+import com.bol.secure.BlindIndexer;
+import com.bol.secure.LazyEncrypted;
+import com.bol.system.model.IndexedBean;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {BlindIndexMongoDBConfiguration.class})
+public class BlindIndexSystemTest {
+
+    @Autowired MongoTemplate mongoTemplate;
+    @Autowired BlindIndexer blindIndexer;
+
+    @Before
+    public void cleanDb() {
+        mongoTemplate.dropCollection(IndexedBean.class);
+    }
+
+    @Test
+    public void indexIsStored() {
+        IndexedBean bean = save("joe", "123-45-6789", "joe@example.com", "1234AB");
+
+        Document fromMongo = mongoTemplate.getCollection(IndexedBean.MONGO_INDEXEDBEAN).find(new Document("_id", new ObjectId(bean.id))).first();
+        assertThat(fromMongo.get(IndexedBean.MONGO_SSN)).isInstanceOf(Binary.class);
+        assertThat(fromMongo.get(IndexedBean.MONGO_SSN_INDEX)).isEqualTo(blindIndexer.index("123-45-6789", 16));
+        assertThat(fromMongo.get(IndexedBean.MONGO_EMAIL_INDEX)).isEqualTo(blindIndexer.index("joe@example.com", 4));
+    }
+
+    @Test
+    public void findByIndexCriteria() {
+        IndexedBean joe = save("joe", "123-45-6789", "joe@example.com", "1234AB");
+        save("jane", "987-65-4321", "jane@example.com", "5678CD");
+
+        List<IndexedBean> found = mongoTemplate.find(query(blindIndexer.criteria(IndexedBean.class, "ssn", "123-45-6789")), IndexedBean.class);
+        assertThat(found).extracting(bean -> bean.id).containsExactly(joe.id);
+    }
+
+    @Test
+    public void queriesAreRewritten() {
+        IndexedBean joe = save("joe", "123-45-6789", "joe@example.com", "1234AB");
+        IndexedBean jane = save("jane", "987-65-4321", "jane@example.com", "5678CD");
+
+        assertThat(mongoTemplate.findOne(query(where("ssn").is("123-45-6789")), IndexedBean.class).id).isEqualTo(joe.id);
+        assertThat(mongoTemplate.find(query(where("email").in("jane@example.com", "nobody@example.com")), IndexedBean.class))
+                .extracting(bean -> bean.id).containsExactly(jane.id);
+        assertThat(mongoTemplate.find(query(where("addresses.zipCode").is("5678CD").and("name").is("jane")), IndexedBean.class))
+                .extracting(bean -> bean.id).containsExactly(jane.id);
+        assertThat(mongoTemplate.count(query(where("ssn").is("000-00-0000")), IndexedBean.class)).isZero();
+        assertThat(mongoTemplate.exists(query(where("lazySsn").is("lazy 123-45-6789")), IndexedBean.class)).isTrue();
+
+        assertThat(mongoTemplate.query(IndexedBean.class).matching(where("ssn").is("987-65-4321")).oneValue().id).isEqualTo(jane.id);
+        assertThat(mongoTemplate.query(IndexedBean.class).matching(new Criteria().andOperator(where("ssn").is("987-65-4321"), where("email").is("joe@example.com"))).all()).isEmpty();
+    }
+
+    @Test
+    public void deterministicQueriesAreRewritten() {
+        IndexedBean joe = save("joe", "123-45-6789", "joe@example.com", "1234AB");
+        save("jane", "987-65-4321", "jane@example.com", "5678CD");
+
+        assertThat(mongoTemplate.findOne(query(where("taxId").is("tax 123-45-6789")), IndexedBean.class).id).isEqualTo(joe.id);
+        assertThat(mongoTemplate.count(query(where("taxId").in("tax 123-45-6789", "tax 987-65-4321")), IndexedBean.class)).isEqualTo(2);
+        assertThat(mongoTemplate.exists(query(where("taxId").is("tax 000-00-0000")), IndexedBean.class)).isFalse();
+    }
+
+    private IndexedBean save(String name, String ssn, String email, String zipCode) {
+        IndexedBean bean = new IndexedBean();
+        bean.name = name;
+        bean.ssn = ssn;
+        bean.email = email;
+        bean.lazySsn = LazyEncrypted.of("lazy " + ssn);
+        bean.taxId = "tax " + ssn;
+        bean.addresses = Arrays.asList(new IndexedBean.Address(zipCode));
+        return mongoTemplate.save(bean);
+    }
+}
@@ -0,0 +1,45 @@
+package com.bol.system.dirty;
+
+import com.bol.system.EncryptSystemTest;
+import com.bol.system.model.MyBean;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {DirtyTrackingMongoDBConfiguration.class})
+public class DirtyTrackingEncryptSystemTest extends EncryptSystemTest {
+
+    @Test
+    public void unchangedFieldsKeepTheirCiphertext() {
+        MyBean bean = new MyBean();
+        bean.nonSensitiveData = "grass is green";
+        bean.secretString = "earth is flat";
+        bean.secretLong = 95459L;
+        mongoTemplate.save(bean);
+
+        Document before = mongoTemplate.getCollection(MyBean.MONGO_MYBEAN).find(new Document("_id", new ObjectId(bean.id))).first();
+
+        MyBean fromDb = mongoTemplate.findOne(query(where("_id").is(bean.id)), MyBean.class);
+        fromDb.nonSensitiveData = "grass is blue";
+        fromDb.secretLong = 42L;
+        long reusesBefore = abstractEncryptionEventListener.getDirtyTrackingReuses();
+        mongoTemplate.save(fromDb);
+
+        Document after = mongoTemplate.getCollection(MyBean.MONGO_MYBEAN).find(new Document("_id", new ObjectId(bean.id))).first();
+        assertThat(after.get(MyBean.MONGO_SECRETSTRING)).isEqualTo(before.get(MyBean.MONGO_SECRETSTRING));
+        assertThat(after.get(MyBean.MONGO_SECRETLONG)).isNotEqualTo(before.get(MyBean.MONGO_SECRETLONG));
+        assertThat(abstractEncryptionEventListener.getDirtyTrackingReuses()).isGreaterThan(reusesBefore);
+
+        MyBean reloaded = mongoTemplate.findOne(query(where("_id").is(bean.id)), MyBean.class);
+        assertThat(reloaded.secretString).isEqualTo(bean.secretString);
+        assertThat(reloaded.secretLong).isEqualTo(42L);
+    }
+}
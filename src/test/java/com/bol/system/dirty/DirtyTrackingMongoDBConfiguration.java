@@ -0,0 +1,17 @@
+package com.bol.system.dirty;
+
+import com.bol.crypt.CryptVault;
+import com.bol.secure.CachedEncryptionEventListener;
+import com.bol.system.cached.CachedMongoDBConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class DirtyTrackingMongoDBConfiguration extends CachedMongoDBConfiguration {
+    @Override
+    @Bean
+    public CachedEncryptionEventListener encryptionEventListener(CryptVault cryptVault) {
+        return new CachedEncryptionEventListener(cryptVault)
+                .withDirtyTracking(100);
+    }
+}
@@ -0,0 +1,68 @@
+package com.bol.system.model;
+
+import com.bol.secure.BlindIndex;
+import com.bol.secure.Deterministic;
+import com.bol.secure.Encrypted;
+import com.bol.secure.LazyEncrypted;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+import java.util.List;
+
+@Document(collection = IndexedBean.MONGO_INDEXEDBEAN)
+public class IndexedBean {
+    public static final String MONGO_INDEXEDBEAN = "indexedbean";
+    public static final String MONGO_SSN = "ssn";
+    public static final String MONGO_SSN_INDEX = "ssn_bidx";
+    public static final String MONGO_EMAIL = "mail";
+    public static final String MONGO_EMAIL_INDEX = "mail_idx";
+    public static final String MONGO_LAZYSSN = "lazySsn";
+    public static final String MONGO_ADDRESSES = "addresses";
+    public static final String MONGO_TAXID = "taxId";
+
+    @Id
+    public String id;
+
+    @Field
+    public String name;
+
+    @Field
+    @Encrypted
+    @BlindIndex
+    public String ssn;
+
+    @Field(MONGO_EMAIL)
+    @Encrypted
+    @BlindIndex(value = MONGO_EMAIL_INDEX, length = 4)
+    public String email;
+
+    @Field
+    @Encrypted
+    @BlindIndex
+    public LazyEncrypted<String> lazySsn;
+
+    @Field
+    public List<Address> addresses;
+
+    @Field
+    @Encrypted
+    @Deterministic
+    public String taxId;
+
+    public static class Address {
+        public static final String MONGO_ZIPCODE = "zip";
+        public static final String MONGO_ZIPCODE_INDEX = "zip_bidx";
+
+        @Field(MONGO_ZIPCODE)
+        @Encrypted
+        @BlindIndex
+        public String zipCode;
+
+        public Address() {}
+
+        public Address(String zipCode) {
+            this.zipCode = zipCode;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.bol.system.model;
+
+import com.bol.secure.Encrypted;
+import com.bol.secure.LazyEncrypted;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+@Document(collection = LazyBean.MONGO_LAZYBEAN)
+public class LazyBean {
+    public static final String MONGO_LAZYBEAN = "lazybean";
+    public static final String MONGO_SECRETSTRING = "secretString";
+    public static final String MONGO_SECRETLONG = "secretLong";
+
+    @Id
+    public String id;
+
+    @Field
+    public String nonSensitiveData;
+
+    @Field
+    @Encrypted
+    public LazyEncrypted<String> secretString;
+
+    @Field
+    @Encrypted
+    public LazyEncrypted<Long> secretLong;
+}
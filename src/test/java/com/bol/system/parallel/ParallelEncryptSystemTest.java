@@ -0,0 +1,11 @@
+package com.bol.system.parallel;
+
+import com.bol.system.EncryptSystemTest;
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {ParallelMongoDBConfiguration.class})
+public class ParallelEncryptSystemTest extends EncryptSystemTest {
+}
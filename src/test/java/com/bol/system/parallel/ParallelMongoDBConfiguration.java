@@ -0,0 +1,18 @@
+package com.bol.system.parallel;
+
+import com.bol.crypt.CryptVault;
+import com.bol.secure.CachedEncryptionEventListener;
+import com.bol.system.cached.CachedMongoDBConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class ParallelMongoDBConfiguration extends CachedMongoDBConfiguration {
+    @Override
+    @Bean
+    public CachedEncryptionEventListener encryptionEventListener(CryptVault cryptVault) {
+        // threshold of 1 forces every document through the parallel path
+        return new CachedEncryptionEventListener(cryptVault)
+                .withParallelCrypt(1);
+    }
+}
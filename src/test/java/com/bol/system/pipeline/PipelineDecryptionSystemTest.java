@@ -0,0 +1,83 @@
+package com.bol.system.pipeline;
+
+import com.bol.secure.CachedEncryptionEventListener;
+import com.bol.secure.PipelineDecryption;
+import com.bol.system.cached.CachedMongoDBConfiguration;
+import com.bol.system.model.MyBean;
+import com.bol.system.model.MySubBean;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.limit;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.match;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.newAggregation;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.sort;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {CachedMongoDBConfiguration.class})
+public class PipelineDecryptionSystemTest {
+
+    @Autowired MongoTemplate mongoTemplate;
+    @Autowired CachedEncryptionEventListener eventListener;
+
+    @Before
+    public void cleanDb() {
+        mongoTemplate.dropCollection(MyBean.class);
+    }
+
+    @Test
+    public void aggregateIntoDto() {
+        saveBeans();
+        Aggregation aggregation = newAggregation(match(where(MyBean.MONGO_NONSENSITIVEDATA).ne("bean 0")), sort(Sort.by(MyBean.MONGO_NONSENSITIVEDATA)), limit(2));
+
+        List<Summary> summaries = new PipelineDecryption(eventListener)
+                .aggregate(mongoTemplate, aggregation, MyBean.class, Summary.class)
+                .getMappedResults();
+
+        assertThat(summaries).extracting(s -> s.secretString).containsExactly("secret 1", "secret 2");
+        assertThat(summaries).extracting(s -> s.secretSubBean.secretString).containsExactly("earth is round 1", "earth is round 2");
+    }
+
+    @Test
+    public void aggregateStreamIntoDocuments() {
+        saveBeans();
+        Aggregation aggregation = newAggregation(sort(Sort.by(MyBean.MONGO_NONSENSITIVEDATA)));
+
+        try (Stream<Document> documents = new PipelineDecryption(eventListener)
+                .aggregateStream(mongoTemplate, aggregation, MyBean.MONGO_MYBEAN, MyBean.class, Document.class)) {
+            assertThat(documents.map(document -> document.get(MyBean.MONGO_SECRETSTRING)).collect(Collectors.toList()))
+                    .containsExactly("secret 0", "secret 1", "secret 2");
+        }
+    }
+
+    private void saveBeans() {
+        for (int i = 0; i < 3; i++) {
+            MyBean bean = new MyBean();
+            bean.nonSensitiveData = "bean " + i;
+            bean.secretString = "secret " + i;
+            bean.secretSubBean = new MySubBean("sky is blue", "earth is round " + i);
+            mongoTemplate.save(bean);
+        }
+    }
+
+    /** an aggregation output type without any @Encrypted fields */
+    public static class Summary {
+        public String nonSensitiveData;
+        public String secretString;
+        public MySubBean secretSubBean;
+    }
+}
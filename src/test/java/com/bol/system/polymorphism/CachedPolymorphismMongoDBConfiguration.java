@@ -0,0 +1,17 @@
+package com.bol.system.polymorphism;
+
+import com.bol.crypt.CryptVault;
+import com.bol.secure.CachedEncryptionEventListener;
+import com.bol.system.MongoDBConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+
+@Configuration
+public class CachedPolymorphismMongoDBConfiguration extends MongoDBConfiguration {
+    @Bean
+    public CachedEncryptionEventListener encryptionEventListener(CryptVault cryptVault, MappingMongoConverter mappingMongoConverter) {
+        return new CachedEncryptionEventListener(cryptVault)
+                .withPolymorphism(mappingMongoConverter);
+    }
+}
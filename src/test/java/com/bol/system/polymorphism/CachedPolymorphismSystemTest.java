@@ -0,0 +1,10 @@
+package com.bol.system.polymorphism;
+
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {CachedPolymorphismMongoDBConfiguration.class})
+public class CachedPolymorphismSystemTest extends PolymorphismSystemTest {
+}
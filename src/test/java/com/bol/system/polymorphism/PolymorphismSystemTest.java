@@ -1,6 +1,7 @@
 package com.bol.system.polymorphism;
 
 import com.bol.system.model.Person;
+import com.bol.system.polymorphism.model.AliasedSubObject;
 import com.bol.system.polymorphism.model.SubObject;
 import com.bol.system.polymorphism.model.TestObject;
 import com.bol.system.reflection.ReflectionMongoDBConfiguration;
@@ -57,4 +58,24 @@ public class PolymorphismSystemTest {
         Object encryptedFieldData = ((Binary) encryptedField).getData();
         assertThat(encryptedFieldData).isInstanceOf(byte[].class);
     }
+
+    @Test
+    public void checkReflectiveEncryptionWithTypeAlias() {
+        TestObject testObject = new TestObject();
+        AliasedSubObject subObject = new AliasedSubObject();
+        subObject.field = "this is an aliased test";
+        testObject.list = Collections.singletonList(subObject);
+
+        mongoTemplate.save(testObject);
+
+        Document fromMongo = mongoTemplate.getCollection(TestObject.MONGO_TESTOBJECT).find(new Document("_id", new ObjectId(testObject.id))).first();
+        Document dbBean = (Document) ((ArrayList) fromMongo.get("list")).get(0);
+        assertThat(dbBean.get("_class")).isEqualTo("aliased");
+        assertThat(dbBean.get("field")).isInstanceOf(Binary.class);
+
+        TestObject fromDb = mongoTemplate.findOne(query(where("_id").is(testObject.id)), TestObject.class);
+
+        assertThat(fromDb.list).hasSize(1);
+        assertThat(((AliasedSubObject) fromDb.list.get(0)).field).isEqualTo(subObject.field);
+    }
 }
@@ -0,0 +1,12 @@
+package com.bol.system.polymorphism.model;
+
+import com.bol.secure.Encrypted;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+@TypeAlias("aliased")
+public class AliasedSubObject extends AbstractSubObject {
+    @Field
+    @Encrypted
+    public String field;
+}
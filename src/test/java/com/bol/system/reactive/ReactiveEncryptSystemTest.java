@@ -0,0 +1,95 @@
+package com.bol.system.reactive;
+
+import com.bol.crypt.CryptVault;
+import com.bol.secure.ReactiveEncryption;
+import com.bol.system.CryptAssert;
+import com.bol.system.model.MyBean;
+import com.bol.system.model.MySubBean;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {ReactiveMongoDBConfiguration.class})
+public class ReactiveEncryptSystemTest {
+
+    @Autowired protected ReactiveMongoTemplate reactiveMongoTemplate;
+    @Autowired protected CryptVault cryptVault;
+    @Autowired protected ReactiveEncryption reactiveEncryption;
+
+    private CryptAssert cryptAssert;
+
+    @Before
+    public void cleanDb() {
+        reactiveMongoTemplate.dropCollection(MyBean.class).block();
+        ReactiveMongoDBConfiguration.cryptThreads.clear();
+        ReactiveMongoDBConfiguration.eventLoopNanos.set(0);
+    }
+
+    @PostConstruct
+    void postConstruct() {
+        cryptAssert = new CryptAssert(cryptVault);
+    }
+
+    @Test
+    public void encryptsOnScheduler() {
+        MyBean bean = new MyBean();
+        bean.nonSensitiveData = "grass is green";
+        bean.secretString = "earth is flat";
+        bean.secretSubBean = new MySubBean("sky is blue", "earth is round");
+        reactiveMongoTemplate.save(bean).block();
+
+        assertThat(ReactiveMongoDBConfiguration.cryptThreads).allMatch(name -> name.startsWith("crypt"));
+
+        Document fromMongo = reactiveMongoTemplate.findById(bean.id, Document.class, MyBean.MONGO_MYBEAN).block();
+        assertThat(fromMongo.get(MyBean.MONGO_NONSENSITIVEDATA)).isEqualTo(bean.nonSensitiveData);
+        cryptAssert.assertCryptLength(fromMongo.get(MyBean.MONGO_SECRETSTRING), bean.secretString.length() + 12);
+
+        assertThat(ReactiveMongoDBConfiguration.eventLoopNanos.get()).isZero();
+
+        // plain reactive reads are still decrypted, on the thread emitting the AfterLoadEvent
+        MyBean fromDb = reactiveMongoTemplate.findById(bean.id, MyBean.class).block();
+        assertThat(fromDb.secretString).isEqualTo(bean.secretString);
+        assertThat(fromDb.secretSubBean.secretString).isEqualTo(bean.secretSubBean.secretString);
+        assertThat(ReactiveMongoDBConfiguration.eventLoopNanos.get()).isPositive();
+    }
+
+    @Test
+    public void findDecryptsOnScheduler() {
+        List<MyBean> beans = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            MyBean bean = new MyBean();
+            bean.nonSensitiveData = "bean " + i;
+            bean.secretString = "secret " + i;
+            beans.add(bean);
+        }
+        reactiveMongoTemplate.insertAll(beans).collectList().block();
+        ReactiveMongoDBConfiguration.cryptThreads.clear();
+
+        List<MyBean> fromDb = reactiveEncryption.withBatchSize(8)
+                .find(reactiveMongoTemplate, query(where(MyBean.MONGO_NONSENSITIVEDATA).regex("^bean")), MyBean.class)
+                .collectList().block();
+
+        assertThat(fromDb).hasSize(beans.size());
+        assertThat(fromDb).extracting(bean -> bean.secretString).containsExactlyInAnyOrderElementsOf(beans.stream().map(bean -> bean.secretString).toList());
+        assertThat(ReactiveMongoDBConfiguration.cryptThreads).isNotEmpty().allMatch(name -> name.startsWith("crypt"));
+        assertThat(ReactiveMongoDBConfiguration.eventLoopNanos.get()).isZero();
+
+        // property names and values are mapped as for the entity, e.g. id to an ObjectId _id
+        List<MyBean> byId = reactiveEncryption.find(reactiveMongoTemplate, query(where("id").is(beans.get(42).id)), MyBean.class).collectList().block();
+        assertThat(byId).extracting(bean -> bean.secretString).containsExactly("secret 42");
+    }
+}
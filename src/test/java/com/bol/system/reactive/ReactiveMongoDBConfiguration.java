@@ -0,0 +1,96 @@
+package com.bol.system.reactive;
+
+import com.bol.crypt.CryptVault;
+import com.bol.secure.CachedEncryptionEventListener;
+import com.bol.secure.LazyEncrypted;
+import com.bol.secure.ReactiveEncryption;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import org.bson.UuidRepresentation;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.config.AbstractReactiveMongoConfiguration;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Configuration
+public class ReactiveMongoDBConfiguration extends AbstractReactiveMongoConfiguration {
+
+    private static final byte[] secretKey = Base64.getDecoder().decode("hqHKBLV83LpCqzKpf8OvutbCs+O5wX5BPu3btWpEvXA=");
+
+    /** names of the threads that did the crypting */
+    static final Set<String> cryptThreads = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    /** time spent crypting on other threads than those of the crypt scheduler, i.e. blocking the driver's event loop */
+    static final AtomicLong eventLoopNanos = new AtomicLong();
+
+    @Value("${mongodb.port:27017}")
+    int port;
+
+    @Override
+    protected String getDatabaseName() {
+        return "test";
+    }
+
+    @Override
+    public MongoClient reactiveMongoClient() {
+        return MongoClients.create(MongoClientSettings.builder()
+                .uuidRepresentation(UuidRepresentation.STANDARD)
+                .applyConnectionString(new ConnectionString("mongodb://localhost:" + port))
+                .build()
+        );
+    }
+
+    @Override
+    protected void configureConverters(MongoCustomConversions.MongoConverterConfigurationAdapter adapter) {
+        adapter.registerConverter(LazyEncrypted.Writer.INSTANCE);
+    }
+
+    @Bean
+    public CryptVault cryptVault() {
+        return new CryptVault()
+                .with256BitAesCbcPkcs5PaddingAnd128BitSaltKey(0, secretKey)
+                .withDefaultKeyVersion(0);
+    }
+
+    @Bean(destroyMethod = "dispose")
+    public Scheduler cryptScheduler() {
+        return Schedulers.newBoundedElastic(4, 1000, "crypt");
+    }
+
+    // NB: the event listener itself is not a bean, ReactiveEncryption dispatches to it
+    @Bean
+    public ReactiveEncryption reactiveEncryption(CryptVault cryptVault, Scheduler cryptScheduler) {
+        CachedEncryptionEventListener eventListener = new CachedEncryptionEventListener(cryptVault) {
+            @Override
+            public void onBeforeSave(BeforeSaveEvent event) {
+                measure(() -> super.onBeforeSave(event));
+            }
+
+            @Override
+            public void onAfterLoad(AfterLoadEvent event) {
+                measure(() -> super.onAfterLoad(event));
+            }
+        };
+        return new ReactiveEncryption(eventListener, cryptScheduler);
+    }
+
+    private static void measure(Runnable crypt) {
+        String thread = Thread.currentThread().getName();
+        cryptThreads.add(thread);
+        long start = System.nanoTime();
+        crypt.run();
+        if (!thread.startsWith("crypt")) eventLoopNanos.addAndGet(System.nanoTime() - start);
+    }
+}
@@ -5,11 +5,13 @@ import com.bol.secure.ReflectionEncryptionEventListener;
 import com.bol.system.MongoDBConfiguration;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
 
 @Configuration
 public class ReflectionMongoDBConfiguration extends MongoDBConfiguration {
     @Bean
-    public ReflectionEncryptionEventListener encryptionEventListener(CryptVault cryptVault) {
-        return new ReflectionEncryptionEventListener(cryptVault);
+    public ReflectionEncryptionEventListener encryptionEventListener(CryptVault cryptVault, MappingMongoConverter mappingMongoConverter) {
+        return new ReflectionEncryptionEventListener(cryptVault)
+                .withTypeMapper(mappingMongoConverter.getTypeMapper());
     }
 }
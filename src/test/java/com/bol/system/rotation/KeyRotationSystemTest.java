@@ -0,0 +1,139 @@
+package com.bol.system.rotation;
+
+import com.bol.crypt.CryptVault;
+import com.bol.secure.CachedEncryptionEventListener;
+import com.bol.secure.KeyRotation;
+import com.bol.system.cached.CachedMongoDBConfiguration;
+import com.bol.system.model.MyBean;
+import com.bol.system.model.MySubBean;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static com.bol.crypt.CryptVault.fromSignedByte;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {CachedMongoDBConfiguration.class})
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class KeyRotationSystemTest {
+    private static final String CHECKPOINTS = "keyrotation";
+
+    @Autowired MongoTemplate mongoTemplate;
+    @Autowired CryptVault cryptVault;
+    @Autowired CachedEncryptionEventListener eventListener;
+
+    @Before
+    public void cleanDb() {
+        mongoTemplate.dropCollection(MyBean.class);
+        mongoTemplate.dropCollection(CHECKPOINTS);
+    }
+
+    @Test
+    public void rotateCollection() {
+        List<MyBean> beans = saveBeans(25);
+        newKey();
+
+        KeyRotation.Result result = new KeyRotation(mongoTemplate, eventListener)
+                .withBatchSize(4)
+                .withParallelism(3)
+                .withCheckpoint(KeyRotation.Checkpoint.inCollection(mongoTemplate, CHECKPOINTS))
+                .rotate(MyBean.class);
+
+        assertThat(result.isCompleted()).isTrue();
+        assertThat(result.getDocuments()).isEqualTo(25);
+        assertThat(result.getUpdated()).isEqualTo(25);
+        // secretString, secretSubBean, nonSensitiveSubBean.secretString
+        assertThat(result.getFields()).isEqualTo(75);
+        assertThat(result.getFailures()).isZero();
+        assertThat(mongoTemplate.getCollection(CHECKPOINTS).countDocuments()).isZero();
+
+        assertKeyVersion(1);
+        assertReadable(beans);
+    }
+
+    @Test
+    public void resumeFromCheckpoint() {
+        List<MyBean> beans = saveBeans(10);
+        newKey();
+
+        KeyRotation.Checkpoint checkpoint = KeyRotation.Checkpoint.inCollection(mongoTemplate, CHECKPOINTS);
+        checkpoint.store(MyBean.MONGO_MYBEAN, new ObjectId(beans.get(5).id));
+
+        KeyRotation.Result result = new KeyRotation(mongoTemplate, eventListener)
+                .withCheckpoint(checkpoint)
+                .withRateLimit(1000)
+                .rotate(MyBean.class);
+
+        assertThat(result.getDocuments()).isEqualTo(4);
+        assertThat(result.getUpdated()).isEqualTo(4);
+        assertReadable(beans);
+    }
+
+    @Test
+    public void skipsUpToDateDocuments() {
+        List<MyBean> beans = saveBeans(3);
+        newKey();
+
+        // saved by the application while rotating: already on the new key
+        MyBean bean = beans.get(1);
+        bean.secretString = "changed";
+        mongoTemplate.save(bean);
+
+        KeyRotation.Result result = new KeyRotation(mongoTemplate, eventListener).rotate(MyBean.class);
+
+        assertThat(result.getUpdated()).isEqualTo(2);
+        assertKeyVersion(1);
+        assertReadable(beans);
+    }
+
+    private List<MyBean> saveBeans(int count) {
+        List<MyBean> beans = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            MyBean bean = new MyBean();
+            bean.nonSensitiveData = "bean " + i;
+            bean.secretString = "secret " + i;
+            bean.secretSubBean = new MySubBean("sky is blue", "earth is round " + i);
+            bean.nonSensitiveSubBean = new MySubBean("grass is green", "earth is flat " + i);
+            mongoTemplate.save(bean);
+            beans.add(bean);
+        }
+        return beans;
+    }
+
+    private void newKey() {
+        cryptVault.with256BitAesCbcPkcs5PaddingAnd128BitSaltKey(1, Base64.getDecoder().decode("IqWTpi549pJDZ1kuc9HppcMxtPfu2SP6Idlh+tz4LL4="))
+                .withDefaultKeyVersion(1);
+    }
+
+    private void assertKeyVersion(int keyVersion) {
+        for (Document document : mongoTemplate.getCollection(MyBean.MONGO_MYBEAN).find()) {
+            assertThat(fromSignedByte(((Binary) document.get(MyBean.MONGO_SECRETSTRING)).getData()[0])).isEqualTo(keyVersion);
+            assertThat(fromSignedByte(((Binary) document.get(MyBean.MONGO_SECRETSUBBEAN)).getData()[0])).isEqualTo(keyVersion);
+            Document subBean = (Document) document.get(MyBean.MONGO_NONSENSITIVESUBBEAN);
+            assertThat(fromSignedByte(((Binary) subBean.get(MySubBean.MONGO_SECRETSTRING)).getData()[0])).isEqualTo(keyVersion);
+        }
+    }
+
+    private void assertReadable(List<MyBean> beans) {
+        for (MyBean bean : beans) {
+            MyBean fromDb = mongoTemplate.findById(bean.id, MyBean.class);
+            assertThat(fromDb.nonSensitiveData).isEqualTo(bean.nonSensitiveData);
+            assertThat(fromDb.secretString).isEqualTo(bean.secretString);
+            assertThat(fromDb.secretSubBean.secretString).isEqualTo(bean.secretSubBean.secretString);
+            assertThat(fromDb.nonSensitiveSubBean.secretString).isEqualTo(bean.nonSensitiveSubBean.secretString);
+        }
+    }
+}